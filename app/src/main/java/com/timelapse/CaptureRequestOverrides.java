@@ -0,0 +1,58 @@
+package com.timelapse;
+
+import android.hardware.camera2.CaptureRequest;
+
+import androidx.annotation.OptIn;
+import androidx.camera.camera2.interop.Camera2CameraControl;
+import androidx.camera.camera2.interop.CaptureRequestOptions;
+import androidx.camera.camera2.interop.ExperimentalCamera2Interop;
+import androidx.camera.core.CameraControl;
+
+import com.google.common.util.concurrent.ListenableFuture;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// Camera2 capture request options shared by several features (3A lock, low-power preview).
+// Camera2CameraControl can only add to or replace the whole option set, so the current
+// overrides are kept here and re-applied together whenever one of them changes.
+// These updates only change the repeating request; the capture session is not reconfigured.
+@OptIn(markerClass = ExperimentalCamera2Interop.class)
+public class CaptureRequestOverrides {
+
+    private final CameraControl cameraControl;
+    private final Camera2CameraControl camera2Control;
+    private final Map<CaptureRequest.Key<?>, Object> options = new LinkedHashMap<>();
+
+    public CaptureRequestOverrides(CameraControl cameraControl) {
+        this.cameraControl = cameraControl;
+        this.camera2Control = Camera2CameraControl.from(cameraControl);
+    }
+
+    public CameraControl getCameraControl() {
+        return cameraControl;
+    }
+
+    public synchronized <T> ListenableFuture<Void> set(CaptureRequest.Key<T> key, T value) {
+        options.put(key, value);
+        return apply();
+    }
+
+    public synchronized ListenableFuture<Void> clear(CaptureRequest.Key<?> key) {
+        options.remove(key);
+        return apply();
+    }
+
+    private ListenableFuture<Void> apply() {
+        CaptureRequestOptions.Builder builder = new CaptureRequestOptions.Builder();
+        for (Map.Entry<CaptureRequest.Key<?>, Object> entry : options.entrySet()) {
+            putOption(builder, entry.getKey(), entry.getValue());
+        }
+        return camera2Control.setCaptureRequestOptions(builder.build());
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> void putOption(CaptureRequestOptions.Builder builder, CaptureRequest.Key<T> key, Object value) {
+        builder.setCaptureRequestOption(key, (T) value);
+    }
+}
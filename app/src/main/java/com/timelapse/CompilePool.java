@@ -0,0 +1,83 @@
+package com.timelapse;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+// Process-wide pool for segment compiles. Recording sessions (through TimeLapseService) and
+// renders run by DeferredRenderJobService share it, so together they never run more encoders
+// than the codec allows. Idle workers time out, so the pool costs nothing between recordings.
+public class CompilePool {
+
+    private static final String TAG = "CompilePool";
+    private static final int MAX_PARALLEL_COMPILES = 4; // Upper bound on concurrent encoder sessions (memory)
+
+    private static ThreadPoolExecutor executor;
+
+    // Not for the main thread: the first call sizes the pool from the encoder's capabilities,
+    // which reads or probes the codec
+    public static synchronized ExecutorService get(Context context) {
+        if (executor == null) {
+            // Each compile opens one encoder per rendition, and outside the pool a live stream
+            // segment or the pre-warmed encoders (never both at once) hold as many again; the
+            // instances left over bound the workers, as do CPU count and memory. Sized for a
+            // share copy, since sessions with and without one share the pool.
+            int encoderInstances = EncoderCapabilities.get(context).maxInstances;
+            int renditionsPerJob = Rendition.forSession(true).size();
+            int instanceLimit = (encoderInstances - renditionsPerJob) / renditionsPerJob;
+            int cpuLimit = Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+            int workers = Math.max(1, Math.min(instanceLimit, Math.min(cpuLimit, MAX_PARALLEL_COMPILES)));
+            Log.d(TAG, "Segment compile workers: " + workers + " (encoder instances: " + encoderInstances
+                    + ", renditions per compile: " + renditionsPerJob + ")");
+            executor = new ThreadPoolExecutor(workers, workers, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<>());
+            executor.allowCoreThreadTimeOut(true);
+        }
+        return executor;
+    }
+
+    // Executor that runs its tasks on the pool one at a time, in submission order, for segments
+    // that hand state to the next one (a shared Stabilizer). No worker waits for a predecessor:
+    // the next task is only handed to the pool once the previous one has finished.
+    static Executor newSerialLane(Context context) {
+        return new SerialLane(context.getApplicationContext());
+    }
+
+    private static final class SerialLane implements Executor {
+        private final Context context;
+        private final Queue<Runnable> tasks = new ArrayDeque<>(); // Guarded by this
+        private boolean active = false; // A task is queued on or running in the pool
+
+        SerialLane(Context context) {
+            this.context = context;
+        }
+
+        @Override
+        public synchronized void execute(final Runnable task) {
+            tasks.add(() -> {
+                try {
+                    task.run();
+                } finally {
+                    scheduleNext();
+                }
+            });
+            if (!active) {
+                scheduleNext();
+            }
+        }
+
+        private synchronized void scheduleNext() {
+            Runnable next = tasks.poll();
+            active = next != null;
+            if (active) {
+                get(context).execute(next);
+            }
+        }
+    }
+}
@@ -0,0 +1,342 @@
+package com.timelapse;
+
+import android.app.job.JobInfo;
+import android.app.job.JobScheduler;
+import android.content.ComponentName;
+import android.content.Context;
+import android.os.Build;
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+// Durable queue of session renders postponed until the phone is charging and idle.
+// Jobs are stored as JSON in app storage, so they survive process death and reboots;
+// DeferredRenderJobService drains the queue whenever JobScheduler's constraints are met.
+// Renders held for review stay queued but are skipped until ReviewActivity releases them.
+public class DeferredJobQueue {
+
+    private static final String TAG = "DeferredJobQueue";
+    private static final String QUEUE_FILE = "deferred_renders.json";
+    private static final int JOB_ID_DEFERRED = 1001; // Waits for charging + idle
+    private static final int JOB_ID_NOW = 1002; // "Run now" from the UI
+    private static final int MAX_ATTEMPTS = 3;
+
+    public interface Listener {
+        void onQueueChanged(int pendingCount);
+        void onRenderProgress(int step, int totalSteps);
+        void onRenderCompleted(String videoPath);
+    }
+
+    private static DeferredJobQueue instance;
+
+    private final Context context;
+    private final List<SessionRender> jobs = new ArrayList<>(); // Guarded by this
+    private final List<Integer> attempts = new ArrayList<>(); // Parallel to jobs
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+    private SessionRender running; // Guarded by this
+
+    public static synchronized DeferredJobQueue get(Context context) {
+        if (instance == null) {
+            instance = new DeferredJobQueue(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    private DeferredJobQueue(Context context) {
+        this.context = context;
+        load();
+    }
+
+    public void addListener(Listener listener) {
+        if (!listeners.contains(listener)) {
+            listeners.add(listener);
+        }
+    }
+
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    public synchronized int getPendingCount() {
+        return jobs.size();
+    }
+
+    public void enqueue(SessionRender render) {
+        int pending;
+        synchronized (this) {
+            jobs.add(render);
+            attempts.add(0);
+            save();
+            pending = jobs.size();
+        }
+        Log.d(TAG, "Deferred render queued: " + render.outputDir.getName() + " (" + render.getFrameCount()
+                + " frames, " + render.getSegmentCount() + " segments)" + (render.isHeld() ? " for review" : ""));
+        if (!render.isHeld()) {
+            schedule(false);
+        }
+        notifyQueueChanged(pending);
+    }
+
+    // Run the queue as soon as possible instead of waiting for charging/idle
+    public void runNow() {
+        schedule(true);
+    }
+
+    // Oldest render waiting for review, or null
+    public synchronized SessionRender getFirstHeld() {
+        for (SessionRender render : jobs) {
+            if (render.isHeld()) return render;
+        }
+        return null;
+    }
+
+    public synchronized SessionRender findByOutputDir(String outputDir) {
+        for (SessionRender render : jobs) {
+            if (render.outputDir.getAbsolutePath().equals(outputDir)) return render;
+        }
+        return null;
+    }
+
+    // Keeps a review in progress, so the trims survive leaving the screen
+    public synchronized void saveReview(SessionRender render, List<int[]> keptRanges) {
+        if (!jobs.contains(render)) return;
+        render.setKeptRanges(keptRanges);
+        save();
+    }
+
+    // Ends the review of a held render: it renders with the kept ranges when the queue next
+    // runs, right away if now is set
+    public void release(SessionRender render, List<int[]> keptRanges, boolean now) {
+        synchronized (this) {
+            if (!jobs.contains(render)) return;
+            render.setKeptRanges(keptRanges);
+            render.setHeld(false);
+            save();
+        }
+        Log.d(TAG, "Review released: " + render.outputDir.getName());
+        schedule(now);
+    }
+
+    // Discard one queued render that isn't running, along with its files
+    public void discard(SessionRender render) {
+        int pending;
+        synchronized (this) {
+            if (render == running || !jobs.contains(render)) return;
+            removeLocked(render);
+            pending = jobs.size();
+        }
+        SessionRender.deleteRecursively(render.outputDir);
+        notifyQueueChanged(pending);
+    }
+
+    // Discard every queued render along with its frames and segments
+    public void cancelAll() {
+        List<SessionRender> discarded;
+        SessionRender current;
+        synchronized (this) {
+            discarded = new ArrayList<>(jobs);
+            jobs.clear();
+            attempts.clear();
+            current = running;
+            if (current != null) {
+                current.cancel(); // Its files are deleted once it stops
+            }
+            save();
+        }
+        for (SessionRender render : discarded) {
+            if (render != current) {
+                SessionRender.deleteRecursively(render.outputDir);
+            }
+        }
+        JobScheduler scheduler = (JobScheduler) context.getSystemService(Context.JOB_SCHEDULER_SERVICE);
+        scheduler.cancel(JOB_ID_DEFERRED);
+        scheduler.cancel(JOB_ID_NOW);
+        Log.d(TAG, "Discarded " + discarded.size() + " deferred render(s)");
+        notifyQueueChanged(0);
+    }
+
+    // Ask the running render (if any) to stop at its next step; it stays queued
+    public synchronized void pauseRunning() {
+        if (running != null) {
+            running.cancel();
+        }
+    }
+
+    // Called on the job service's worker thread. Renders queued jobs until the queue is empty
+    // or shouldStop returns true. Returns true if work remains. The job service sets the stop
+    // signal before pauseRunning(), so checking it again while picking under the lock means a
+    // stop either prevents the pick or finds the picked render running.
+    public boolean drain(StopSignal shouldStop) {
+        while (!shouldStop.isStopped()) {
+            SessionRender render;
+            synchronized (this) {
+                if (shouldStop.isStopped()) break;
+                int index = 0;
+                while (index < jobs.size() && jobs.get(index).isHeld()) {
+                    index++;
+                }
+                if (index == jobs.size()) return false; // Empty, or only renders waiting for review
+                render = jobs.get(index);
+                render.clearCancel(); // A pause of an earlier run; later cancels find it running
+                running = render;
+                attempts.set(index, attempts.get(index) + 1);
+                save();
+            }
+
+            try {
+                String videoPath = render.render(context, this::onProgress);
+                synchronized (this) {
+                    removeLocked(render);
+                }
+                Log.d(TAG, "Deferred render completed: " + videoPath);
+                for (Listener listener : listeners) {
+                    listener.onRenderCompleted(videoPath);
+                }
+            } catch (CancellationException e) {
+                Log.d(TAG, "Deferred render stopped: " + render.outputDir.getName());
+                synchronized (this) {
+                    if (!jobs.contains(render)) {
+                        // Discarded while running
+                        SessionRender.deleteRecursively(render.outputDir);
+                    }
+                }
+            } catch (Exception e) {
+                Log.e(TAG, "Deferred render failed: " + render.outputDir.getName(), e);
+                Tracer.dumpToFile();
+                synchronized (this) {
+                    int index = jobs.indexOf(render);
+                    if (index >= 0 && attempts.get(index) >= MAX_ATTEMPTS) {
+                        // Leave the files in app storage, but stop retrying
+                        removeLocked(render);
+                    } else {
+                        // Retry later with JobScheduler's backoff rather than in a tight loop
+                        save();
+                        running = null;
+                        return true;
+                    }
+                }
+            } finally {
+                synchronized (this) {
+                    running = null;
+                }
+            }
+            notifyQueueChanged(getPendingCount());
+        }
+        return getRenderableCount() > 0;
+    }
+
+    private synchronized int getRenderableCount() {
+        int count = 0;
+        for (SessionRender render : jobs) {
+            if (!render.isHeld()) count++;
+        }
+        return count;
+    }
+
+    public interface StopSignal {
+        boolean isStopped();
+    }
+
+    private void onProgress(SessionRender render, int step, int totalSteps) {
+        synchronized (this) {
+            save(); // Record progress so a stopped render resumes after this step
+        }
+        for (Listener listener : listeners) {
+            listener.onRenderProgress(step, totalSteps);
+        }
+    }
+
+    private void removeLocked(SessionRender render) {
+        int index = jobs.indexOf(render);
+        if (index >= 0) {
+            jobs.remove(index);
+            attempts.remove(index);
+        }
+        save();
+    }
+
+    private void notifyQueueChanged(int pendingCount) {
+        for (Listener listener : listeners) {
+            listener.onQueueChanged(pendingCount);
+        }
+    }
+
+    private void schedule(boolean now) {
+        ComponentName service = new ComponentName(context, DeferredRenderJobService.class);
+        JobInfo.Builder builder = new JobInfo.Builder(now ? JOB_ID_NOW : JOB_ID_DEFERRED, service)
+                .setPersisted(true);
+        if (now) {
+            builder.setOverrideDeadline(0);
+        } else {
+            builder.setRequiresCharging(true)
+                    .setRequiresDeviceIdle(true);
+        }
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            builder.setRequiresStorageNotLow(true);
+        }
+        JobScheduler scheduler = (JobScheduler) context.getSystemService(Context.JOB_SCHEDULER_SERVICE);
+        int result = scheduler.schedule(builder.build());
+        Log.d(TAG, "Scheduled " + (now ? "immediate" : "deferred") + " render job: " + (result == JobScheduler.RESULT_SUCCESS));
+    }
+
+    // Re-schedule leftover jobs, e.g. after an app update cleared the scheduler
+    public void ensureScheduled() {
+        if (getRenderableCount() > 0) {
+            schedule(false);
+        }
+    }
+
+    private void load() {
+        File file = new File(context.getFilesDir(), QUEUE_FILE);
+        if (!file.exists()) return;
+        try (FileInputStream in = new FileInputStream(file)) {
+            byte[] data = new byte[(int) file.length()];
+            int read = 0;
+            while (read < data.length) {
+                int n = in.read(data, read, data.length - read);
+                if (n < 0) break;
+                read += n;
+            }
+            JSONArray array = new JSONArray(new String(data, 0, read, Charset.forName("UTF-8")));
+            for (int i = 0; i < array.length(); i++) {
+                JSONObject entry = array.getJSONObject(i);
+                jobs.add(SessionRender.fromJson(entry.getJSONObject("render")));
+                attempts.add(entry.optInt("attempts", 0));
+            }
+            Log.d(TAG, "Loaded " + jobs.size() + " deferred render(s)");
+        } catch (Exception e) {
+            Log.e(TAG, "Error loading deferred renders", e);
+        }
+    }
+
+    // Written to a temp file and renamed, so a crash never leaves a truncated queue
+    private void save() {
+        File file = new File(context.getFilesDir(), QUEUE_FILE);
+        File temp = new File(context.getFilesDir(), QUEUE_FILE + ".tmp");
+        try {
+            JSONArray array = new JSONArray();
+            for (int i = 0; i < jobs.size(); i++) {
+                array.put(new JSONObject().put("render", jobs.get(i).toJson()).put("attempts", attempts.get(i)));
+            }
+            try (FileOutputStream out = new FileOutputStream(temp)) {
+                out.write(array.toString().getBytes(Charset.forName("UTF-8")));
+                out.getFD().sync();
+            }
+            if (!temp.renameTo(file)) {
+                Log.e(TAG, "Failed to replace deferred render queue");
+            }
+        } catch (Exception e) {
+            Log.e(TAG, "Error saving deferred renders", e);
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package com.timelapse;
+
+import android.app.job.JobParameters;
+import android.app.job.JobService;
+import android.util.Log;
+import android.util.SparseArray;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+// Drains the DeferredJobQueue when JobScheduler's constraints (charging, idle, storage not low) hold.
+// If the constraints stop holding, the running render stops at its next step and is rescheduled.
+// The deferred and the "run now" job can both be started; they drain one after the other, and
+// each has its own stop state, so stopping one never ends or pauses the other.
+public class DeferredRenderJobService extends JobService {
+
+    private static final String TAG = "DeferredRenderJob";
+
+    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+    private final SparseArray<JobRun> runs = new SparseArray<>(); // By job id, guarded by this
+    private JobRun draining; // Guarded by this
+
+    // One start of one job; stopped once the system calls onStopJob for it
+    private static final class JobRun {
+        volatile boolean stopped = false;
+    }
+
+    @Override
+    public boolean onStartJob(final JobParameters params) {
+        Log.d(TAG, "Deferred render job started (id " + params.getJobId() + ")");
+        final int jobId = params.getJobId();
+        final JobRun run = new JobRun();
+        synchronized (this) {
+            runs.put(jobId, run);
+        }
+        Tracer.install(this);
+        final DeferredJobQueue queue = DeferredJobQueue.get(this);
+        executor.execute(() -> {
+            boolean start;
+            synchronized (this) {
+                start = !run.stopped; // False if stopped while waiting behind the other job
+                if (start) {
+                    draining = run;
+                }
+            }
+            boolean workLeft = start && queue.drain(() -> run.stopped);
+            synchronized (this) {
+                draining = null;
+                if (runs.get(jobId) == run) {
+                    runs.remove(jobId);
+                }
+            }
+            // A stopped job is rescheduled through onStopJob's return value instead
+            if (!run.stopped) {
+                jobFinished(params, workLeft);
+            }
+        });
+        return true;
+    }
+
+    @Override
+    public boolean onStopJob(JobParameters params) {
+        Log.d(TAG, "Deferred render job stopped by the system (id " + params.getJobId() + ")");
+        synchronized (this) {
+            JobRun run = runs.get(params.getJobId());
+            if (run != null) {
+                run.stopped = true;
+                // Only the render this job is draining is paused, not one the other job runs
+                if (run == draining) {
+                    DeferredJobQueue.get(this).pauseRunning();
+                }
+            }
+        }
+        return true; // Reschedule with the same constraints
+    }
+
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        executor.shutdown();
+    }
+}
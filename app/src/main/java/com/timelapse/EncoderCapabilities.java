@@ -0,0 +1,389 @@
+package com.timelapse;
+
+import android.content.Context;
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+import android.media.MediaCodecList;
+import android.media.MediaFormat;
+import android.os.Build;
+import android.util.Log;
+
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+// What the device's AVC encoder accepts: codec name, input color format, size alignment and
+// limits, bitrate ceiling and concurrent instances. Probed from MediaCodecList once and cached
+// as JSON in app storage (keyed by the build fingerprint, so an OS update re-probes). Whether a
+// particular size and frame rate combination is accepted is asked of the codec itself when an
+// encode size is chosen.
+// Also holds encoders created and configured ahead of time (while the user frames the shot),
+// one per rendition, which the first SegmentEncoders of matching size take instead of creating
+// their own.
+public class EncoderCapabilities {
+
+    private static final String TAG = "EncoderCapabilities";
+    private static final String CACHE_FILE = "encoder_capabilities.json";
+    private static final int CACHE_VERSION = 2;
+    private static final int MAX_SIZE_STEPS = 16; // Each step scales the encode size down by SIZE_STEP
+    private static final float SIZE_STEP = 0.9f;
+
+    // Input layouts SegmentEncoder can feed, in order of preference (NV12 needs no conversion)
+    static final int COLOR_NV12 = MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420SemiPlanar;
+    static final int COLOR_I420 = MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420Planar;
+    static final int COLOR_FLEXIBLE = MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420Flexible;
+
+    private static EncoderCapabilities instance;
+    private static ExecutorService prewarmExecutor;
+
+    public final String codecName; // null if no AVC encoder was found (createEncoderByType is used)
+    public final int colorFormat;
+    public final int widthAlignment;
+    public final int heightAlignment;
+    public final int maxWidth;
+    public final int maxHeight;
+    public final int maxBitrate;
+    public final int maxInstances;
+
+    // The codec's own size/rate rules, looked up once on first use (not cached on disk), guarded by this
+    private MediaCodecInfo.VideoCapabilities videoCapabilities;
+    private boolean videoCapabilitiesLookedUp;
+
+    // Encoders configured ahead of time by key, guarded by this
+    private final Map<String, MediaCodec> prewarmed = new LinkedHashMap<>();
+
+    private EncoderCapabilities(String codecName, int colorFormat, int widthAlignment, int heightAlignment,
+                                int maxWidth, int maxHeight, int maxBitrate, int maxInstances) {
+        this.codecName = codecName;
+        this.colorFormat = colorFormat;
+        this.widthAlignment = Math.max(2, widthAlignment);
+        this.heightAlignment = Math.max(2, heightAlignment);
+        this.maxWidth = maxWidth;
+        this.maxHeight = maxHeight;
+        this.maxBitrate = maxBitrate;
+        this.maxInstances = Math.max(1, maxInstances);
+    }
+
+    public static synchronized EncoderCapabilities get(Context context) {
+        if (instance == null) {
+            File file = new File(context.getApplicationContext().getFilesDir(), CACHE_FILE);
+            instance = load(file);
+            if (instance == null) {
+                long startNanos = System.nanoTime();
+                instance = probe();
+                Log.d(TAG, "Probed " + instance.codecName + " in " + (System.nanoTime() - startNanos) / 1000000 + "ms");
+                instance.save(file);
+            }
+        }
+        return instance;
+    }
+
+    // Largest size no bigger than width x height that the encoder accepts at frameRate: scaled
+    // down to the encoder's limits and rounded down to its alignment, then stepped down (keeping
+    // the aspect ratio) until the codec reports the size and rate as supported, since limits such
+    // as macroblocks per second don't follow from the width and height bounds alone. Callers
+    // scale frames to this size. Not for the main thread: the first call looks up the codec.
+    public int[] getEncodeSize(int width, int height, int frameRate) {
+        float scale = 1f;
+        if (maxWidth > 0 && maxHeight > 0) {
+            // Limits are usually given for landscape; allow either orientation
+            int longLimit = Math.max(maxWidth, maxHeight);
+            int shortLimit = Math.min(maxWidth, maxHeight);
+            int longSide = Math.max(width, height);
+            int shortSide = Math.min(width, height);
+            scale = Math.min(1f, Math.min((float) longLimit / longSide, (float) shortLimit / shortSide));
+        }
+        int[] size = align(width, height, scale);
+        MediaCodecInfo.VideoCapabilities video = getVideoCapabilities();
+        if (video == null) {
+            return size;
+        }
+        for (int step = 0; step < MAX_SIZE_STEPS && !video.areSizeAndRateSupported(size[0], size[1], frameRate); step++) {
+            scale *= SIZE_STEP;
+            size = align(width, height, scale);
+        }
+        if (!video.isSizeSupported(size[0], size[1])) {
+            Log.w(TAG, "No supported encode size found for " + width + "x" + height + "@" + frameRate
+                    + ", trying " + size[0] + "x" + size[1]);
+        }
+        return size;
+    }
+
+    // Encode size of each rendition of a width x height source (master first), as the compile
+    // paths open their encoders; null for a rendition no smaller than the master, which covers it
+    public int[][] getRenditionSizes(int width, int height, List<Rendition> renditions, int frameRate) {
+        int[][] sizes = new int[renditions.size()][];
+        for (int r = 0; r < renditions.size(); r++) {
+            int[] size = renditions.get(r).getSize(width, height);
+            size = getEncodeSize(size[0], size[1], frameRate);
+            if (r > 0 && size[0] == sizes[0][0] && size[1] == sizes[0][1]) {
+                continue;
+            }
+            sizes[r] = size;
+        }
+        return sizes;
+    }
+
+    private int[] align(int width, int height, float scale) {
+        int alignedWidth = Math.max(widthAlignment, (int) (width * scale) / widthAlignment * widthAlignment);
+        int alignedHeight = Math.max(heightAlignment, (int) (height * scale) / heightAlignment * heightAlignment);
+        return new int[]{alignedWidth, alignedHeight};
+    }
+
+    // The probed codec's VideoCapabilities, or null if it can't be listed (sizes are then only
+    // bounded and aligned)
+    private synchronized MediaCodecInfo.VideoCapabilities getVideoCapabilities() {
+        if (!videoCapabilitiesLookedUp) {
+            videoCapabilitiesLookedUp = true;
+            if (codecName != null) {
+                try {
+                    MediaCodecList codecList = new MediaCodecList(MediaCodecList.REGULAR_CODECS);
+                    for (MediaCodecInfo info : codecList.getCodecInfos()) {
+                        if (info.isEncoder() && info.getName().equals(codecName)) {
+                            videoCapabilities = info.getCapabilitiesForType(VideoCompiler.MIME_TYPE).getVideoCapabilities();
+                            break;
+                        }
+                    }
+                } catch (Exception e) {
+                    Log.e(TAG, "Error looking up " + codecName, e);
+                }
+            }
+        }
+        return videoCapabilities;
+    }
+
+    public int clampBitrate(int bitrate) {
+        return maxBitrate > 0 ? Math.min(bitrate, maxBitrate) : bitrate;
+    }
+
+    public MediaFormat createFormat(int width, int height, int frameRate, int iFrameInterval) {
+        MediaFormat format = MediaFormat.createVideoFormat(VideoCompiler.MIME_TYPE, width, height);
+        format.setInteger(MediaFormat.KEY_COLOR_FORMAT, colorFormat);
+        format.setInteger(MediaFormat.KEY_BIT_RATE, clampBitrate(width * height * 8));
+        format.setInteger(MediaFormat.KEY_FRAME_RATE, frameRate);
+        format.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, iFrameInterval);
+        return format;
+    }
+
+    // A new, unconfigured encoder instance of the probed codec
+    public MediaCodec createCodec() throws Exception {
+        return codecName != null
+                ? MediaCodec.createByCodecName(codecName)
+                : MediaCodec.createEncoderByType(VideoCompiler.MIME_TYPE);
+    }
+
+    // Create and configure the encoders of each rendition in the background for frames of
+    // sourceWidth x sourceHeight in the orientation they are encoded in (probing capabilities
+    // first if needed), at most as many as the codec allows instances. Replaces any earlier
+    // pre-warmed encoders not yet taken.
+    public static void prewarm(Context context, int sourceWidth, int sourceHeight, List<Rendition> renditions,
+                               int frameRate, int iFrameInterval) {
+        final Context appContext = context.getApplicationContext();
+        getPrewarmExecutor().execute(() -> {
+            EncoderCapabilities capabilities = get(appContext);
+            List<String> keys = new ArrayList<>();
+            List<int[]> sizes = new ArrayList<>();
+            for (int[] size : capabilities.getRenditionSizes(sourceWidth, sourceHeight, renditions, frameRate)) {
+                if (size != null && sizes.size() < capabilities.maxInstances) {
+                    keys.add(getKey(size[0], size[1], frameRate, iFrameInterval));
+                    sizes.add(size);
+                }
+            }
+            capabilities.prewarmNow(keys, sizes, frameRate, iFrameInterval);
+        });
+    }
+
+    private static synchronized ExecutorService getPrewarmExecutor() {
+        if (prewarmExecutor == null) {
+            prewarmExecutor = Executors.newSingleThreadExecutor();
+        }
+        return prewarmExecutor;
+    }
+
+    private void prewarmNow(List<String> keys, List<int[]> sizes, int frameRate, int iFrameInterval) {
+        synchronized (this) {
+            if (new ArrayList<>(prewarmed.keySet()).equals(keys)) {
+                return;
+            }
+        }
+        releaseHeld();
+        for (int i = 0; i < keys.size(); i++) {
+            String key = keys.get(i);
+            MediaCodec codec = null;
+            try {
+                long startNanos = System.nanoTime();
+                codec = createCodec();
+                codec.configure(createFormat(sizes.get(i)[0], sizes.get(i)[1], frameRate, iFrameInterval), null, null,
+                        MediaCodec.CONFIGURE_FLAG_ENCODE);
+                synchronized (this) {
+                    prewarmed.put(key, codec);
+                }
+                Log.d(TAG, "Pre-warmed encoder " + key + " in " + (System.nanoTime() - startNanos) / 1000000 + "ms");
+            } catch (Exception e) {
+                Log.e(TAG, "Error pre-warming encoder " + key, e);
+                if (codec != null) {
+                    codec.release();
+                }
+                return;
+            }
+        }
+    }
+
+    // A pre-warmed encoder (configured, not started) if one matches, or null
+    public synchronized MediaCodec takePrewarmed(int width, int height, int frameRate, int iFrameInterval) {
+        return prewarmed.remove(getKey(width, height, frameRate, iFrameInterval));
+    }
+
+    // Frees the held encoder instances, e.g. when the app leaves the foreground or a recording
+    // has opened its first encoders. Runs after any pre-warm still queued, so none is left behind.
+    public static void releasePrewarmed() {
+        ExecutorService executor;
+        synchronized (EncoderCapabilities.class) {
+            executor = prewarmExecutor;
+        }
+        if (executor == null) {
+            return; // Nothing was pre-warmed
+        }
+        executor.execute(() -> {
+            EncoderCapabilities capabilities;
+            synchronized (EncoderCapabilities.class) {
+                capabilities = instance;
+            }
+            if (capabilities != null) {
+                capabilities.releaseHeld();
+            }
+        });
+    }
+
+    private static String getKey(int width, int height, int frameRate, int iFrameInterval) {
+        return width + "x" + height + "@" + frameRate + "/" + iFrameInterval;
+    }
+
+    private void releaseHeld() {
+        List<MediaCodec> codecs;
+        synchronized (this) {
+            codecs = new ArrayList<>(prewarmed.values());
+            prewarmed.clear();
+        }
+        for (MediaCodec codec : codecs) {
+            codec.release();
+        }
+    }
+
+    private static EncoderCapabilities probe() {
+        MediaCodecInfo chosen = null;
+        try {
+            MediaCodecList codecList = new MediaCodecList(MediaCodecList.REGULAR_CODECS);
+            for (MediaCodecInfo info : codecList.getCodecInfos()) {
+                if (!info.isEncoder() || !supportsType(info)) {
+                    continue;
+                }
+                // Platform order puts the preferred encoder first; skip software fallbacks if a hardware one exists
+                if (chosen == null || (isSoftware(chosen) && !isSoftware(info))) {
+                    chosen = info;
+                }
+            }
+        } catch (Exception e) {
+            Log.e(TAG, "Error listing encoders", e);
+        }
+        if (chosen == null) {
+            Log.w(TAG, "No " + VideoCompiler.MIME_TYPE + " encoder listed, using defaults");
+            return new EncoderCapabilities(null, COLOR_NV12, 2, 2, 0, 0, 0, 1);
+        }
+
+        MediaCodecInfo.CodecCapabilities capabilities = chosen.getCapabilitiesForType(VideoCompiler.MIME_TYPE);
+        int colorFormat = chooseColorFormat(capabilities.colorFormats);
+        MediaCodecInfo.VideoCapabilities video = capabilities.getVideoCapabilities();
+        int maxInstances = Build.VERSION.SDK_INT >= Build.VERSION_CODES.M ? capabilities.getMaxSupportedInstances() : 1;
+
+        EncoderCapabilities probed = new EncoderCapabilities(chosen.getName(), colorFormat,
+                video.getWidthAlignment(), video.getHeightAlignment(),
+                video.getSupportedWidths().getUpper(), video.getSupportedHeights().getUpper(),
+                video.getBitrateRange().getUpper(), maxInstances);
+        // Already listed; spares the first getEncodeSize() another MediaCodecList
+        probed.videoCapabilities = video;
+        probed.videoCapabilitiesLookedUp = true;
+        return probed;
+    }
+
+    private static boolean supportsType(MediaCodecInfo info) {
+        for (String type : info.getSupportedTypes()) {
+            if (type.equalsIgnoreCase(VideoCompiler.MIME_TYPE)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isSoftware(MediaCodecInfo info) {
+        String name = info.getName().toLowerCase();
+        return name.startsWith("omx.google.") || name.startsWith("c2.android.");
+    }
+
+    private static int chooseColorFormat(int[] colorFormats) {
+        for (int preferred : new int[]{COLOR_NV12, COLOR_I420, COLOR_FLEXIBLE}) {
+            for (int format : colorFormats) {
+                if (format == preferred) {
+                    return format;
+                }
+            }
+        }
+        Log.w(TAG, "No known YUV420 input format listed, assuming flexible");
+        return COLOR_FLEXIBLE;
+    }
+
+    private static EncoderCapabilities load(File file) {
+        if (!file.exists()) return null;
+        try (FileInputStream in = new FileInputStream(file)) {
+            byte[] data = new byte[(int) file.length()];
+            int read = 0;
+            while (read < data.length) {
+                int n = in.read(data, read, data.length - read);
+                if (n < 0) break;
+                read += n;
+            }
+            JSONObject json = new JSONObject(new String(data, 0, read, Charset.forName("UTF-8")));
+            if (json.optInt("version") != CACHE_VERSION || !Build.FINGERPRINT.equals(json.optString("fingerprint"))) {
+                Log.d(TAG, "Cached capabilities are stale, re-probing");
+                return null;
+            }
+            return new EncoderCapabilities(json.isNull("codec") ? null : json.getString("codec"),
+                    json.getInt("colorFormat"), json.getInt("widthAlignment"), json.getInt("heightAlignment"),
+                    json.getInt("maxWidth"), json.getInt("maxHeight"), json.getInt("maxBitrate"),
+                    json.getInt("maxInstances"));
+        } catch (Exception e) {
+            Log.e(TAG, "Error loading cached capabilities", e);
+            return null;
+        }
+    }
+
+    private void save(File file) {
+        try {
+            JSONObject json = new JSONObject()
+                    .put("version", CACHE_VERSION)
+                    .put("fingerprint", Build.FINGERPRINT)
+                    .put("codec", codecName != null ? codecName : JSONObject.NULL)
+                    .put("colorFormat", colorFormat)
+                    .put("widthAlignment", widthAlignment)
+                    .put("heightAlignment", heightAlignment)
+                    .put("maxWidth", maxWidth)
+                    .put("maxHeight", maxHeight)
+                    .put("maxBitrate", maxBitrate)
+                    .put("maxInstances", maxInstances);
+            try (FileOutputStream out = new FileOutputStream(file)) {
+                out.write(json.toString().getBytes(Charset.forName("UTF-8")));
+            }
+        } catch (Exception e) {
+            Log.e(TAG, "Error saving capabilities", e);
+        }
+    }
+}
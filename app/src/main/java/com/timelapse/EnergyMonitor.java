@@ -0,0 +1,317 @@
+package com.timelapse;
+
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.BatteryManager;
+import android.os.Build;
+import android.os.Handler;
+import android.os.PowerManager;
+import android.os.SystemClock;
+import android.util.Log;
+
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+
+// Battery and thermal telemetry of one recording session. Battery current is sampled every
+// SAMPLE_INTERVAL_MS and each interval's charge is split between capture, compile and idle by
+// how long the session spent in each phase during that interval (work running in both at once
+// is counted as capture). The results are mAh per captured frame and per second of output,
+// available live and written to a summary file when the session finishes, so capture modes and
+// preview settings can be compared by measurement. Readings taken while plugged in are kept
+// but flagged, since the battery current then says nothing about the app's draw.
+public class EnergyMonitor {
+
+    private static final String TAG = "EnergyMonitor";
+    private static final long SAMPLE_INTERVAL_MS = 2000;
+    private static final String SUMMARY_DIR = "energy";
+
+    public static final int PHASE_CAPTURE = 0;
+    public static final int PHASE_COMPILE = 1;
+    private static final int PHASE_IDLE = 2;
+    private static final String[] PHASE_NAMES = {"capture", "compile", "idle"};
+
+    public static final int PREVIEW_ON = 0;
+    public static final int PREVIEW_THROTTLED = 1;
+    public static final int PREVIEW_OFF = 2;
+    private static final String[] PREVIEW_NAMES = {"on", "throttled", "off"};
+
+    // Everything needed to interpret a reading later: the settings being compared
+    public static final class Report {
+        public final double captureMah;
+        public final double compileMah;
+        public final double idleMah;
+        public final double mahPerFrame;
+        public final double mahPerOutputSecond;
+        public final int maxThermalStatus; // PowerManager.THERMAL_STATUS_*, -1 if unknown
+        public final float maxBatteryTempC;
+        public final boolean pluggedIn; // Some samples were taken while charging
+
+        Report(double captureMah, double compileMah, double idleMah, double mahPerFrame, double mahPerOutputSecond,
+               int maxThermalStatus, float maxBatteryTempC, boolean pluggedIn) {
+            this.captureMah = captureMah;
+            this.compileMah = compileMah;
+            this.idleMah = idleMah;
+            this.mahPerFrame = mahPerFrame;
+            this.mahPerOutputSecond = mahPerOutputSecond;
+            this.maxThermalStatus = maxThermalStatus;
+            this.maxBatteryTempC = maxBatteryTempC;
+            this.pluggedIn = pluggedIn;
+        }
+
+        public double getTotalMah() {
+            return captureMah + compileMah + idleMah;
+        }
+    }
+
+    private final Context context;
+    private final Handler handler;
+    private final BatteryManager batteryManager;
+    private final PowerManager powerManager;
+    private final String captureMode;
+    private final int captureIntervalMs;
+    private final int outputFrameRate;
+
+    // Phase bookkeeping, guarded by this: how many tasks are in each phase, since when the
+    // phase has been busy, and its busy time in the current sampling interval
+    private final int[] activeCount = new int[2];
+    private final long[] activeSinceMs = new long[2];
+    private final long[] busyMs = new long[2];
+    private final double[] phaseMah = new double[3];
+    private final long[] previewMs = new long[3];
+    private int previewState = PREVIEW_ON;
+    private long previewSinceMs;
+
+    private long startMs;
+    private long lastSampleMs;
+    private long endMs;
+    private int startChargeUah = Integer.MIN_VALUE;
+    private int lastChargeUah = Integer.MIN_VALUE;
+    private int sampleCount = 0;
+    private int maxThermalStatus = -1;
+    private float startBatteryTempC = Float.NaN;
+    private float maxBatteryTempC = Float.NaN;
+    private boolean pluggedIn = false;
+    private volatile int frameCount = 0;
+    private boolean running = false;
+
+    public EnergyMonitor(Context context, Handler handler, String captureMode, int captureIntervalMs, int outputFrameRate) {
+        this.context = context.getApplicationContext();
+        this.handler = handler;
+        this.batteryManager = (BatteryManager) context.getSystemService(Context.BATTERY_SERVICE);
+        this.powerManager = (PowerManager) context.getSystemService(Context.POWER_SERVICE);
+        this.captureMode = captureMode;
+        this.captureIntervalMs = captureIntervalMs;
+        this.outputFrameRate = outputFrameRate;
+    }
+
+    public synchronized void start(int previewState) {
+        startMs = SystemClock.elapsedRealtime();
+        lastSampleMs = startMs;
+        this.previewState = previewState;
+        previewSinceMs = startMs;
+        startChargeUah = readChargeUah();
+        lastChargeUah = startChargeUah;
+        readBatteryState();
+        startBatteryTempC = maxBatteryTempC;
+        running = true;
+        handler.postDelayed(sampleRunnable, SAMPLE_INTERVAL_MS);
+    }
+
+    // Takes a last sample; the report stays readable afterwards
+    public synchronized void stop() {
+        if (!running) return;
+        handler.removeCallbacks(sampleRunnable);
+        sample();
+        endMs = lastSampleMs;
+        setPreviewState(previewState); // Close the current preview span
+        running = false;
+    }
+
+    // May be nested and called from any thread
+    public synchronized void beginPhase(int phase) {
+        if (activeCount[phase]++ == 0) {
+            activeSinceMs[phase] = SystemClock.elapsedRealtime();
+        }
+    }
+
+    public synchronized void endPhase(int phase) {
+        if (activeCount[phase] == 0) return;
+        if (--activeCount[phase] == 0) {
+            busyMs[phase] += SystemClock.elapsedRealtime() - activeSinceMs[phase];
+        }
+    }
+
+    public synchronized void setPreviewState(int state) {
+        if (!running) return;
+        long nowMs = SystemClock.elapsedRealtime();
+        previewMs[previewState] += nowMs - previewSinceMs;
+        previewSinceMs = nowMs;
+        previewState = state;
+    }
+
+    public void setFrameCount(int frameCount) {
+        this.frameCount = frameCount;
+    }
+
+    private final Runnable sampleRunnable = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (EnergyMonitor.this) {
+                if (!running) return;
+                sample();
+            }
+            handler.postDelayed(this, SAMPLE_INTERVAL_MS);
+        }
+    };
+
+    // Charge drawn since the last sample, split by the busy time of each phase in that interval
+    private void sample() {
+        long nowMs = SystemClock.elapsedRealtime();
+        long intervalMs = nowMs - lastSampleMs;
+        if (intervalMs <= 0) return;
+
+        double intervalMah = -1;
+        int currentUa = readCurrentUa();
+        if (currentUa != Integer.MIN_VALUE) {
+            // Sign conventions differ between devices; the magnitude is the draw
+            intervalMah = Math.abs((double) currentUa) * intervalMs / 3600000.0 / 1000.0;
+        }
+        int chargeUah = readChargeUah();
+        if (intervalMah < 0 && chargeUah != Integer.MIN_VALUE && lastChargeUah != Integer.MIN_VALUE) {
+            // No instantaneous current: fall back to the (coarser) charge counter
+            intervalMah = Math.max(0, lastChargeUah - chargeUah) / 1000.0;
+        }
+        lastChargeUah = chargeUah;
+
+        long[] phaseBusyMs = new long[2];
+        for (int phase = 0; phase < 2; phase++) {
+            if (activeCount[phase] > 0) {
+                busyMs[phase] += nowMs - activeSinceMs[phase];
+                activeSinceMs[phase] = nowMs;
+            }
+            phaseBusyMs[phase] = busyMs[phase];
+            busyMs[phase] = 0;
+        }
+        if (intervalMah > 0) {
+            double captureShare = Math.min(1.0, (double) phaseBusyMs[PHASE_CAPTURE] / intervalMs);
+            double compileShare = Math.min(1.0 - captureShare, (double) phaseBusyMs[PHASE_COMPILE] / intervalMs);
+            phaseMah[PHASE_CAPTURE] += intervalMah * captureShare;
+            phaseMah[PHASE_COMPILE] += intervalMah * compileShare;
+            phaseMah[PHASE_IDLE] += intervalMah * (1.0 - captureShare - compileShare);
+        }
+
+        readBatteryState();
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q && powerManager != null) {
+            maxThermalStatus = Math.max(maxThermalStatus, powerManager.getCurrentThermalStatus());
+        }
+        lastSampleMs = nowMs;
+        sampleCount++;
+    }
+
+    private int readCurrentUa() {
+        if (batteryManager == null) return Integer.MIN_VALUE;
+        int value = batteryManager.getIntProperty(BatteryManager.BATTERY_PROPERTY_CURRENT_NOW);
+        // 0 and MIN_VALUE both mean "not supported" on devices without a fuel gauge
+        return value == 0 ? Integer.MIN_VALUE : value;
+    }
+
+    private int readChargeUah() {
+        if (batteryManager == null) return Integer.MIN_VALUE;
+        int value = batteryManager.getIntProperty(BatteryManager.BATTERY_PROPERTY_CHARGE_COUNTER);
+        return value <= 0 ? Integer.MIN_VALUE : value;
+    }
+
+    // Sticky broadcast: temperature in tenths of a degree, and whether a charger is connected
+    private void readBatteryState() {
+        Intent battery = context.registerReceiver(null, new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+        if (battery == null) return;
+        int tenthsC = battery.getIntExtra(BatteryManager.EXTRA_TEMPERATURE, Integer.MIN_VALUE);
+        if (tenthsC != Integer.MIN_VALUE) {
+            float tempC = tenthsC / 10f;
+            maxBatteryTempC = Float.isNaN(maxBatteryTempC) ? tempC : Math.max(maxBatteryTempC, tempC);
+        }
+        if (battery.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0) != 0) {
+            pluggedIn = true;
+        }
+    }
+
+    public synchronized Report getReport() {
+        int frames = frameCount;
+        double totalMah = phaseMah[PHASE_CAPTURE] + phaseMah[PHASE_COMPILE] + phaseMah[PHASE_IDLE];
+        double outputSeconds = (double) frames / outputFrameRate;
+        return new Report(phaseMah[PHASE_CAPTURE], phaseMah[PHASE_COMPILE], phaseMah[PHASE_IDLE],
+                frames > 0 ? totalMah / frames : 0,
+                outputSeconds > 0 ? totalMah / outputSeconds : 0,
+                maxThermalStatus, maxBatteryTempC, pluggedIn);
+    }
+
+    // One line for the notification and the metrics log
+    public String getSummaryLine() {
+        Report report = getReport();
+        String line = String.format(Locale.US, "%.3f mAh/frame, %.1f mAh/s output", report.mahPerFrame, report.mahPerOutputSecond);
+        return report.pluggedIn ? line + " (charging)" : line;
+    }
+
+    // Writes <app files>/energy/<sessionName>.json; call after stop(). With a deferred render,
+    // the compile phase only covers segments compiled before the session was queued.
+    public void writeSummary(String sessionName, boolean renderDeferred) {
+        File dir = getSummaryDir(context);
+        if (!dir.exists() && !dir.mkdirs()) {
+            Log.e(TAG, "Failed to create " + dir);
+            return;
+        }
+        File file = new File(dir, sessionName + ".json");
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(toJson(renderDeferred).toString(2).getBytes(StandardCharsets.UTF_8));
+            Log.d(TAG, "Energy summary: " + getSummaryLine() + " -> " + file.getName());
+        } catch (Exception e) {
+            Log.e(TAG, "Error writing energy summary", e);
+        }
+    }
+
+    private synchronized JSONObject toJson(boolean renderDeferred) throws Exception {
+        Report report = getReport();
+        JSONObject json = new JSONObject();
+        json.put("captureMode", captureMode);
+        json.put("captureIntervalMs", captureIntervalMs);
+        json.put("outputFrameRate", outputFrameRate);
+        json.put("frames", frameCount);
+        json.put("durationMs", (running ? SystemClock.elapsedRealtime() : endMs) - startMs);
+        json.put("samples", sampleCount);
+        JSONObject phases = new JSONObject();
+        for (int phase = 0; phase < PHASE_NAMES.length; phase++) {
+            phases.put(PHASE_NAMES[phase], phaseMah[phase]);
+        }
+        json.put("mah", phases);
+        json.put("totalMah", report.getTotalMah());
+        json.put("mahPerFrame", report.mahPerFrame);
+        json.put("mahPerOutputSecond", report.mahPerOutputSecond);
+        if (startChargeUah != Integer.MIN_VALUE && lastChargeUah != Integer.MIN_VALUE) {
+            // Cross-check against the integrated current; coarse on most fuel gauges
+            json.put("chargeCounterDropMah", (startChargeUah - lastChargeUah) / 1000.0);
+        }
+        JSONObject preview = new JSONObject();
+        for (int state = 0; state < PREVIEW_NAMES.length; state++) {
+            preview.put(PREVIEW_NAMES[state], previewMs[state]);
+        }
+        json.put("previewMs", preview);
+        json.put("maxThermalStatus", maxThermalStatus);
+        if (!Float.isNaN(maxBatteryTempC)) {
+            json.put("startBatteryTempC", startBatteryTempC);
+            json.put("maxBatteryTempC", maxBatteryTempC);
+        }
+        json.put("pluggedIn", pluggedIn);
+        json.put("renderDeferred", renderDeferred);
+        return json;
+    }
+
+    // Summaries are written here, one file per session
+    public static File getSummaryDir(Context context) {
+        return new File(context.getExternalFilesDir(null), SUMMARY_DIR);
+    }
+}
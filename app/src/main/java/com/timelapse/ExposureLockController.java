@@ -0,0 +1,119 @@
+package com.timelapse;
+
+import android.hardware.camera2.CaptureRequest;
+import android.os.Handler;
+import android.util.Log;
+
+import androidx.camera.core.CameraControl;
+import androidx.camera.core.FocusMeteringAction;
+import androidx.camera.core.MeteringPoint;
+import androidx.camera.core.SurfaceOrientedMeteringPointFactory;
+
+// Lets AE/AF/AWB settle for a warm-up period, then locks them for the session so every
+// takePicture skips 3A convergence (shorter round-trips, no frame-to-frame flicker).
+// Relocks on a fixed schedule or when the scene brightness drifts away from the locked level.
+// All methods run on the handler's thread.
+public class ExposureLockController {
+
+    private static final String TAG = "ExposureLock";
+    private static final long WARMUP_MS = 3000; // Time for 3A to converge before locking
+    private static final long RELOCK_INTERVAL_MS = 10 * 60 * 1000; // Relock every 10 minutes
+    private static final float DRIFT_THRESHOLD = 0.25f; // Relative mean luma change that triggers a relock
+
+    private final CameraControl cameraControl;
+    private final CaptureRequestOverrides overrides;
+    private final Handler handler;
+
+    private boolean running = false;
+    private boolean locked = false;
+    private float lockedLuma = -1; // Scene luma measured right after locking
+
+    public ExposureLockController(CaptureRequestOverrides overrides, Handler handler) {
+        this.cameraControl = overrides.getCameraControl();
+        this.overrides = overrides;
+        this.handler = handler;
+    }
+
+    public void start() {
+        running = true;
+        relock();
+    }
+
+    public void stop() {
+        running = false;
+        handler.removeCallbacks(lockRunnable);
+        handler.removeCallbacks(relockRunnable);
+        unlock();
+    }
+
+    public boolean isLocked() {
+        return locked;
+    }
+
+    // Feed the mean luma (0-255) of each captured frame; may be called from any thread
+    public void onSceneLuma(final float meanLuma) {
+        handler.post(() -> {
+            if (!running || !locked) return;
+
+            if (lockedLuma < 0) {
+                lockedLuma = meanLuma;
+                return;
+            }
+            float drift = Math.abs(meanLuma - lockedLuma) / Math.max(lockedLuma, 1f);
+            if (drift > DRIFT_THRESHOLD) {
+                Log.d(TAG, "Scene brightness drifted " + Math.round(drift * 100) + "%, relocking");
+                relock();
+            }
+        });
+    }
+
+    private final Runnable lockRunnable = new Runnable() {
+        @Override
+        public void run() {
+            if (!running) return;
+            lock();
+            handler.postDelayed(relockRunnable, RELOCK_INTERVAL_MS);
+        }
+    };
+
+    private final Runnable relockRunnable = new Runnable() {
+        @Override
+        public void run() {
+            if (!running) return;
+            Log.d(TAG, "Scheduled relock");
+            relock();
+        }
+    };
+
+    private void relock() {
+        handler.removeCallbacks(lockRunnable);
+        handler.removeCallbacks(relockRunnable);
+        unlock();
+        handler.postDelayed(lockRunnable, WARMUP_MS);
+    }
+
+    private void lock() {
+        // Lock focus at the frame center; auto-cancel disabled keeps AF locked until we cancel
+        MeteringPoint center = new SurfaceOrientedMeteringPointFactory(1f, 1f).createPoint(0.5f, 0.5f);
+        cameraControl.startFocusAndMetering(
+                new FocusMeteringAction.Builder(center, FocusMeteringAction.FLAG_AF)
+                        .disableAutoCancel()
+                        .build());
+
+        overrides.set(CaptureRequest.CONTROL_AE_LOCK, true);
+        overrides.set(CaptureRequest.CONTROL_AWB_LOCK, true);
+
+        locked = true;
+        lockedLuma = -1;
+        Log.d(TAG, "AE/AF/AWB locked");
+    }
+
+    private void unlock() {
+        if (!locked) return;
+        cameraControl.cancelFocusAndMetering();
+        overrides.clear(CaptureRequest.CONTROL_AE_LOCK);
+        overrides.clear(CaptureRequest.CONTROL_AWB_LOCK);
+        locked = false;
+        Log.d(TAG, "AE/AF/AWB unlocked");
+    }
+}
@@ -0,0 +1,229 @@
+package com.timelapse;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+// Copies an MP4 with its moov box moved in front of the media data ("faststart"), so players
+// can start without seeking to the end of a multi-GB file. MediaMuxer writes moov last.
+// Only moov is read into memory (sample tables, a few MB at most); the media data is
+// streamed with FileChannel transfers. Chunk offsets (stco/co64) are shifted by the moved
+// box, and 32-bit stco tables are widened to co64 when the shift would overflow them.
+public class FastStart {
+
+    private static final String TAG = "FastStart";
+    private static final long MAX_MOOV_BYTES = 64L * 1024 * 1024;
+
+    private static final class Box {
+        final String type;
+        final long offset;
+        final long size;
+
+        Box(String type, long offset, long size) {
+            this.type = type;
+            this.offset = offset;
+            this.size = size;
+        }
+    }
+
+    private FastStart() {
+    }
+
+    // Copies src to dst, relocating moov if it follows the media data. Files that already
+    // start with moov, or can't be parsed, are copied unchanged. Returns true if moov was moved.
+    public static boolean copy(FileChannel src, FileChannel dst) throws IOException {
+        long fileSize = src.size();
+        List<Box> boxes = readTopLevelBoxes(src, fileSize);
+        Box moov = null;
+        Box firstMdat = null;
+        for (Box box : boxes) {
+            if (box.type.equals("moov") && moov == null) moov = box;
+            if (box.type.equals("mdat") && firstMdat == null) firstMdat = box;
+        }
+        if (moov == null || firstMdat == null || moov.offset < firstMdat.offset || moov.size > MAX_MOOV_BYTES) {
+            transfer(src, 0, fileSize, dst);
+            return false;
+        }
+
+        ByteBuffer original = ByteBuffer.allocate((int) moov.size);
+        readFully(src, original, moov.offset);
+        byte[] moovBytes = original.array();
+
+        // Moving moov to where the first mdat was shifts data before moov by the new moov size,
+        // and data after it by the growth of moov
+        long insertAt = firstMdat.offset;
+        byte[] patched = patchMoov(moovBytes, insertAt, moov, moov.size, false);
+        if (patched == null) {
+            byte[] widened = patchMoov(moovBytes, insertAt, moov, 0, true);
+            patched = patchMoov(moovBytes, insertAt, moov, widened.length, true);
+        }
+
+        transfer(src, 0, insertAt, dst);
+        ByteBuffer moovOut = ByteBuffer.wrap(patched);
+        while (moovOut.hasRemaining()) {
+            dst.write(moovOut);
+        }
+        transfer(src, insertAt, moov.offset - insertAt, dst);
+        long afterMoov = moov.offset + moov.size;
+        transfer(src, afterMoov, fileSize - afterMoov, dst);
+        Log.d(TAG, "Moved moov (" + patched.length + " bytes) ahead of " + (moov.offset - insertAt) + " bytes of media");
+        return true;
+    }
+
+    private static List<Box> readTopLevelBoxes(FileChannel channel, long fileSize) throws IOException {
+        List<Box> boxes = new ArrayList<>();
+        ByteBuffer header = ByteBuffer.allocate(16).order(ByteOrder.BIG_ENDIAN);
+        long offset = 0;
+        while (offset + 8 <= fileSize) {
+            header.clear().limit(8);
+            readFully(channel, header, offset);
+            long size = header.getInt(0) & 0xFFFFFFFFL;
+            String type = new String(header.array(), 4, 4, StandardCharsets.US_ASCII);
+            if (size == 1) {
+                header.clear().limit(8);
+                readFully(channel, header, offset + 8);
+                size = header.getLong(0);
+            } else if (size == 0) {
+                size = fileSize - offset; // Extends to the end of the file
+            }
+            if (size < 8 || offset + size > fileSize) {
+                break; // Truncated or not an MP4; callers fall back to a plain copy
+            }
+            boxes.add(new Box(type, offset, size));
+            offset += size;
+        }
+        return boxes;
+    }
+
+    // Rebuilds moov with chunk offsets relocated for a moov of newMoovSize bytes at insertAt.
+    // Returns null if a 32-bit table would overflow and widen is false.
+    private static byte[] patchMoov(byte[] moov, long insertAt, Box original, long newMoovSize, boolean widen) {
+        ByteBuffer out = ByteBuffer.allocate(moov.length * 2 + 64).order(ByteOrder.BIG_ENDIAN);
+        Relocation relocation = new Relocation(insertAt, original.offset, original.size, newMoovSize);
+        if (!rewriteBox(ByteBuffer.wrap(moov).order(ByteOrder.BIG_ENDIAN), 0, moov.length, out, relocation, widen)) {
+            return null;
+        }
+        byte[] result = new byte[out.position()];
+        System.arraycopy(out.array(), 0, result, 0, result.length);
+        return result;
+    }
+
+    private static final class Relocation {
+        final long insertAt;
+        final long moovOffset;
+        final long beforeShift;
+        final long afterShift;
+
+        Relocation(long insertAt, long moovOffset, long moovSize, long newMoovSize) {
+            this.insertAt = insertAt;
+            this.moovOffset = moovOffset;
+            this.beforeShift = newMoovSize;
+            this.afterShift = newMoovSize - moovSize;
+        }
+
+        long apply(long offset) {
+            if (offset < insertAt) return offset;
+            return offset < moovOffset ? offset + beforeShift : offset + afterShift;
+        }
+    }
+
+    private static boolean isContainer(String type) {
+        return type.equals("moov") || type.equals("trak") || type.equals("mdia")
+                || type.equals("minf") || type.equals("stbl");
+    }
+
+    // Copies the box at [start, start+size) of in to out, descending into the containers on the
+    // way to stbl and rewriting stco/co64; container sizes are recomputed as children change size
+    private static boolean rewriteBox(ByteBuffer in, int start, int size, ByteBuffer out,
+                                      Relocation relocation, boolean widen) {
+        int headerSize = 8;
+        String type = new String(in.array(), start + 4, 4, StandardCharsets.US_ASCII);
+        if ((in.getInt(start) & 0xFFFFFFFFL) == 1) {
+            headerSize = 16;
+        }
+
+        if (isContainer(type)) {
+            int sizePosition = out.position();
+            out.put(in.array(), start, headerSize);
+            int child = start + headerSize;
+            int end = start + size;
+            while (child + 8 <= end) {
+                int childSize = (int) (in.getInt(child) & 0xFFFFFFFFL);
+                if (childSize == 1) {
+                    childSize = (int) in.getLong(child + 8);
+                }
+                if (childSize < 8 || child + childSize > end) break;
+                if (!rewriteBox(in, child, childSize, out, relocation, widen)) {
+                    return false;
+                }
+                child += childSize;
+            }
+            long newSize = out.position() - sizePosition;
+            if (headerSize == 16) {
+                out.putLong(sizePosition + 8, newSize);
+            } else {
+                out.putInt(sizePosition, (int) newSize);
+            }
+            return true;
+        }
+
+        if (type.equals("stco")) {
+            int entries = in.getInt(start + 12);
+            if (widen) {
+                out.putInt(16 + entries * 8);
+                out.put("co64".getBytes(StandardCharsets.US_ASCII));
+                out.putInt(in.getInt(start + 8)); // Version and flags
+                out.putInt(entries);
+                for (int i = 0; i < entries; i++) {
+                    out.putLong(relocation.apply(in.getInt(start + 16 + i * 4) & 0xFFFFFFFFL));
+                }
+                return true;
+            }
+            out.put(in.array(), start, 16);
+            for (int i = 0; i < entries; i++) {
+                long offset = relocation.apply(in.getInt(start + 16 + i * 4) & 0xFFFFFFFFL);
+                if (offset > 0xFFFFFFFFL) {
+                    return false;
+                }
+                out.putInt((int) offset);
+            }
+            return true;
+        }
+
+        if (type.equals("co64")) {
+            int entries = in.getInt(start + 12);
+            out.put(in.array(), start, 16);
+            for (int i = 0; i < entries; i++) {
+                out.putLong(relocation.apply(in.getLong(start + 16 + i * 8)));
+            }
+            return true;
+        }
+
+        out.put(in.array(), start, size);
+        return true;
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if (read < 0) throw new IOException("Unexpected end of file");
+            position += read;
+        }
+    }
+
+    // transferTo may move less than asked (and at most 2 GB per call on some kernels)
+    static void transfer(FileChannel src, long position, long count, FileChannel dst) throws IOException {
+        long end = position + count;
+        while (position < end) {
+            long moved = src.transferTo(position, end - position, dst);
+            if (moved <= 0) throw new IOException("Transfer stalled at " + position);
+            position += moved;
+        }
+    }
+}
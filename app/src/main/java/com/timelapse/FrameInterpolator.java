@@ -0,0 +1,195 @@
+package com.timelapse;
+
+// Synthesizes output frames between two captured NV12 frames, so a recording can capture at
+// 1/CAPTURE_DIVISOR of the rate its speed setting needs and still fill every output slot.
+// MODE_BLEND cross-fades the two frames. MODE_MOTION also estimates one motion vector per
+// 16x16 luma block (a symmetric search on a 1/4-scale copy of the luma, so it costs a few
+// million operations per frame pair) and samples each frame along it; chroma is cross-faded.
+// Motion is estimated once per pair in setPair() and reused for every in-between of that pair.
+public class FrameInterpolator {
+
+    public static final int MODE_OFF = 0;
+    public static final int MODE_BLEND = 1;
+    public static final int MODE_MOTION = 2;
+
+    // Captures are this many output frames apart when interpolating
+    public static final int CAPTURE_DIVISOR = 2;
+    // Longer gaps (capture stalls) are only partly filled; the rest holds the earlier frame
+    private static final int MAX_IN_BETWEEN = CAPTURE_DIVISOR * 4 - 1;
+
+    private static final int BLOCK = 16; // Motion block size in full-resolution luma pixels
+    private static final int SCALE = 4; // Motion search runs on luma downscaled by this factor
+    private static final int SEARCH = 2; // Symmetric search radius at 1/4 scale: up to ±16 px of motion between frames
+    private static final int MOTION_PENALTY = 24; // SAD added per step of vector length, so noise doesn't move flat blocks
+
+    private final int mode;
+    private byte[] frameA;
+    private byte[] frameB;
+    private int width;
+    private int height;
+    private byte[] smallA;
+    private byte[] smallB;
+    private int smallWidth;
+    private int smallHeight;
+    private int blocksX;
+    private int blocksY;
+    private int[] halfVectorsX; // Per block, in 1/4-scale pixels: A is sampled at -h, B at +h
+    private int[] halfVectorsY;
+
+    public FrameInterpolator(int mode) {
+        this.mode = mode;
+    }
+
+    // Number of frames to synthesize between captures at prevUs and nextUs on the output grid
+    public static int getInBetweenCount(long prevUs, long nextUs, int frameRate) {
+        long frameDurationUs = 1000000L / frameRate;
+        long slots = Math.round((double) (nextUs - prevUs) / frameDurationUs);
+        return (int) Math.max(0, Math.min(MAX_IN_BETWEEN, slots - 1));
+    }
+
+    // Output timestamp of in-between k (1-based) of count between prevUs and nextUs
+    public static long getInBetweenTimeUs(long prevUs, long nextUs, int k, int count) {
+        return prevUs + (nextUs - prevUs) * k / (count + 1);
+    }
+
+    // First output timestamp of a segment whose first frame may be a lead-in: the previous
+    // segment's last frame, decoded only to interpolate towards this segment's first frame
+    public static long getSegmentStartUs(long[] presentationTimesUs, boolean leadIn, int frameRate) {
+        if (!leadIn || presentationTimesUs.length < 2) {
+            return presentationTimesUs[0];
+        }
+        int count = getInBetweenCount(presentationTimesUs[0], presentationTimesUs[1], frameRate);
+        return count > 0
+                ? getInBetweenTimeUs(presentationTimesUs[0], presentationTimesUs[1], 1, count)
+                : presentationTimesUs[1];
+    }
+
+    // The frames to interpolate between (NV12, width x height); they must stay unchanged until
+    // the in-betweens of this pair are done
+    public void setPair(byte[] a, byte[] b, int width, int height) {
+        this.frameA = a;
+        this.frameB = b;
+        if (mode != MODE_MOTION) return;
+
+        if (width != this.width || height != this.height || smallA == null) {
+            this.width = width;
+            this.height = height;
+            smallWidth = width / SCALE;
+            smallHeight = height / SCALE;
+            smallA = new byte[smallWidth * smallHeight];
+            smallB = new byte[smallWidth * smallHeight];
+            blocksX = (width + BLOCK - 1) / BLOCK;
+            blocksY = (height + BLOCK - 1) / BLOCK;
+            halfVectorsX = new int[blocksX * blocksY];
+            halfVectorsY = new int[blocksX * blocksY];
+        }
+        downscaleLuma(a, smallA);
+        downscaleLuma(b, smallB);
+        estimateMotion();
+    }
+
+    // Writes the frame at fraction t (0 < t < 1) of the way from A to B into out
+    public void interpolate(float t, byte[] out) {
+        int weightB = Math.round(t * 256);
+        int lumaSize = mode == MODE_MOTION ? width * height : 0;
+        if (mode == MODE_MOTION) {
+            interpolateLuma(t, weightB, out);
+        }
+        // Chroma (and luma without motion): cross-fade
+        byte[] a = frameA;
+        byte[] b = frameB;
+        int weightA = 256 - weightB;
+        for (int i = lumaSize; i < out.length; i++) {
+            out[i] = (byte) (((a[i] & 0xff) * weightA + (b[i] & 0xff) * weightB + 128) >> 8);
+        }
+    }
+
+    private void downscaleLuma(byte[] frame, byte[] small) {
+        int area = SCALE * SCALE;
+        for (int sy = 0; sy < smallHeight; sy++) {
+            for (int sx = 0; sx < smallWidth; sx++) {
+                int sum = 0;
+                int row = sy * SCALE * width + sx * SCALE;
+                for (int y = 0; y < SCALE; y++, row += width) {
+                    for (int x = 0; x < SCALE; x++) {
+                        sum += frame[row + x] & 0xff;
+                    }
+                }
+                small[sy * smallWidth + sx] = (byte) (sum / area);
+            }
+        }
+    }
+
+    // Symmetric block matching: for each block, the half-vector h minimizing the difference
+    // between A around (p - h) and B around (p + h), i.e. motion passing through the block at t = 0.5
+    private void estimateMotion() {
+        int smallBlock = BLOCK / SCALE;
+        for (int by = 0; by < blocksY; by++) {
+            for (int bx = 0; bx < blocksX; bx++) {
+                int originX = bx * smallBlock;
+                int originY = by * smallBlock;
+                int bestCost = Integer.MAX_VALUE;
+                int bestX = 0;
+                int bestY = 0;
+                for (int hy = -SEARCH; hy <= SEARCH; hy++) {
+                    for (int hx = -SEARCH; hx <= SEARCH; hx++) {
+                        if (originX - Math.abs(hx) < 0 || originY - Math.abs(hy) < 0
+                                || originX + smallBlock + Math.abs(hx) > smallWidth
+                                || originY + smallBlock + Math.abs(hy) > smallHeight) {
+                            continue;
+                        }
+                        int cost = (Math.abs(hx) + Math.abs(hy)) * MOTION_PENALTY;
+                        for (int y = 0; y < smallBlock && cost < bestCost; y++) {
+                            int rowA = (originY - hy + y) * smallWidth + originX - hx;
+                            int rowB = (originY + hy + y) * smallWidth + originX + hx;
+                            for (int x = 0; x < smallBlock; x++) {
+                                cost += Math.abs((smallA[rowA + x] & 0xff) - (smallB[rowB + x] & 0xff));
+                            }
+                        }
+                        if (cost < bestCost) {
+                            bestCost = cost;
+                            bestX = hx;
+                            bestY = hy;
+                        }
+                    }
+                }
+                halfVectorsX[by * blocksX + bx] = bestX;
+                halfVectorsY[by * blocksX + bx] = bestY;
+            }
+        }
+    }
+
+    // Each block samples A back along its motion and B forward, weighted by t
+    private void interpolateLuma(float t, int weightB, byte[] out) {
+        byte[] a = frameA;
+        byte[] b = frameB;
+        int weightA = 256 - weightB;
+        for (int by = 0; by < blocksY; by++) {
+            for (int bx = 0; bx < blocksX; bx++) {
+                // Full motion A -> B is twice the half-vector, in full-resolution pixels
+                int motionX = halfVectorsX[by * blocksX + bx] * 2 * SCALE;
+                int motionY = halfVectorsY[by * blocksX + bx] * 2 * SCALE;
+                int offsetAX = Math.round(-t * motionX);
+                int offsetAY = Math.round(-t * motionY);
+                int offsetBX = motionX + offsetAX;
+                int offsetBY = motionY + offsetAY;
+                int endY = Math.min(height, (by + 1) * BLOCK);
+                int endX = Math.min(width, (bx + 1) * BLOCK);
+                for (int y = by * BLOCK; y < endY; y++) {
+                    int rowA = clamp(y + offsetAY, height) * width;
+                    int rowB = clamp(y + offsetBY, height) * width;
+                    int rowOut = y * width;
+                    for (int x = bx * BLOCK; x < endX; x++) {
+                        int valueA = a[rowA + clamp(x + offsetAX, width)] & 0xff;
+                        int valueB = b[rowB + clamp(x + offsetBX, width)] & 0xff;
+                        out[rowOut + x] = (byte) ((valueA * weightA + valueB * weightB + 128) >> 8);
+                    }
+                }
+            }
+        }
+    }
+
+    private static int clamp(int value, int size) {
+        return value < 0 ? 0 : (value >= size ? size - 1 : value);
+    }
+}
@@ -0,0 +1,170 @@
+package com.timelapse;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+// Per-frame image statistics gathered by the RGB->YUV conversion in VideoCompiler while it
+// writes the Y plane, so no second pass over the pixels is needed.
+// Stored per segment as fixed-size binary records (RECORD_SIZE bytes per frame) in the session directory,
+// and merged into one file under app files when the session is rendered and its directory deleted.
+public class FrameStats {
+
+    private static final String TAG = "FrameStats";
+    public static final int HISTOGRAM_BINS = 32;
+    public static final int RECORD_SIZE = 8 + 4 + 4 + HISTOGRAM_BINS;
+    static final String FILE_PREFIX = "stats_";
+    private static final String ARCHIVE_DIR = "stats";
+    private static final float SOFT_FRACTION = 0.5f; // Sharpness below this share of the median looks soft
+
+    public final long presentationTimeUs;
+    public final float meanLuma; // 0-255
+    public final float sharpness; // Mean absolute luma gradient (horizontal + vertical); low means blur
+    public final byte[] histogram; // Share of pixels per luma bin, scaled so a full bin is 255
+
+    FrameStats(long presentationTimeUs, float meanLuma, float sharpness, byte[] histogram) {
+        this.presentationTimeUs = presentationTimeUs;
+        this.meanLuma = meanLuma;
+        this.sharpness = sharpness;
+        this.histogram = histogram;
+    }
+
+    // Filled in by the conversion kernel
+    static class Accumulator {
+        final int[] bins = new int[256];
+        long lumaSum;
+        long gradientSum;
+        int pixelCount;
+
+        void reset() {
+            Arrays.fill(bins, 0);
+            lumaSum = 0;
+            gradientSum = 0;
+            pixelCount = 0;
+        }
+
+        FrameStats toStats(long presentationTimeUs) {
+            byte[] histogram = new byte[HISTOGRAM_BINS];
+            int perBin = 256 / HISTOGRAM_BINS;
+            for (int bin = 0; bin < HISTOGRAM_BINS; bin++) {
+                long count = 0;
+                for (int i = bin * perBin; i < (bin + 1) * perBin; i++) {
+                    count += bins[i];
+                }
+                histogram[bin] = (byte) Math.min(255, Math.round(255.0 * count / Math.max(1, pixelCount)));
+            }
+            return new FrameStats(presentationTimeUs, (float) lumaSum / Math.max(1, pixelCount),
+                    (float) gradientSum / Math.max(1, pixelCount), histogram);
+        }
+    }
+
+    public void writeTo(DataOutputStream out) throws IOException {
+        out.writeLong(presentationTimeUs);
+        out.writeFloat(meanLuma);
+        out.writeFloat(sharpness);
+        out.write(histogram);
+    }
+
+    public static FrameStats readFrom(DataInputStream in) throws IOException {
+        long presentationTimeUs = in.readLong();
+        float meanLuma = in.readFloat();
+        float sharpness = in.readFloat();
+        byte[] histogram = new byte[HISTOGRAM_BINS];
+        in.readFully(histogram);
+        return new FrameStats(presentationTimeUs, meanLuma, sharpness, histogram);
+    }
+
+    // All statistics recorded in a session directory so far, in presentation order
+    public static List<FrameStats> readSession(File sessionDir) {
+        List<FrameStats> stats = new ArrayList<>();
+        File[] files = sessionDir.listFiles((dir, name) -> name.startsWith(FILE_PREFIX));
+        if (files == null) return stats;
+
+        for (File file : files) {
+            readFile(file, stats);
+        }
+        Collections.sort(stats, (a, b) -> Long.compare(a.presentationTimeUs, b.presentationTimeUs));
+        return stats;
+    }
+
+    // Statistics of a rendered session, kept by archiveSession(); empty if there are none
+    public static List<FrameStats> readArchive(Context context, String sessionName) {
+        List<FrameStats> stats = new ArrayList<>();
+        File file = getArchiveFile(context, sessionName);
+        if (file.exists()) {
+            readFile(file, stats);
+        }
+        return stats;
+    }
+
+    // Writes <app files>/stats/<session>.bin (next to the energy summaries) from the session
+    // directory's segment files; call before the directory is deleted
+    static void archiveSession(Context context, File sessionDir) {
+        List<FrameStats> stats = readSession(sessionDir);
+        if (stats.isEmpty()) return;
+        File file = getArchiveFile(context, sessionDir.getName());
+        File dir = file.getParentFile();
+        if (!dir.exists() && !dir.mkdirs()) {
+            Log.e(TAG, "Failed to create " + dir);
+            return;
+        }
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+            for (FrameStats frame : stats) {
+                frame.writeTo(out);
+            }
+            Log.d(TAG, "Kept statistics of " + stats.size() + " frames -> " + file.getName());
+        } catch (IOException e) {
+            Log.e(TAG, "Error writing " + file, e);
+        }
+    }
+
+    // One line for the finished-recording message, or null when no frame stands out as soft
+    public static String getSummaryLine(List<FrameStats> stats) {
+        if (stats.isEmpty()) return null;
+        float[] sharpness = new float[stats.size()];
+        for (int i = 0; i < sharpness.length; i++) {
+            sharpness[i] = stats.get(i).sharpness;
+        }
+        Arrays.sort(sharpness);
+        float threshold = sharpness[sharpness.length / 2] * SOFT_FRACTION;
+        int soft = 0;
+        while (soft < sharpness.length && sharpness[soft] < threshold) {
+            soft++;
+        }
+        return soft > 0 ? String.format(Locale.US, "%d of %d frames look soft", soft, sharpness.length) : null;
+    }
+
+    private static void readFile(File file, List<FrameStats> stats) {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            while (true) {
+                stats.add(readFrom(in));
+            }
+        } catch (EOFException e) {
+            // End of file (a partially written last record is dropped)
+        } catch (IOException e) {
+            Log.e(TAG, "Error reading " + file, e);
+        }
+    }
+
+    private static File getArchiveFile(Context context, String sessionName) {
+        return new File(new File(context.getExternalFilesDir(null), ARCHIVE_DIR), sessionName + ".bin");
+    }
+
+    static File getSegmentFile(File sessionDir, int segmentNumber) {
+        return new File(sessionDir, FILE_PREFIX + segmentNumber + ".bin");
+    }
+}
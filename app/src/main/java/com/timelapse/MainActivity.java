@@ -1,6 +1,7 @@
 package com.timelapse;
 
 import android.Manifest;
+import android.content.ClipData;
 import android.content.ComponentName;
 import android.content.Context;
 import android.content.DialogInterface;
@@ -8,19 +9,25 @@ import android.content.Intent;
 import android.content.ServiceConnection;
 import android.content.SharedPreferences;
 import android.content.pm.PackageManager;
+import android.net.Uri;
 import android.os.Build;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.IBinder;
 import android.os.Looper;
 import android.provider.Settings;
+import android.hardware.camera2.CameraCharacteristics;
+import android.hardware.camera2.CaptureRequest;
+import android.os.SystemClock;
 import android.util.Log;
+import android.util.Range;
 import android.util.Size;
 import android.view.MotionEvent;
 import android.view.ScaleGestureDetector;
 import android.view.View;
 import android.view.WindowManager;
 import android.widget.Button;
+import android.widget.ImageView;
 import android.widget.SeekBar;
 import android.widget.TextView;
 import android.widget.Toast;
@@ -28,24 +35,37 @@ import android.widget.Toast;
 import androidx.appcompat.app.AlertDialog;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.OptIn;
 import androidx.appcompat.app.AppCompatActivity;
+import androidx.camera.camera2.interop.Camera2CameraInfo;
+import androidx.camera.camera2.interop.ExperimentalCamera2Interop;
 import androidx.camera.core.Camera;
 import androidx.camera.core.CameraControl;
+import androidx.camera.core.CameraInfo;
 import androidx.camera.core.CameraSelector;
+import androidx.camera.core.ImageAnalysis;
 import androidx.camera.core.ImageCapture;
 import androidx.camera.core.Preview;
+import androidx.camera.core.ResolutionInfo;
 import androidx.camera.lifecycle.ProcessCameraProvider;
 import androidx.camera.view.PreviewView;
 import androidx.core.app.ActivityCompat;
 import androidx.core.content.ContextCompat;
+import androidx.lifecycle.Observer;
 
 import com.google.common.util.concurrent.ListenableFuture;
 
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.ExecutionException;
 
 public class MainActivity extends AppCompatActivity {
 
     private static final int REQUEST_CAMERA_PERMISSION = 100;
+    private static final int REQUEST_IMPORT_FOLDER = 101;
+    private static final int REQUEST_IMPORT_IMAGES = 102;
+    private static final int REQUEST_IMPORT_VIDEO = 103;
 
     private String[] getRequiredPermissions() {
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.TIRAMISU) {
@@ -71,11 +91,16 @@ public class MainActivity extends AppCompatActivity {
     private TextView settingsIcon;
     private SeekBar speedSeekBar;
     private SeekBar zoomSeekBar;
+    private ImageView proxyPreview;
+    private ProxyPreviewPlayer proxyPreviewPlayer;
 
     private ProcessCameraProvider cameraProvider;
     private ImageCapture imageCapture;
+    private ImageAnalysis imageAnalysis;
     private Camera camera;
     private CameraControl cameraControl;
+    private CaptureRequestOverrides captureOverrides;
+    private Range<Integer>[] aeFpsRanges; // AE target FPS ranges the camera supports, null if unknown
     private TimeLapseService timeLapseService;
     private boolean serviceBound = false;
     private boolean isRecording = false;
@@ -92,10 +117,48 @@ public class MainActivity extends AppCompatActivity {
     private SharedPreferences preferences;
     private static final String PREF_RESOLUTION = "video_resolution";
     private static final String PREF_TIMESTAMP = "show_timestamp";
+    private static final String PREF_UPRIGHT_PIXELS = "upright_pixels";
+    private static final String PREF_OVERLAY_ELAPSED = "overlay_elapsed";
+    private static final String PREF_OVERLAY_FRAME_NUMBER = "overlay_frame_number";
+    private static final String PREF_OVERLAY_LOGO = "overlay_logo";
+    private static final String PREF_STREAM_CAPTURE = "stream_capture";
+    private static final String PREF_LOCK_3A = "lock_3a";
+    private static final String PREF_LOW_POWER_PREVIEW = "low_power_preview";
+    private static final String PREF_SHARE_COPY = "share_copy";
+    private static final String PREF_ALL_INTRA = "all_intra";
+    private static final String PREF_OUTPUT_FPS = "output_fps";
+    private static final String PREF_VARIABLE_FRAME_RATE = "variable_frame_rate";
+    private static final String PREF_DEFER_RENDERING = "defer_rendering";
+    private static final String PREF_STABILIZE = "stabilize";
+    private static final String PREF_REFRAME = "reframe";
+    private static final String PREF_PRE_ROLL = "pre_roll_frames";
+    private static final String PREF_INTERPOLATE = "interpolate_frames";
+    private static final String PREF_MOTION_INTERPOLATION = "motion_interpolation";
+    private static final String PREF_REVIEW_BEFORE_RENDER = "review_before_render";
     private static final String[] RESOLUTIONS = {"720p", "1080p", "1440p", "4K"};
     private static final int[] RESOLUTION_HEIGHTS = {720, 1080, 1440, 2160};
     private int selectedResolutionIndex = 1; // Default to 1080p
     private boolean showTimestamp = false;
+    private boolean uprightPixels = false; // Rotate pixels for players that ignore the orientation hint
+    private boolean overlayElapsed = false; // Real time since the recording started
+    private boolean overlayFrameNumber = false;
+    private boolean overlayLogo = false;
+    private boolean interpolateFrames = false; // Capture at half the rate and synthesize the frames in between
+    private boolean motionInterpolation = false; // Motion-compensated instead of plain blended in-betweens
+    private boolean reviewBeforeRender = false; // Trim and drop frames in ReviewActivity before anything is compiled
+    private boolean streamCapture = false; // Sample frames from a YUV stream instead of still captures
+    private boolean lock3A = false; // Lock exposure/focus/white balance after warm-up
+    private boolean lowPowerPreview = true; // Throttle the preview instead of unbinding it
+    private boolean previewThrottled = false; // Current disabled state came from throttling, not unbinding
+    private boolean shareCopy = false; // Also save a 720p copy encoded from the same frames
+    private boolean allIntra = false; // Keyframe-only encoding for frame-accurate re-export trims
+    private String lastVideoPath; // Most recent finished video, offered for re-export
+    private int outputFrameRate = VideoCompiler.DEFAULT_FRAME_RATE;
+    private boolean variableFrameRate = false; // Exact capture timing instead of a fixed frame grid
+    private boolean deferRendering = false; // Render finished sessions later, while charging
+    private boolean stabilize = false; // Remove handheld/wind jitter while compiling
+    private String reframe = Reframe.FULL; // Output crop or pan/zoom preset
+    private int preRollFrames = 0; // Frames kept while idle and prepended to the next recording
 
     // Zoom
     private float currentZoom = 5.0f; // Default to 5x zoom
@@ -119,6 +182,41 @@ public class MainActivity extends AppCompatActivity {
         }
     };
 
+    // Delivered on the main thread at the bus's coalesced rate, only while the activity is visible
+    private final ProgressBus.Subscriber progressSubscriber = new ProgressBus.Subscriber() {
+        @Override
+        public void onProgress(ProgressBus.Progress progress) {
+            if (isRecording) {
+                frameCountText.setText(String.valueOf(progress.frameCount));
+            }
+        }
+    };
+
+    // Deferred render queue updates arrive on the render worker thread
+    private final DeferredJobQueue.Listener deferredListener = new DeferredJobQueue.Listener() {
+        @Override
+        public void onQueueChanged(int pendingCount) {
+            runOnUiThread(() -> showDeferredStatus(pendingCount));
+        }
+
+        @Override
+        public void onRenderProgress(int step, int totalSteps) {
+            runOnUiThread(() -> {
+                if (!isRecording) {
+                    statusText.setText("Rendering queued video: step " + step + "/" + totalSteps);
+                }
+            });
+        }
+
+        @Override
+        public void onRenderCompleted(String videoPath) {
+            runOnUiThread(() -> {
+                lastVideoPath = videoPath;
+                Toast.makeText(MainActivity.this, "Queued video saved to gallery", Toast.LENGTH_SHORT).show();
+            });
+        }
+    };
+
     private ServiceConnection serviceConnection = new ServiceConnection() {
         @Override
         public void onServiceConnected(ComponentName name, IBinder service) {
@@ -126,12 +224,11 @@ public class MainActivity extends AppCompatActivity {
             timeLapseService = binder.getService();
             serviceBound = true;
 
-            timeLapseService.setFrameCountCallback(new TimeLapseService.FrameCountCallback() {
-                @Override
-                public void onFrameCountUpdated(int count) {
-                    runOnUiThread(() -> frameCountText.setText(String.valueOf(count)));
-                }
-            });
+            timeLapseService.getProgressBus().subscribe(progressSubscriber);
+            timeLapseService.getDeferredQueue().addListener(deferredListener);
+            timeLapseService.getDeferredQueue().ensureScheduled();
+            showDeferredStatus(timeLapseService.getDeferredQueue().getPendingCount());
+            updatePreRoll();
         }
 
         @Override
@@ -152,6 +249,24 @@ public class MainActivity extends AppCompatActivity {
         preferences = getSharedPreferences("TimeLapsePrefs", Context.MODE_PRIVATE);
         selectedResolutionIndex = preferences.getInt(PREF_RESOLUTION, 1); // Default to 1080p
         showTimestamp = preferences.getBoolean(PREF_TIMESTAMP, false);
+        uprightPixels = preferences.getBoolean(PREF_UPRIGHT_PIXELS, false);
+        overlayElapsed = preferences.getBoolean(PREF_OVERLAY_ELAPSED, false);
+        overlayFrameNumber = preferences.getBoolean(PREF_OVERLAY_FRAME_NUMBER, false);
+        overlayLogo = preferences.getBoolean(PREF_OVERLAY_LOGO, false);
+        interpolateFrames = preferences.getBoolean(PREF_INTERPOLATE, false);
+        motionInterpolation = preferences.getBoolean(PREF_MOTION_INTERPOLATION, false);
+        reviewBeforeRender = preferences.getBoolean(PREF_REVIEW_BEFORE_RENDER, false);
+        streamCapture = preferences.getBoolean(PREF_STREAM_CAPTURE, false);
+        lock3A = preferences.getBoolean(PREF_LOCK_3A, false);
+        lowPowerPreview = preferences.getBoolean(PREF_LOW_POWER_PREVIEW, true);
+        shareCopy = preferences.getBoolean(PREF_SHARE_COPY, false);
+        allIntra = preferences.getBoolean(PREF_ALL_INTRA, false);
+        outputFrameRate = preferences.getInt(PREF_OUTPUT_FPS, VideoCompiler.DEFAULT_FRAME_RATE);
+        variableFrameRate = preferences.getBoolean(PREF_VARIABLE_FRAME_RATE, false);
+        deferRendering = preferences.getBoolean(PREF_DEFER_RENDERING, false);
+        stabilize = preferences.getBoolean(PREF_STABILIZE, false);
+        reframe = preferences.getString(PREF_REFRAME, Reframe.FULL);
+        preRollFrames = preferences.getInt(PREF_PRE_ROLL, 0);
 
         // Initialize UI elements
         viewFinder = findViewById(R.id.viewFinder);
@@ -164,6 +279,8 @@ public class MainActivity extends AppCompatActivity {
         settingsIcon = findViewById(R.id.settingsIcon);
         speedSeekBar = findViewById(R.id.speedSeekBar);
         zoomSeekBar = findViewById(R.id.zoomSeekBar);
+        proxyPreview = findViewById(R.id.proxyPreview);
+        proxyPreviewPlayer = new ProxyPreviewPlayer(proxyPreview);
 
         // Set initial resolution text
         resolutionText.setText(RESOLUTIONS[selectedResolutionIndex]);
@@ -178,6 +295,27 @@ public class MainActivity extends AppCompatActivity {
         // Settings icon click listener
         settingsIcon.setOnClickListener(v -> showResolutionDialog());
 
+        // Long-press the settings icon to build a video from existing images or a long video
+        settingsIcon.setOnLongClickListener(v -> {
+            showImportDialog();
+            return true;
+        });
+
+        // Long-press the live preview to export a quick low-res video
+        proxyPreview.setOnLongClickListener(v -> {
+            exportProxyVideo();
+            return true;
+        });
+
+        // Tap the status text to manage renders queued for charging
+        statusText.setOnClickListener(v -> showDeferredDialog());
+
+        // Long-press the status text to re-export the last video at another speed or length
+        statusText.setOnLongClickListener(v -> {
+            showRetimeDialog();
+            return true;
+        });
+
         // Set up touch listener for the entire view to handle touch-to-brighten and re-enable preview
         View rootView = findViewById(android.R.id.content);
         rootView.setOnTouchListener(new View.OnTouchListener() {
@@ -218,7 +356,9 @@ public class MainActivity extends AppCompatActivity {
             public void onStartTrackingTouch(SeekBar seekBar) {}
 
             @Override
-            public void onStopTrackingTouch(SeekBar seekBar) {}
+            public void onStopTrackingTouch(SeekBar seekBar) {
+                updatePreRoll(); // Pre-roll frames are kept at the new capture interval
+            }
         });
 
         // Zoom SeekBar listener
@@ -302,14 +442,37 @@ public class MainActivity extends AppCompatActivity {
             Intent intent = new Intent(this, TimeLapseService.class);
             bindService(intent, serviceConnection, Context.BIND_AUTO_CREATE);
         }
+        if (serviceBound) {
+            timeLapseService.getProgressBus().subscribe(progressSubscriber);
+            timeLapseService.getProgressBus().flush();
+            timeLapseService.getDeferredQueue().addListener(deferredListener);
+        }
+        if (isRecording && !previewDisabled && serviceBound) {
+            proxyPreviewPlayer.start(timeLapseService.getProxyStore());
+        }
+        prewarmEncoder(); // Released in onStop; no-op until the camera is bound
+        updatePreRoll();
     }
 
     @Override
     protected void onStop() {
         super.onStop();
-        // Don't unbind service if recording is in progress
+        proxyPreviewPlayer.stop();
+        if (!isRecording) {
+            // Don't hold an encoder instance or pre-roll captures while in the background
+            EncoderCapabilities.releasePrewarmed();
+            if (serviceBound) {
+                timeLapseService.stopPreRoll();
+            }
+        }
+        // Nobody is looking, so stop UI progress delivery entirely
+        if (serviceBound) {
+            timeLapseService.getProgressBus().unsubscribe(progressSubscriber);
+            timeLapseService.getDeferredQueue().removeListener(deferredListener);
+        }
+        // Don't unbind service if recording is in progress or a stopped session is still finishing
         // This allows recording to continue when screen is off
-        if (serviceBound && !isRecording) {
+        if (serviceBound && !isRecording && timeLapseService.getFinishingSessionCount() == 0) {
             unbindService(serviceConnection);
             serviceBound = false;
         }
@@ -338,11 +501,6 @@ public class MainActivity extends AppCompatActivity {
         int targetHeight = (targetWidth * 16) / 9;
         Size targetResolution = new Size(targetWidth, targetHeight);
 
-        imageCapture = new ImageCapture.Builder()
-                .setCaptureMode(ImageCapture.CAPTURE_MODE_MINIMIZE_LATENCY)
-                .setTargetResolution(targetResolution)
-                .build();
-
         CameraSelector cameraSelector = CameraSelector.DEFAULT_BACK_CAMERA;
 
         preview.setSurfaceProvider(viewFinder.getSurfaceProvider());
@@ -351,14 +509,84 @@ public class MainActivity extends AppCompatActivity {
         cameraProvider.unbindAll();
 
         // Bind and get camera control
-        camera = cameraProvider.bindToLifecycle(this, cameraSelector, preview, imageCapture);
+        if (streamCapture) {
+            // Continuous YUV stream, sampled by the service at the capture interval
+            imageCapture = null;
+            imageAnalysis = new ImageAnalysis.Builder()
+                    .setTargetResolution(targetResolution)
+                    .setBackpressureStrategy(ImageAnalysis.STRATEGY_KEEP_ONLY_LATEST)
+                    .setOutputImageFormat(ImageAnalysis.OUTPUT_IMAGE_FORMAT_YUV_420_888)
+                    .build();
+            camera = cameraProvider.bindToLifecycle(this, cameraSelector, preview, imageAnalysis);
+        } else {
+            imageAnalysis = null;
+            imageCapture = new ImageCapture.Builder()
+                    .setCaptureMode(ImageCapture.CAPTURE_MODE_MINIMIZE_LATENCY)
+                    .setTargetResolution(targetResolution)
+                    .build();
+            camera = cameraProvider.bindToLifecycle(this, cameraSelector, preview, imageCapture);
+        }
         cameraControl = camera.getCameraControl();
+        captureOverrides = new CaptureRequestOverrides(cameraControl);
+        aeFpsRanges = readAeFpsRanges(camera.getCameraInfo());
 
         // Apply default 5x zoom
         float linearZoom = (currentZoom - 1.0f) / 9.0f; // Convert 5x to linear scale
         cameraControl.setLinearZoom(linearZoom);
 
-        Log.d("MainActivity", "Camera bound with target resolution: " + targetWidth + "x" + targetHeight + " (portrait 9:16), zoom: " + currentZoom + "x");
+        Log.d("MainActivity", "Camera bound with target resolution: " + targetWidth + "x" + targetHeight + " (portrait 9:16), zoom: " + currentZoom + "x, "
+                + (streamCapture ? "stream capture" : "still capture"));
+        prewarmEncoder();
+        updatePreRoll();
+    }
+
+    private int getOverlayLayers() {
+        return (showTimestamp ? OverlayCompositor.LAYER_CLOCK : 0)
+                | (overlayElapsed ? OverlayCompositor.LAYER_ELAPSED : 0)
+                | (overlayFrameNumber ? OverlayCompositor.LAYER_FRAME_NUMBER : 0)
+                | (overlayLogo ? OverlayCompositor.LAYER_LOGO : 0);
+    }
+
+    private int getInterpolationMode() {
+        if (!interpolateFrames) return FrameInterpolator.MODE_OFF;
+        return motionInterpolation ? FrameInterpolator.MODE_MOTION : FrameInterpolator.MODE_BLEND;
+    }
+
+    // Keep the last frames while idle, so the recording can begin before the button was pressed
+    private void updatePreRoll() {
+        if (!serviceBound || isRecording) {
+            return;
+        }
+        timeLapseService.setOutputTiming(outputFrameRate, variableFrameRate); // Sets the capture interval
+        timeLapseService.startPreRoll(imageCapture, imageAnalysis, speedMultiplier, preRollFrames);
+    }
+
+    // Set up the first segment's encoders while the user frames the shot, sized for the
+    // resolution CameraX actually chose exactly as the compile path sizes them (framing, rotated
+    // pixels, share copy). Not while recording: it would hold an extra instance.
+    private void prewarmEncoder() {
+        if (isRecording) {
+            return;
+        }
+        ResolutionInfo resolutionInfo = streamCapture
+                ? (imageAnalysis != null ? imageAnalysis.getResolutionInfo() : null)
+                : (imageCapture != null ? imageCapture.getResolutionInfo() : null);
+        if (resolutionInfo == null) {
+            return;
+        }
+        int width = resolutionInfo.getCropRect().width();
+        int height = resolutionInfo.getCropRect().height();
+        int rotationDegrees = resolutionInfo.getRotationDegrees();
+        Reframe reframer = streamCapture ? null : Reframe.forPreset(reframe);
+        if (reframer != null) {
+            int[] size = reframer.getOutputSize(width, height, rotationDegrees);
+            width = size[0];
+            height = size[1];
+        }
+        // Still captures with rotated pixels are encoded upright, as compileImagesToVideo does
+        boolean swap = !streamCapture && uprightPixels && (rotationDegrees == 90 || rotationDegrees == 270);
+        EncoderCapabilities.prewarm(this, swap ? height : width, swap ? width : height,
+                Rendition.forSession(shareCopy), outputFrameRate, allIntra ? 0 : VideoCompiler.I_FRAME_INTERVAL);
     }
 
     private void toggleRecording() {
@@ -375,17 +603,30 @@ public class MainActivity extends AppCompatActivity {
     }
 
     private void startRecording() {
-        if (imageCapture != null && timeLapseService.startRecording(imageCapture, speedMultiplier, showTimestamp)) {
+        if (serviceBound) {
+            timeLapseService.setAllIntraSegments(allIntra);
+            timeLapseService.setOutputTiming(outputFrameRate, variableFrameRate);
+            timeLapseService.setDeferRendering(deferRendering);
+            timeLapseService.setStabilization(stabilize);
+            timeLapseService.setReframe(reframe);
+            timeLapseService.setInterpolation(getInterpolationMode());
+            timeLapseService.setReviewBeforeRender(reviewBeforeRender);
+            timeLapseService.setUprightPixels(uprightPixels);
+        }
+        if ((imageCapture != null || imageAnalysis != null)
+                && timeLapseService.startRecording(imageCapture, imageAnalysis, captureOverrides, speedMultiplier, getOverlayLayers(), lock3A, shareCopy)) {
             isRecording = true;
             recordButton.setText(getString(R.string.stop_recording));
             recordButton.setBackgroundTintList(ContextCompat.getColorStateList(this, android.R.color.holo_green_dark));
-            statusText.setText("Recording at " + speedMultiplier + "x speed - " + RESOLUTIONS[selectedResolutionIndex] + "\nPreview will disable after 20s • Tap to re-enable");
+            statusText.setText("Recording at " + speedMultiplier + "x speed - " + RESOLUTIONS[selectedResolutionIndex] + "\nPreview will " + (lowPowerPreview ? "slow down" : "disable") + " after 20s • Tap to re-enable");
             speedSeekBar.setEnabled(false);
             zoomSeekBar.setEnabled(false);
 
             // Schedule screen dimming after 10 seconds and preview disable after 20 seconds
             scheduleDimming();
             schedulePreviewDisable();
+
+            proxyPreviewPlayer.start(timeLapseService.getProxyStore());
         } else {
             Toast.makeText(this, "Failed to start recording", Toast.LENGTH_SHORT).show();
         }
@@ -409,27 +650,29 @@ public class MainActivity extends AppCompatActivity {
         // Cancel any pending dimming and preview disable
         dimHandler.removeCallbacks(dimScreenRunnable);
         dimHandler.removeCallbacks(disablePreviewRunnable);
+        proxyPreviewPlayer.stop();
 
-        statusText.setText(getString(R.string.processing));
+        // The session finishes in the background, so the UI is ready for the next recording now
+        final String sessionName = timeLapseService.getRecordingName();
         timeLapseService.stopRecording(new TimeLapseService.VideoCompletionCallback() {
             @Override
             public void onVideoCompleted(String videoPath) {
+                // Called off the main thread, so the kept statistics are read here
+                String softFrames = videoPath != null && sessionName != null
+                        ? FrameStats.getSummaryLine(FrameStats.readArchive(MainActivity.this, sessionName))
+                        : null;
                 runOnUiThread(() -> {
-                    isRecording = false;
-                    recordButton.setText(getString(R.string.start_recording));
-                    recordButton.setBackgroundTintList(ContextCompat.getColorStateList(MainActivity.this, android.R.color.holo_red_dark));
-                    statusText.setText("Video saved to gallery!");
-                    frameCountText.setText("0");
-                    speedSeekBar.setEnabled(true);
-                    zoomSeekBar.setEnabled(true);
-
-                    // Restore screen brightness and preview
-                    restoreScreenBrightness();
-                    screenIsDimmed = false;
-                    if (previewDisabled) {
-                        enableCameraPreview();
-                        previewDisabled = false;
+                    String message;
+                    if (videoPath != null) {
+                        lastVideoPath = videoPath;
+                        message = "Video saved to gallery!" + (softFrames != null ? " (" + softFrames + ")" : "")
+                                + "\nLong-press here to re-export";
+                    } else if (reviewBeforeRender && !streamCapture) {
+                        message = "Recording saved for review\nTap here to trim it before rendering";
+                    } else {
+                        message = "Recording saved. Video will render while charging\nTap here for options";
                     }
+                    showSessionResult(message);
                 });
             }
 
@@ -437,20 +680,38 @@ public class MainActivity extends AppCompatActivity {
             public void onError(String error) {
                 runOnUiThread(() -> {
                     Toast.makeText(MainActivity.this, "Error: " + error, Toast.LENGTH_LONG).show();
-                    statusText.setText("");
-                    speedSeekBar.setEnabled(true);
-                    zoomSeekBar.setEnabled(true);
-
-                    // Restore screen brightness and preview
-                    restoreScreenBrightness();
-                    screenIsDimmed = false;
-                    if (previewDisabled) {
-                        enableCameraPreview();
-                        previewDisabled = false;
+                    if (!isRecording) {
+                        statusText.setText("");
                     }
                 });
             }
         });
+
+        isRecording = false;
+        recordButton.setText(getString(R.string.start_recording));
+        recordButton.setBackgroundTintList(ContextCompat.getColorStateList(this, android.R.color.holo_red_dark));
+        statusText.setText(getString(R.string.processing));
+        frameCountText.setText("0");
+        speedSeekBar.setEnabled(true);
+        zoomSeekBar.setEnabled(true);
+
+        // Restore screen brightness and preview
+        restoreScreenBrightness();
+        screenIsDimmed = false;
+        if (previewDisabled) {
+            enableCameraPreview();
+            previewDisabled = false;
+        }
+        updatePreRoll();
+    }
+
+    // A previous session finished; don't overwrite the status of a recording started since
+    private void showSessionResult(String message) {
+        if (isRecording) {
+            Toast.makeText(this, message.substring(0, message.indexOf('\n')), Toast.LENGTH_LONG).show();
+        } else {
+            statusText.setText(message);
+        }
     }
 
     private boolean allPermissionsGranted() {
@@ -495,12 +756,61 @@ public class MainActivity extends AppCompatActivity {
         Log.d("MainActivity", "Screen brightness restored");
     }
 
+    @OptIn(markerClass = ExperimentalCamera2Interop.class)
+    private Range<Integer>[] readAeFpsRanges(CameraInfo cameraInfo) {
+        try {
+            return Camera2CameraInfo.from(cameraInfo)
+                    .getCameraCharacteristic(CameraCharacteristics.CONTROL_AE_AVAILABLE_TARGET_FPS_RANGES);
+        } catch (Exception e) {
+            Log.e("MainActivity", "Error reading AE FPS ranges", e);
+            return null;
+        }
+    }
+
+    // The throttle applies to every request of the session, not just the preview, so the
+    // slowest range must still deliver a frame per capture interval (the analysis stream
+    // samples from the same frames). On ties the lowest lower bound leaves still captures the
+    // most exposure headroom. Null if no range fits; the preview is then unbound instead.
+    private Range<Integer> findLowPowerFpsRange() {
+        if (aeFpsRanges == null) return null;
+        int captureStepMs = Math.max(1, Math.round(1000f * speedMultiplier / outputFrameRate));
+        if (interpolateFrames) {
+            captureStepMs *= FrameInterpolator.CAPTURE_DIVISOR;
+        }
+        int requiredFps = (1000 + captureStepMs - 1) / captureStepMs;
+        Range<Integer> lowest = null;
+        for (Range<Integer> range : aeFpsRanges) {
+            if (range.getUpper() < requiredFps) continue;
+            if (lowest == null || range.getUpper() < lowest.getUpper()
+                    || (range.getUpper().equals(lowest.getUpper()) && range.getLower() < lowest.getLower())) {
+                lowest = range;
+            }
+        }
+        return lowest;
+    }
+
     private void disableCameraPreview() {
+        Range<Integer> lowPowerFpsRange = lowPowerPreview ? findLowPowerFpsRange() : null;
+        if (captureOverrides != null && lowPowerFpsRange != null) {
+            // Keep the preview bound and only lower the repeating request's frame rate.
+            // No session reconfiguration, so in-flight captures are not stalled.
+            captureOverrides.set(CaptureRequest.CONTROL_AE_TARGET_FPS_RANGE, lowPowerFpsRange);
+            previewDisabled = true;
+            previewThrottled = true;
+            proxyPreviewPlayer.stop();
+            reportPreviewState(EnergyMonitor.PREVIEW_THROTTLED);
+            Log.d("MainActivity", "Camera preview throttled to " + lowPowerFpsRange + " fps to save battery");
+            return;
+        }
+
         if (cameraProvider != null && preview != null) {
             try {
                 // Unbind only the preview, keep imageCapture bound
                 cameraProvider.unbind(preview);
                 previewDisabled = true;
+                previewThrottled = false;
+                proxyPreviewPlayer.stop();
+                reportPreviewState(EnergyMonitor.PREVIEW_OFF);
                 Log.d("MainActivity", "Camera preview disabled to save battery");
             } catch (Exception e) {
                 Log.e("MainActivity", "Error disabling preview", e);
@@ -509,20 +819,264 @@ public class MainActivity extends AppCompatActivity {
     }
 
     private void enableCameraPreview() {
-        if (cameraProvider != null && preview != null && previewDisabled) {
+        if (!previewDisabled) {
+            return;
+        }
+        final long restoreStartMs = SystemClock.elapsedRealtime();
+
+        if (previewThrottled) {
+            // Back to the camera's default rate; time until the new repeating request is active
+            captureOverrides.clear(CaptureRequest.CONTROL_AE_TARGET_FPS_RANGE).addListener(() ->
+                    Log.d("MainActivity", "Preview restored in " + (SystemClock.elapsedRealtime() - restoreStartMs) + "ms (throttled mode)"),
+                    ContextCompat.getMainExecutor(this));
+            previewDisabled = false;
+            previewThrottled = false;
+            onPreviewEnabled();
+            return;
+        }
+
+        if (cameraProvider != null && preview != null) {
             try {
-                // Re-bind the preview
+                // Re-bind the preview; time until frames are streaming again
                 CameraSelector cameraSelector = CameraSelector.DEFAULT_BACK_CAMERA;
                 preview.setSurfaceProvider(viewFinder.getSurfaceProvider());
                 cameraProvider.bindToLifecycle(this, cameraSelector, preview);
                 previewDisabled = false;
-                Log.d("MainActivity", "Camera preview re-enabled");
+                viewFinder.getPreviewStreamState().observe(this, new Observer<PreviewView.StreamState>() {
+                    @Override
+                    public void onChanged(PreviewView.StreamState state) {
+                        if (state == PreviewView.StreamState.STREAMING) {
+                            Log.d("MainActivity", "Preview restored in " + (SystemClock.elapsedRealtime() - restoreStartMs) + "ms (rebind mode)");
+                            viewFinder.getPreviewStreamState().removeObserver(this);
+                        }
+                    }
+                });
+                onPreviewEnabled();
             } catch (Exception e) {
                 Log.e("MainActivity", "Error enabling preview", e);
             }
         }
     }
 
+    private void onPreviewEnabled() {
+        Log.d("MainActivity", "Camera preview re-enabled");
+        reportPreviewState(EnergyMonitor.PREVIEW_ON);
+        if (isRecording && serviceBound) {
+            proxyPreviewPlayer.start(timeLapseService.getProxyStore());
+        }
+    }
+
+    // Preview mode is part of what a session's energy use is compared by
+    private void reportPreviewState(int state) {
+        if (serviceBound) {
+            timeLapseService.setPreviewState(state);
+        }
+    }
+
+    private void exportProxyVideo() {
+        if (!serviceBound) {
+            return;
+        }
+        Toast.makeText(this, "Exporting preview video...", Toast.LENGTH_SHORT).show();
+        timeLapseService.exportProxyVideo(new TimeLapseService.VideoCompletionCallback() {
+            @Override
+            public void onVideoCompleted(String videoPath) {
+                runOnUiThread(() -> Toast.makeText(MainActivity.this, "Preview video saved to gallery", Toast.LENGTH_SHORT).show());
+            }
+
+            @Override
+            public void onError(String error) {
+                runOnUiThread(() -> Toast.makeText(MainActivity.this, "Error: " + error, Toast.LENGTH_LONG).show());
+            }
+        });
+    }
+
+    private void showImportDialog() {
+        if (isRecording || !serviceBound) {
+            return;
+        }
+        final String[] sources = {"Choose Folder…", "Choose Images…", "Speed Up a Video…"};
+        AlertDialog.Builder builder = new AlertDialog.Builder(this);
+        builder.setTitle("Import");
+        builder.setItems(sources, (dialog, which) -> {
+            if (which == 0) {
+                startActivityForResult(new Intent(Intent.ACTION_OPEN_DOCUMENT_TREE), REQUEST_IMPORT_FOLDER);
+            } else if (which == 2) {
+                // Sampled at the current speed setting, like a recording of the same scene
+                Intent intent = new Intent(Intent.ACTION_OPEN_DOCUMENT);
+                intent.addCategory(Intent.CATEGORY_OPENABLE);
+                intent.setType("video/*");
+                startActivityForResult(intent, REQUEST_IMPORT_VIDEO);
+            } else {
+                Intent intent = new Intent(Intent.ACTION_OPEN_DOCUMENT);
+                intent.addCategory(Intent.CATEGORY_OPENABLE);
+                intent.setType("image/*");
+                intent.putExtra(Intent.EXTRA_ALLOW_MULTIPLE, true);
+                startActivityForResult(intent, REQUEST_IMPORT_IMAGES);
+            }
+        });
+        builder.setNegativeButton("Cancel", null);
+        builder.show();
+    }
+
+    @Override
+    protected void onActivityResult(int requestCode, int resultCode, Intent data) {
+        super.onActivityResult(requestCode, resultCode, data);
+        if (resultCode != RESULT_OK || data == null) {
+            return;
+        }
+        if (requestCode == REQUEST_IMPORT_FOLDER && data.getData() != null) {
+            importSequence(data.getData(), null);
+        } else if (requestCode == REQUEST_IMPORT_VIDEO && data.getData() != null) {
+            importVideo(data.getData());
+        } else if (requestCode == REQUEST_IMPORT_IMAGES) {
+            List<Uri> uris = new ArrayList<>();
+            ClipData clipData = data.getClipData();
+            if (clipData != null) {
+                for (int i = 0; i < clipData.getItemCount(); i++) {
+                    uris.add(clipData.getItemAt(i).getUri());
+                }
+            } else if (data.getData() != null) {
+                uris.add(data.getData());
+            }
+            if (!uris.isEmpty()) {
+                importSequence(null, uris);
+            }
+        }
+    }
+
+    private void importSequence(Uri treeUri, List<Uri> imageUris) {
+        if (isRecording || !serviceBound) {
+            return;
+        }
+        statusText.setText("Importing images...");
+        timeLapseService.setOutputTiming(outputFrameRate, variableFrameRate);
+        timeLapseService.importSequence(treeUri, imageUris, RESOLUTION_HEIGHTS[selectedResolutionIndex],
+                (done, total) -> runOnUiThread(() -> {
+                    if (!isRecording) {
+                        statusText.setText("Importing " + done + "/" + total + " frames");
+                    }
+                }),
+                new TimeLapseService.VideoCompletionCallback() {
+                    @Override
+                    public void onVideoCompleted(String videoPath) {
+                        runOnUiThread(() -> {
+                            lastVideoPath = videoPath;
+                            showSessionResult("Imported video saved to gallery!\nLong-press here to re-export");
+                        });
+                    }
+
+                    @Override
+                    public void onError(String error) {
+                        runOnUiThread(() -> showSessionResult("Error: " + error + "\n"));
+                    }
+                });
+    }
+
+    private void importVideo(Uri videoUri) {
+        if (isRecording || !serviceBound) {
+            return;
+        }
+        statusText.setText("Converting video at " + speedMultiplier + "x...");
+        timeLapseService.setOutputTiming(outputFrameRate, variableFrameRate);
+        timeLapseService.setAllIntraSegments(allIntra);
+        timeLapseService.importVideo(videoUri, speedMultiplier, RESOLUTION_HEIGHTS[selectedResolutionIndex],
+                (done, total) -> runOnUiThread(() -> {
+                    if (!isRecording) {
+                        statusText.setText("Converting " + done + "/" + total + " frames");
+                    }
+                }),
+                new TimeLapseService.VideoCompletionCallback() {
+                    @Override
+                    public void onVideoCompleted(String videoPath) {
+                        runOnUiThread(() -> {
+                            lastVideoPath = videoPath;
+                            showSessionResult("Timelapse saved to gallery!\nLong-press here to re-export");
+                        });
+                    }
+
+                    @Override
+                    public void onError(String error) {
+                        runOnUiThread(() -> showSessionResult("Error: " + error + "\n"));
+                    }
+                });
+    }
+
+    private void showDeferredStatus(int pendingCount) {
+        if (!isRecording && pendingCount > 0) {
+            statusText.setText(pendingCount + " video(s) waiting to render while charging\nTap here for options");
+        }
+    }
+
+    private void showDeferredDialog() {
+        if (isRecording || !serviceBound) {
+            return;
+        }
+        final DeferredJobQueue queue = timeLapseService.getDeferredQueue();
+        int pendingCount = queue.getPendingCount();
+        if (pendingCount == 0) {
+            return;
+        }
+
+        // Sessions waiting for review open straight into the timeline, oldest first
+        SessionRender held = queue.getFirstHeld();
+        if (held != null) {
+            Intent intent = new Intent(this, ReviewActivity.class);
+            intent.putExtra(ReviewActivity.EXTRA_OUTPUT_DIR, held.outputDir.getAbsolutePath());
+            startActivity(intent);
+            return;
+        }
+
+        AlertDialog.Builder builder = new AlertDialog.Builder(this);
+        builder.setTitle("Queued Renders");
+        builder.setMessage(pendingCount + " recording(s) will be rendered when the phone is charging and idle.");
+        builder.setPositiveButton("Render Now", (dialog, id) -> queue.runNow());
+        builder.setNeutralButton("Discard All", (dialog, id) -> {
+            queue.cancelAll();
+            statusText.setText("");
+        });
+        builder.setNegativeButton("Close", null);
+        builder.show();
+    }
+
+    private void showRetimeDialog() {
+        if (isRecording || !serviceBound || lastVideoPath == null) {
+            return;
+        }
+
+        final String[] presets = {"2x Faster", "4x Faster", "Half Speed", "Ramp 1x to 4x", "Keep Middle Half", "24 fps"};
+        final String[] suffixes = {"_2x", "_4x", "_half", "_ramp", "_trim", "_24fps"};
+        AlertDialog.Builder builder = new AlertDialog.Builder(this);
+        builder.setTitle("Re-export (no re-encode)");
+        builder.setItems(presets, (dialog, which) -> {
+            long durationUs = VideoRetimer.readDurationUs(this, lastVideoPath);
+            VideoRetimer retimer = new VideoRetimer();
+            switch (which) {
+                case 0: retimer.setSpeed(2f); break;
+                case 1: retimer.setSpeed(4f); break;
+                case 2: retimer.setSpeed(0.5f); break;
+                case 3: retimer.addSpeedPoint(0, 1f).addSpeedPoint(durationUs, 4f); break;
+                case 4: retimer.keepRange(durationUs / 4, durationUs * 3 / 4); break;
+                default: retimer.setOutputFrameRate(24); break;
+            }
+
+            Toast.makeText(this, "Re-exporting...", Toast.LENGTH_SHORT).show();
+            timeLapseService.retimeVideo(lastVideoPath, retimer, suffixes[which], new TimeLapseService.VideoCompletionCallback() {
+                @Override
+                public void onVideoCompleted(String videoPath) {
+                    runOnUiThread(() -> Toast.makeText(MainActivity.this, "Re-exported video saved to gallery", Toast.LENGTH_SHORT).show());
+                }
+
+                @Override
+                public void onError(String error) {
+                    runOnUiThread(() -> Toast.makeText(MainActivity.this, "Error: " + error, Toast.LENGTH_LONG).show());
+                }
+            });
+        });
+        builder.setNegativeButton("Cancel", null);
+        builder.show();
+    }
+
     private void showResolutionDialog() {
         if (isRecording) {
             Toast.makeText(this, "Cannot change settings while recording", Toast.LENGTH_SHORT).show();
@@ -536,17 +1090,87 @@ public class MainActivity extends AppCompatActivity {
         AlertDialog.Builder builder = new AlertDialog.Builder(this);
         builder.setTitle("Settings");
 
-        // Create items array with resolution options and timestamp toggle
-        final String[] items = new String[RESOLUTIONS.length + 1];
+        // Create items array with resolution options, output frame rates, framing presets, pre-roll lengths and toggles
+        final int[] frameRates = VideoCompiler.OUTPUT_FRAME_RATES;
+        final int[] preRollOptions = PreRollBuffer.FRAME_OPTIONS;
+        final int frameRateBase = RESOLUTIONS.length;
+        final int reframeBase = frameRateBase + frameRates.length;
+        final int preRollBase = reframeBase + Reframe.PRESETS.length;
+        final int toggleBase = preRollBase + preRollOptions.length;
+        final int timestampItem = toggleBase;
+        final int streamCaptureItem = toggleBase + 1;
+        final int lock3AItem = toggleBase + 2;
+        final int lowPowerPreviewItem = toggleBase + 3;
+        final int shareCopyItem = toggleBase + 4;
+        final int allIntraItem = toggleBase + 5;
+        final int variableFrameRateItem = toggleBase + 6;
+        final int deferRenderingItem = toggleBase + 7;
+        final int stabilizeItem = toggleBase + 8;
+        final int overlayElapsedItem = toggleBase + 9;
+        final int overlayFrameNumberItem = toggleBase + 10;
+        final int overlayLogoItem = toggleBase + 11;
+        final int interpolateItem = toggleBase + 12;
+        final int motionInterpolationItem = toggleBase + 13;
+        final int reviewItem = toggleBase + 14;
+        final int uprightPixelsItem = toggleBase + 15;
+        final String[] items = new String[toggleBase + 16];
         for (int i = 0; i < RESOLUTIONS.length; i++) {
             items[i] = RESOLUTIONS[i];
         }
-        items[RESOLUTIONS.length] = "Show Timestamp";
+        for (int i = 0; i < frameRates.length; i++) {
+            items[frameRateBase + i] = frameRates[i] + " fps Output";
+        }
+        for (int i = 0; i < Reframe.PRESETS.length; i++) {
+            items[reframeBase + i] = "Framing: " + Reframe.PRESET_LABELS[i];
+        }
+        for (int i = 0; i < preRollOptions.length; i++) {
+            items[preRollBase + i] = "Pre-roll: " + (preRollOptions[i] == 0 ? "Off" : preRollOptions[i] + " frames");
+        }
+        items[timestampItem] = "Show Timestamp";
+        items[streamCaptureItem] = "Video Stream Capture (fast speeds)";
+        items[lock3AItem] = "Lock Exposure/Focus/WB";
+        items[lowPowerPreviewItem] = "Low-Power Preview (no rebind)";
+        items[shareCopyItem] = "Also Save 720p Share Copy";
+        items[allIntraItem] = "All-Intra Encoding (frame-accurate trims)";
+        items[variableFrameRateItem] = "Variable Frame Rate (exact capture times)";
+        items[deferRenderingItem] = "Render Later (while charging)";
+        items[stabilizeItem] = "Stabilize (handheld/wind)";
+        items[overlayElapsedItem] = "Show Elapsed Time";
+        items[overlayFrameNumberItem] = "Show Frame Number";
+        items[overlayLogoItem] = "Show Logo";
+        items[interpolateItem] = "Interpolate Frames (half the captures)";
+        items[motionInterpolationItem] = "Motion-Compensated Interpolation";
+        items[reviewItem] = "Review Before Rendering";
+        items[uprightPixelsItem] = "Rotate Pixels (players ignoring rotation)";
 
         // Track which items are checked
         final boolean[] checkedItems = new boolean[items.length];
         checkedItems[selectedResolutionIndex] = true;
-        checkedItems[RESOLUTIONS.length] = showTimestamp;
+        for (int i = 0; i < frameRates.length; i++) {
+            checkedItems[frameRateBase + i] = frameRates[i] == outputFrameRate;
+        }
+        for (int i = 0; i < Reframe.PRESETS.length; i++) {
+            checkedItems[reframeBase + i] = Reframe.PRESETS[i].equals(reframe);
+        }
+        for (int i = 0; i < preRollOptions.length; i++) {
+            checkedItems[preRollBase + i] = preRollOptions[i] == preRollFrames;
+        }
+        checkedItems[timestampItem] = showTimestamp;
+        checkedItems[streamCaptureItem] = streamCapture;
+        checkedItems[lock3AItem] = lock3A;
+        checkedItems[lowPowerPreviewItem] = lowPowerPreview;
+        checkedItems[shareCopyItem] = shareCopy;
+        checkedItems[allIntraItem] = allIntra;
+        checkedItems[variableFrameRateItem] = variableFrameRate;
+        checkedItems[deferRenderingItem] = deferRendering;
+        checkedItems[stabilizeItem] = stabilize;
+        checkedItems[overlayElapsedItem] = overlayElapsed;
+        checkedItems[overlayFrameNumberItem] = overlayFrameNumber;
+        checkedItems[overlayLogoItem] = overlayLogo;
+        checkedItems[interpolateItem] = interpolateFrames;
+        checkedItems[motionInterpolationItem] = motionInterpolation;
+        checkedItems[reviewItem] = reviewBeforeRender;
+        checkedItems[uprightPixelsItem] = uprightPixels;
 
         builder.setMultiChoiceItems(items, checkedItems, new DialogInterface.OnMultiChoiceClickListener() {
             @Override
@@ -557,8 +1181,26 @@ public class MainActivity extends AppCompatActivity {
                         checkedItems[i] = (i == which);
                         ((AlertDialog) dialog).getListView().setItemChecked(i, i == which);
                     }
+                } else if (which < reframeBase) {
+                    // Frame rate selection - uncheck all other frame rates
+                    for (int i = frameRateBase; i < reframeBase; i++) {
+                        checkedItems[i] = (i == which);
+                        ((AlertDialog) dialog).getListView().setItemChecked(i, i == which);
+                    }
+                } else if (which < preRollBase) {
+                    // Framing selection - uncheck all other presets
+                    for (int i = reframeBase; i < preRollBase; i++) {
+                        checkedItems[i] = (i == which);
+                        ((AlertDialog) dialog).getListView().setItemChecked(i, i == which);
+                    }
+                } else if (which < toggleBase) {
+                    // Pre-roll selection - uncheck all other lengths
+                    for (int i = preRollBase; i < toggleBase; i++) {
+                        checkedItems[i] = (i == which);
+                        ((AlertDialog) dialog).getListView().setItemChecked(i, i == which);
+                    }
                 } else {
-                    // Timestamp toggle
+                    // Toggle items
                     checkedItems[which] = isChecked;
                 }
             }
@@ -576,24 +1218,87 @@ public class MainActivity extends AppCompatActivity {
                     }
                 }
 
-                // Update timestamp setting
-                showTimestamp = checkedItems[RESOLUTIONS.length];
+                // Find selected output frame rate
+                for (int i = 0; i < frameRates.length; i++) {
+                    if (checkedItems[frameRateBase + i]) {
+                        outputFrameRate = frameRates[i];
+                        break;
+                    }
+                }
+
+                // Find selected framing preset
+                for (int i = 0; i < Reframe.PRESETS.length; i++) {
+                    if (checkedItems[reframeBase + i]) {
+                        reframe = Reframe.PRESETS[i];
+                        break;
+                    }
+                }
+
+                // Find selected pre-roll length
+                for (int i = 0; i < preRollOptions.length; i++) {
+                    if (checkedItems[preRollBase + i]) {
+                        preRollFrames = preRollOptions[i];
+                        break;
+                    }
+                }
+
+                // Update toggle settings
+                showTimestamp = checkedItems[timestampItem];
+                boolean newStreamCapture = checkedItems[streamCaptureItem];
+                lock3A = checkedItems[lock3AItem];
+                lowPowerPreview = checkedItems[lowPowerPreviewItem];
+                shareCopy = checkedItems[shareCopyItem];
+                allIntra = checkedItems[allIntraItem];
+                variableFrameRate = checkedItems[variableFrameRateItem];
+                deferRendering = checkedItems[deferRenderingItem];
+                stabilize = checkedItems[stabilizeItem];
+                overlayElapsed = checkedItems[overlayElapsedItem];
+                overlayFrameNumber = checkedItems[overlayFrameNumberItem];
+                overlayLogo = checkedItems[overlayLogoItem];
+                interpolateFrames = checkedItems[interpolateItem];
+                motionInterpolation = checkedItems[motionInterpolationItem];
+                reviewBeforeRender = checkedItems[reviewItem];
+                uprightPixels = checkedItems[uprightPixelsItem];
 
                 // Save preferences
                 SharedPreferences.Editor editor = preferences.edit();
                 editor.putInt(PREF_RESOLUTION, newResolution);
                 editor.putBoolean(PREF_TIMESTAMP, showTimestamp);
+                editor.putBoolean(PREF_STREAM_CAPTURE, newStreamCapture);
+                editor.putBoolean(PREF_LOCK_3A, lock3A);
+                editor.putBoolean(PREF_LOW_POWER_PREVIEW, lowPowerPreview);
+                editor.putBoolean(PREF_SHARE_COPY, shareCopy);
+                editor.putBoolean(PREF_ALL_INTRA, allIntra);
+                editor.putInt(PREF_OUTPUT_FPS, outputFrameRate);
+                editor.putBoolean(PREF_VARIABLE_FRAME_RATE, variableFrameRate);
+                editor.putBoolean(PREF_DEFER_RENDERING, deferRendering);
+                editor.putBoolean(PREF_STABILIZE, stabilize);
+                editor.putBoolean(PREF_OVERLAY_ELAPSED, overlayElapsed);
+                editor.putBoolean(PREF_OVERLAY_FRAME_NUMBER, overlayFrameNumber);
+                editor.putBoolean(PREF_OVERLAY_LOGO, overlayLogo);
+                editor.putBoolean(PREF_INTERPOLATE, interpolateFrames);
+                editor.putBoolean(PREF_MOTION_INTERPOLATION, motionInterpolation);
+                editor.putBoolean(PREF_REVIEW_BEFORE_RENDER, reviewBeforeRender);
+                editor.putString(PREF_REFRAME, reframe);
+                editor.putInt(PREF_PRE_ROLL, preRollFrames);
+                editor.putBoolean(PREF_UPRIGHT_PIXELS, uprightPixels);
                 editor.apply();
 
-                // Update UI if resolution changed
-                if (newResolution != selectedResolutionIndex) {
+                // Update UI and rebind if resolution or capture source changed
+                boolean rebind = newResolution != selectedResolutionIndex || newStreamCapture != streamCapture;
+                if (rebind) {
                     selectedResolutionIndex = newResolution;
+                    streamCapture = newStreamCapture;
                     resolutionText.setText(RESOLUTIONS[selectedResolutionIndex]);
 
-                    // Restart camera with new resolution
+                    // Restart camera with new settings
                     if (cameraProvider != null) {
                         bindPreview(cameraProvider);
                     }
+                } else {
+                    // Output frame rate, keyframe interval, framing or pre-roll may have changed
+                    prewarmEncoder();
+                    updatePreRoll();
                 }
 
                 Toast.makeText(MainActivity.this,
@@ -602,6 +1307,12 @@ public class MainActivity extends AppCompatActivity {
         });
 
         builder.setNegativeButton("Cancel", null);
+        builder.setNeutralButton("Save Trace", (dialog, id) -> {
+            // Recent capture/compile events, for bug reports
+            File traceFile = Tracer.dumpToFile();
+            Toast.makeText(MainActivity.this, traceFile != null ? "Trace saved to " + traceFile.getAbsolutePath()
+                    : "Trace not available", Toast.LENGTH_LONG).show();
+        });
         builder.show();
     }
 
@@ -611,6 +1322,7 @@ public class MainActivity extends AppCompatActivity {
         // Clean up handler callbacks
         dimHandler.removeCallbacks(dimScreenRunnable);
         dimHandler.removeCallbacks(disablePreviewRunnable);
+        proxyPreviewPlayer.release();
 
         // Always unbind service on destroy to prevent leaks
         if (serviceBound) {
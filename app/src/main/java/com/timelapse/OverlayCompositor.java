@@ -0,0 +1,515 @@
+package com.timelapse;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.drawable.Drawable;
+import android.util.Log;
+import android.util.SparseArray;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+
+// Burns overlay layers (clock, elapsed time, frame number, logo) into NV12 frames right
+// before they are encoded. Each layer owns a small patch of luma, chroma and alpha that is
+// already rotated into the stored (sensor) orientation and placed upright in the frame;
+// per frame only the pixels under the patches are blended, so the cost scales with the
+// overlay area, not the frame size. Text is assembled from a glyph atlas rendered once per
+// text size, and a layer's patch is rebuilt only when its text changes.
+public class OverlayCompositor {
+
+    private static final String TAG = "OverlayCompositor";
+    private static final String LOGO_FILE = "overlay_logo.png"; // Optional custom logo in app storage
+    private static final String GLYPHS = "0123456789:-/+#. ";
+    private static final float TEXT_SIZE = 0.025f; // Of the upright frame width
+    private static final float LOGO_SIZE = 0.08f; // Of the upright frame width
+
+    public static final int LAYER_CLOCK = 1; // Wall-clock date and time of capture
+    public static final int LAYER_ELAPSED = 2; // Real time since the session started
+    public static final int LAYER_FRAME_NUMBER = 4; // Output frame number
+    public static final int LAYER_LOGO = 8;
+
+    // What to draw and how to map output time back to capture time; stored with the session
+    // so deferred renders draw the same overlay
+    public static class Spec {
+        public final int layers;
+        public final long wallStartMs; // Wall-clock time of the session's first frame
+        public final double realTimeScale; // Capture time per unit of output time (the speed)
+
+        public Spec(int layers, long wallStartMs, double realTimeScale) {
+            this.layers = layers;
+            this.wallStartMs = wallStartMs;
+            this.realTimeScale = realTimeScale;
+        }
+
+        public JSONObject toJson() throws JSONException {
+            return new JSONObject()
+                    .put("layers", layers)
+                    .put("wallStart", wallStartMs)
+                    .put("timeScale", realTimeScale);
+        }
+
+        public static Spec fromJson(JSONObject json) throws JSONException {
+            return new Spec(json.getInt("layers"), json.getLong("wallStart"), json.getDouble("timeScale"));
+        }
+    }
+
+    // A text element. getKey is called for every frame; getText only when the key changes,
+    // and the layer's patch is rebuilt from the atlas then. The template is the widest text
+    // expected and sizes the layer's box.
+    public abstract static class TextLayer {
+        final String template;
+        long key = Long.MIN_VALUE;
+        Patch patch;
+        byte[] uprightLuma; // Box-sized scratch, reused on every rebuild
+        byte[] uprightAlpha;
+
+        protected TextLayer(String template) {
+            this.template = template;
+        }
+
+        protected abstract long getKey(long wallTimeMs, long elapsedMs, long frameNumber);
+
+        protected abstract String getText(long wallTimeMs, long elapsedMs, long frameNumber);
+    }
+
+    private static final class FormatLayer extends TextLayer {
+        private final SimpleDateFormat format;
+        private final long periodMs;
+
+        FormatLayer(String pattern, String template, long periodMs) {
+            super(template);
+            // ASCII digits only, the atlas has no others
+            this.format = new SimpleDateFormat(pattern, Locale.US);
+            this.periodMs = periodMs;
+        }
+
+        @Override
+        protected long getKey(long wallTimeMs, long elapsedMs, long frameNumber) {
+            return wallTimeMs / periodMs;
+        }
+
+        @Override
+        protected String getText(long wallTimeMs, long elapsedMs, long frameNumber) {
+            return format.format(new Date(wallTimeMs));
+        }
+    }
+
+    private static final class ElapsedLayer extends TextLayer {
+        ElapsedLayer() {
+            super("+00:00:00");
+        }
+
+        @Override
+        protected long getKey(long wallTimeMs, long elapsedMs, long frameNumber) {
+            return elapsedMs / 1000;
+        }
+
+        @Override
+        protected String getText(long wallTimeMs, long elapsedMs, long frameNumber) {
+            long seconds = elapsedMs / 1000;
+            return String.format(Locale.US, "+%02d:%02d:%02d", seconds / 3600, (seconds / 60) % 60, seconds % 60);
+        }
+    }
+
+    private static final class FrameNumberLayer extends TextLayer {
+        FrameNumberLayer() {
+            super("#000000");
+        }
+
+        @Override
+        protected long getKey(long wallTimeMs, long elapsedMs, long frameNumber) {
+            return frameNumber;
+        }
+
+        @Override
+        protected String getText(long wallTimeMs, long elapsedMs, long frameNumber) {
+            return String.format(Locale.US, "#%06d", frameNumber);
+        }
+    }
+
+    // Luma, chroma and alpha of one layer in stored orientation at an even position
+    private static final class Patch {
+        final int x;
+        final int y;
+        final int width;
+        final int height;
+        final byte[] luma;
+        final byte[] alpha;
+        final byte[] chroma; // Interleaved UV per 2x2 block
+        final byte[] chromaAlpha; // Mean alpha per 2x2 block
+
+        Patch(int x, int y, int width, int height) {
+            this.x = x;
+            this.y = y;
+            this.width = width;
+            this.height = height;
+            this.luma = new byte[width * height];
+            this.alpha = new byte[width * height];
+            this.chroma = new byte[width * height / 2];
+            this.chromaAlpha = new byte[width * height / 4];
+        }
+    }
+
+    // Upright glyph cells (luma and alpha) for one text size, shared by every compositor
+    private static final class GlyphAtlas {
+        final int cellHeight;
+        final int margin; // Shadow room on each side of a cell
+        final int[] advances = new int[GLYPHS.length()];
+        final byte[][] luma = new byte[GLYPHS.length()][];
+        final byte[][] alpha = new byte[GLYPHS.length()][];
+
+        GlyphAtlas(int textSize) {
+            // White text with a soft shadow, as the JPEG timestamp used to be drawn
+            Paint paint = new Paint(Paint.ANTI_ALIAS_FLAG);
+            paint.setColor(Color.WHITE);
+            paint.setTextSize(textSize);
+            paint.setShadowLayer(textSize * 0.15f, 0, 0, Color.BLACK);
+            Paint.FontMetrics metrics = paint.getFontMetrics();
+            margin = (int) Math.ceil(textSize * 0.3f);
+            cellHeight = (int) Math.ceil(metrics.descent - metrics.ascent) + 2 * margin;
+
+            for (int g = 0; g < GLYPHS.length(); g++) {
+                String glyph = GLYPHS.substring(g, g + 1);
+                advances[g] = Math.max(1, Math.round(paint.measureText(glyph)));
+                int cellWidth = advances[g] + 2 * margin;
+                Bitmap cell = Bitmap.createBitmap(cellWidth, cellHeight, Bitmap.Config.ARGB_8888);
+                new Canvas(cell).drawText(glyph, margin, margin - metrics.ascent, paint);
+                int[] argb = new int[cellWidth * cellHeight];
+                cell.getPixels(argb, 0, cellWidth, 0, 0, cellWidth, cellHeight);
+                cell.recycle();
+
+                luma[g] = new byte[argb.length];
+                alpha[g] = new byte[argb.length];
+                for (int i = 0; i < argb.length; i++) {
+                    luma[g][i] = (byte) toLuma(argb[i]);
+                    alpha[g][i] = (byte) (argb[i] >>> 24);
+                }
+            }
+        }
+
+        int getCellWidth(int glyph) {
+            return advances[glyph] + 2 * margin;
+        }
+
+        int measure(String text) {
+            int width = 0;
+            for (int i = 0; i < text.length(); i++) {
+                int glyph = GLYPHS.indexOf(text.charAt(i));
+                width += advances[glyph >= 0 ? glyph : GLYPHS.length() - 1];
+            }
+            return width;
+        }
+    }
+
+    private static final SparseArray<GlyphAtlas> atlases = new SparseArray<>();
+
+    private static GlyphAtlas getAtlas(int textSize) {
+        synchronized (atlases) {
+            GlyphAtlas atlas = atlases.get(textSize);
+            if (atlas == null) {
+                atlas = new GlyphAtlas(textSize);
+                atlases.put(textSize, atlas);
+            }
+            return atlas;
+        }
+    }
+
+    private final Spec spec;
+    private final int frameRate;
+    private final int frameWidth; // Stored orientation
+    private final int frameHeight;
+    private final int rotationDegrees; // Clockwise rotation from stored to upright
+    private final GlyphAtlas atlas;
+    private final List<TextLayer> textLayers = new ArrayList<>();
+    private Patch logoPatch;
+    private int nextTextTop; // Upright y of the next stacked text layer
+
+    // Frame size and rotation are those of the NV12 frames handed to compose
+    public OverlayCompositor(Context context, Spec spec, int frameRate, int frameWidth, int frameHeight, int rotationDegrees) {
+        this.spec = spec;
+        this.frameRate = frameRate;
+        this.frameWidth = frameWidth;
+        this.frameHeight = frameHeight;
+        this.rotationDegrees = rotationDegrees;
+
+        int textSize = Math.max(8, Math.round(getUprightWidth() * TEXT_SIZE));
+        atlas = getAtlas(textSize);
+        nextTextTop = even(Math.round(textSize * 0.8f));
+
+        if ((spec.layers & LAYER_CLOCK) != 0) {
+            addLayer(new FormatLayer("dd-MM-yyyy", "00-00-0000", 1000));
+            addLayer(new FormatLayer("HH:mm:ss", "00:00:00", 1000));
+        }
+        if ((spec.layers & LAYER_ELAPSED) != 0) {
+            addLayer(new ElapsedLayer());
+        }
+        if ((spec.layers & LAYER_FRAME_NUMBER) != 0) {
+            addLayer(new FrameNumberLayer());
+        }
+        if ((spec.layers & LAYER_LOGO) != 0) {
+            setLogo(loadLogo(context));
+        }
+    }
+
+    public boolean isEmpty() {
+        return textLayers.isEmpty() && logoPatch == null;
+    }
+
+    private int getUprightWidth() {
+        return (rotationDegrees == 90 || rotationDegrees == 270) ? frameHeight : frameWidth;
+    }
+
+    private int getUprightHeight() {
+        return (rotationDegrees == 90 || rotationDegrees == 270) ? frameWidth : frameHeight;
+    }
+
+    private static int even(int value) {
+        return Math.max(0, value & ~1);
+    }
+
+    // Stacks a text layer below the previous ones, right-aligned in the upright top-right corner
+    public void addLayer(TextLayer layer) {
+        int padding = even(Math.round(atlas.cellHeight * 0.5f));
+        int boxWidth = even(atlas.measure(layer.template) + 2 * atlas.margin + 1);
+        int boxHeight = even(atlas.cellHeight + 1);
+        int left = even(getUprightWidth() - boxWidth - padding);
+        if (left <= 0 || nextTextTop + boxHeight > getUprightHeight()) {
+            Log.w(TAG, "No room for overlay layer " + layer.template);
+            return;
+        }
+        layer.patch = createPatch(left, nextTextTop, boxWidth, boxHeight);
+        layer.uprightLuma = new byte[boxWidth * boxHeight];
+        layer.uprightAlpha = new byte[boxWidth * boxHeight];
+        nextTextTop += even(atlas.cellHeight * 3 / 4 + 1);
+        textLayers.add(layer);
+    }
+
+    // Places a logo in the upright bottom-right corner
+    public void setLogo(Bitmap logo) {
+        if (logo == null) return;
+        int size = even(Math.round(getUprightWidth() * LOGO_SIZE));
+        if (size < 2) return;
+        int boxWidth = size;
+        int boxHeight = even(size * logo.getHeight() / Math.max(1, logo.getWidth()));
+        int padding = even(size / 4);
+        int left = even(getUprightWidth() - boxWidth - padding);
+        int top = even(getUprightHeight() - boxHeight - padding);
+        if (boxHeight < 2 || left < 0 || top < 0) return;
+
+        Bitmap scaled = Bitmap.createScaledBitmap(logo, boxWidth, boxHeight, true);
+        int[] argb = new int[boxWidth * boxHeight];
+        scaled.getPixels(argb, 0, boxWidth, 0, 0, boxWidth, boxHeight);
+        if (scaled != logo) {
+            scaled.recycle();
+        }
+        logoPatch = createPatch(left, top, boxWidth, boxHeight);
+        fillPatch(logoPatch, argb, boxWidth, boxHeight);
+    }
+
+    private static Bitmap loadLogo(Context context) {
+        File custom = new File(context.getFilesDir(), LOGO_FILE);
+        if (custom.exists()) {
+            Bitmap bitmap = BitmapFactory.decodeFile(custom.getAbsolutePath());
+            if (bitmap != null) return bitmap;
+        }
+        // Fall back to the app icon
+        Drawable icon = context.getApplicationInfo().loadIcon(context.getPackageManager());
+        int size = Math.max(1, Math.max(icon.getIntrinsicWidth(), icon.getIntrinsicHeight()));
+        Bitmap bitmap = Bitmap.createBitmap(size, size, Bitmap.Config.ARGB_8888);
+        icon.setBounds(0, 0, size, size);
+        icon.draw(new Canvas(bitmap));
+        return bitmap;
+    }
+
+    // Stored-orientation patch for an upright box (all even)
+    private Patch createPatch(int left, int top, int boxWidth, int boxHeight) {
+        switch (rotationDegrees) {
+            case 90:
+                return new Patch(top, frameHeight - left - boxWidth, boxHeight, boxWidth);
+            case 180:
+                return new Patch(frameWidth - left - boxWidth, frameHeight - top - boxHeight, boxWidth, boxHeight);
+            case 270:
+                return new Patch(frameWidth - top - boxHeight, left, boxHeight, boxWidth);
+            default:
+                return new Patch(left, top, boxWidth, boxHeight);
+        }
+    }
+
+    // Index into the upright box of a stored patch pixel
+    private int uprightIndex(int px, int py, int patchWidth, int patchHeight, int boxWidth) {
+        switch (rotationDegrees) {
+            case 90:
+                return px * boxWidth + (patchHeight - 1 - py);
+            case 180:
+                return (patchHeight - 1 - py) * boxWidth + (patchWidth - 1 - px);
+            case 270:
+                return (patchWidth - 1 - px) * boxWidth + py;
+            default:
+                return py * boxWidth + px;
+        }
+    }
+
+    // Rotates an upright ARGB box into the patch (logo, full color)
+    private void fillPatch(Patch patch, int[] argb, int boxWidth, int boxHeight) {
+        for (int py = 0; py < patch.height; py++) {
+            for (int px = 0; px < patch.width; px++) {
+                int color = argb[uprightIndex(px, py, patch.width, patch.height, boxWidth)];
+                int index = py * patch.width + px;
+                patch.luma[index] = (byte) toLuma(color);
+                patch.alpha[index] = (byte) (color >>> 24);
+            }
+        }
+        for (int cy = 0; cy < patch.height / 2; cy++) {
+            for (int cx = 0; cx < patch.width / 2; cx++) {
+                // Alpha-weighted chroma of the 2x2 block
+                int uSum = 0;
+                int vSum = 0;
+                int alphaSum = 0;
+                for (int dy = 0; dy < 2; dy++) {
+                    for (int dx = 0; dx < 2; dx++) {
+                        int color = argb[uprightIndex(cx * 2 + dx, cy * 2 + dy, patch.width, patch.height, boxWidth)];
+                        int a = color >>> 24;
+                        int r = (color >> 16) & 0xff;
+                        int g = (color >> 8) & 0xff;
+                        int b = color & 0xff;
+                        uSum += a * (((-38 * r - 74 * g + 112 * b + 128) >> 8) + 128);
+                        vSum += a * (((112 * r - 94 * g - 18 * b + 128) >> 8) + 128);
+                        alphaSum += a;
+                    }
+                }
+                int index = cy * (patch.width / 2) + cx;
+                patch.chroma[index * 2] = (byte) (alphaSum > 0 ? clamp(uSum / alphaSum) : 128);
+                patch.chroma[index * 2 + 1] = (byte) (alphaSum > 0 ? clamp(vSum / alphaSum) : 128);
+                patch.chromaAlpha[index] = (byte) (alphaSum / 4);
+            }
+        }
+    }
+
+    // Redraws a text layer's patch from the atlas: right-aligned upright, then rotated
+    private void renderText(TextLayer layer, String text) {
+        Patch patch = layer.patch;
+        boolean swap = rotationDegrees == 90 || rotationDegrees == 270;
+        int boxWidth = swap ? patch.height : patch.width;
+        int boxHeight = swap ? patch.width : patch.height;
+        byte[] uprightLuma = layer.uprightLuma;
+        byte[] uprightAlpha = layer.uprightAlpha;
+        Arrays.fill(uprightAlpha, (byte) 0);
+
+        int penX = boxWidth - atlas.margin - atlas.measure(text);
+        for (int i = 0; i < text.length(); i++) {
+            int glyph = GLYPHS.indexOf(text.charAt(i));
+            if (glyph < 0) glyph = GLYPHS.length() - 1; // Unknown characters become spaces
+            int cellWidth = atlas.getCellWidth(glyph);
+            int cellLeft = penX - atlas.margin;
+            for (int row = 0; row < atlas.cellHeight && row < boxHeight; row++) {
+                for (int col = 0; col < cellWidth; col++) {
+                    int x = cellLeft + col;
+                    if (x < 0 || x >= boxWidth) continue;
+                    int a = atlas.alpha[glyph][row * cellWidth + col] & 0xff;
+                    int index = row * boxWidth + x;
+                    // Neighbouring cells overlap in their shadow margins; keep the stronger pixel
+                    if (a > (uprightAlpha[index] & 0xff)) {
+                        uprightAlpha[index] = (byte) a;
+                        uprightLuma[index] = atlas.luma[glyph][row * cellWidth + col];
+                    }
+                }
+            }
+            penX += atlas.advances[glyph];
+        }
+
+        for (int py = 0; py < patch.height; py++) {
+            for (int px = 0; px < patch.width; px++) {
+                int source = uprightIndex(px, py, patch.width, patch.height, boxWidth);
+                int index = py * patch.width + px;
+                patch.luma[index] = uprightLuma[source];
+                patch.alpha[index] = uprightAlpha[source];
+            }
+        }
+        // Text is grey (white with a black shadow): neutral chroma, faded by coverage
+        int chromaWidth = patch.width / 2;
+        for (int cy = 0; cy < patch.height / 2; cy++) {
+            for (int cx = 0; cx < chromaWidth; cx++) {
+                int top = cy * 2 * patch.width + cx * 2;
+                int alphaSum = (patch.alpha[top] & 0xff) + (patch.alpha[top + 1] & 0xff)
+                        + (patch.alpha[top + patch.width] & 0xff) + (patch.alpha[top + patch.width + 1] & 0xff);
+                int index = cy * chromaWidth + cx;
+                patch.chroma[index * 2] = (byte) 128;
+                patch.chroma[index * 2 + 1] = (byte) 128;
+                patch.chromaAlpha[index] = (byte) (alphaSum / 4);
+            }
+        }
+    }
+
+    // Blends every layer into the frame captured at this time on the session's output timeline
+    // (relative to the session start, before any trimmed frames are closed up)
+    public void compose(byte[] nv12, long presentationTimeUs) {
+        long elapsedMs = (long) (presentationTimeUs * spec.realTimeScale / 1000);
+        long wallTimeMs = spec.wallStartMs + elapsedMs;
+        long frameNumber = Math.round(presentationTimeUs * frameRate / 1000000.0);
+
+        for (int i = 0; i < textLayers.size(); i++) {
+            TextLayer layer = textLayers.get(i);
+            long key = layer.getKey(wallTimeMs, elapsedMs, frameNumber);
+            if (key != layer.key) {
+                layer.key = key;
+                renderText(layer, layer.getText(wallTimeMs, elapsedMs, frameNumber));
+            }
+            blend(nv12, layer.patch);
+        }
+        if (logoPatch != null) {
+            blend(nv12, logoPatch);
+        }
+    }
+
+    private void blend(byte[] nv12, Patch patch) {
+        for (int py = 0; py < patch.height; py++) {
+            int frameIndex = (patch.y + py) * frameWidth + patch.x;
+            int patchIndex = py * patch.width;
+            for (int px = 0; px < patch.width; px++, frameIndex++, patchIndex++) {
+                int a = patch.alpha[patchIndex] & 0xff;
+                if (a == 0) continue;
+                int base = nv12[frameIndex] & 0xff;
+                nv12[frameIndex] = (byte) (base + ((patch.luma[patchIndex] & 0xff) - base) * a / 255);
+            }
+        }
+
+        int frameSize = frameWidth * frameHeight;
+        int chromaWidth = patch.width / 2;
+        for (int cy = 0; cy < patch.height / 2; cy++) {
+            int frameIndex = frameSize + (patch.y / 2 + cy) * frameWidth + patch.x;
+            int patchIndex = cy * chromaWidth;
+            for (int cx = 0; cx < chromaWidth; cx++, frameIndex += 2, patchIndex++) {
+                int a = patch.chromaAlpha[patchIndex] & 0xff;
+                if (a == 0) continue;
+                int u = nv12[frameIndex] & 0xff;
+                int v = nv12[frameIndex + 1] & 0xff;
+                nv12[frameIndex] = (byte) (u + ((patch.chroma[patchIndex * 2] & 0xff) - u) * a / 255);
+                nv12[frameIndex + 1] = (byte) (v + ((patch.chroma[patchIndex * 2 + 1] & 0xff) - v) * a / 255);
+            }
+        }
+    }
+
+    // Same BT.601 video-range conversion as VideoCompiler.encodeYUV420SP
+    private static int toLuma(int color) {
+        int r = (color >> 16) & 0xff;
+        int g = (color >> 8) & 0xff;
+        int b = color & 0xff;
+        return clamp(((66 * r + 129 * g + 25 * b + 128) >> 8) + 16);
+    }
+
+    private static int clamp(int value) {
+        return value < 0 ? 0 : (value > 255 ? 255 : value);
+    }
+}
@@ -0,0 +1,102 @@
+package com.timelapse;
+
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+
+// Fixed-capacity ring of the most recent frames captured while idle (NV12 from the analysis
+// stream or JPEG bytes from in-memory still captures), prepended to the next recording.
+// The capacity is clamped to a memory budget from the first frame's size, slots are allocated
+// as the ring fills and then overwritten in place, so a full ring allocates nothing per frame.
+public class PreRollBuffer {
+
+    private static final String TAG = "PreRollBuffer";
+    public static final int[] FRAME_OPTIONS = {0, 30, 90, 150}; // 0 turns pre-roll off
+    private static final long MAX_BYTES = 64L * 1024 * 1024;
+    private static final float JPEG_HEADROOM = 1.5f; // JPEG sizes vary with the scene
+
+    public interface FrameConsumer {
+        // data is only valid during the call
+        void onFrame(byte[] data, int length, int width, int height, int rotationDegrees, long timestampNs);
+    }
+
+    private final int requestedFrames;
+    private int capacity = -1; // Set by the first frame
+    private byte[][] slots;
+    private int[] lengths;
+    private int[] widths;
+    private int[] heights;
+    private int[] rotations;
+    private long[] timestampsNs;
+    private int next = 0;
+    private int count = 0;
+    private boolean closed = false;
+
+    public PreRollBuffer(int requestedFrames) {
+        this.requestedFrames = requestedFrames;
+    }
+
+    // An NV12 frame from StreamFrameSampler; all frames of a stream have the same size
+    public synchronized void add(byte[] nv12, int width, int height, int rotationDegrees, long timestampNs) {
+        byte[] slot = obtainSlot(nv12.length, nv12.length);
+        if (slot == null) return;
+        System.arraycopy(nv12, 0, slot, 0, nv12.length);
+        commit(nv12.length, width, height, rotationDegrees, timestampNs);
+    }
+
+    // A JPEG from an in-memory still capture, read from its current position to its limit
+    public synchronized void add(ByteBuffer jpeg, int width, int height, int rotationDegrees, long timestampNs) {
+        int length = jpeg.remaining();
+        byte[] slot = obtainSlot(length, (int) (length * JPEG_HEADROOM));
+        if (slot == null) return;
+        jpeg.get(slot, 0, length);
+        commit(length, width, height, rotationDegrees, timestampNs);
+    }
+
+    private byte[] obtainSlot(int length, int slotSize) {
+        if (closed) return null;
+        if (capacity < 0) {
+            long budget = Math.min(MAX_BYTES, Runtime.getRuntime().maxMemory() / 4);
+            capacity = (int) Math.max(0, Math.min(requestedFrames, budget / Math.max(1, slotSize)));
+            slots = new byte[capacity][];
+            lengths = new int[capacity];
+            widths = new int[capacity];
+            heights = new int[capacity];
+            rotations = new int[capacity];
+            timestampsNs = new long[capacity];
+            Log.d(TAG, "Pre-roll holds " + capacity + " of " + requestedFrames + " frames (" + slotSize / 1024 + "KB each)");
+        }
+        if (capacity == 0) return null;
+        if (slots[next] == null || slots[next].length < length) {
+            // Filling the ring, or a JPEG larger than its headroom
+            slots[next] = new byte[Math.max(length, slotSize)];
+        }
+        return slots[next];
+    }
+
+    private void commit(int length, int width, int height, int rotationDegrees, long timestampNs) {
+        lengths[next] = length;
+        widths[next] = width;
+        heights[next] = height;
+        rotations[next] = rotationDegrees;
+        timestampsNs[next] = timestampNs;
+        next = (next + 1) % capacity;
+        count = Math.min(count + 1, capacity);
+    }
+
+    public synchronized int getFrameCount() {
+        return count;
+    }
+
+    // Hands every frame to the consumer, oldest first, then frees the ring. Frames arriving
+    // afterwards (captures still in flight) are dropped.
+    public synchronized void drain(FrameConsumer consumer) {
+        closed = true;
+        for (int i = 0; i < count; i++) {
+            int index = (next - count + i + capacity) % capacity;
+            consumer.onFrame(slots[index], lengths[index], widths[index], heights[index], rotations[index], timestampsNs[index]);
+        }
+        count = 0;
+        slots = null;
+    }
+}
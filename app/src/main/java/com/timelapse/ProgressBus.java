@@ -0,0 +1,102 @@
+package com.timelapse;
+
+import android.os.Handler;
+import android.os.SystemClock;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+// Coalesces per-frame progress into at most one delivery per interval.
+// Publishing only records the latest values, so capture threads never touch the UI,
+// NotificationManager or the main looper more often than the configured rate.
+// Subscribers are called on the bus handler's thread.
+public class ProgressBus {
+
+    public static class Progress {
+        public final int frameCount;
+        public final int compileBacklog;
+        public final long timestampMs;
+
+        Progress(int frameCount, int compileBacklog, long timestampMs) {
+            this.frameCount = frameCount;
+            this.compileBacklog = compileBacklog;
+            this.timestampMs = timestampMs;
+        }
+    }
+
+    public interface Subscriber {
+        void onProgress(Progress progress);
+    }
+
+    private final Handler handler;
+    private final List<Subscriber> subscribers = new CopyOnWriteArrayList<>();
+    private volatile long minIntervalMs;
+
+    private volatile int frameCount = 0;
+    private volatile int compileBacklog = 0;
+    private boolean deliveryScheduled = false; // Guarded by this
+    private volatile long lastDeliveryMs = 0; // Written on the handler thread
+
+    public ProgressBus(Handler handler, long minIntervalMs) {
+        this.handler = handler;
+        this.minIntervalMs = minIntervalMs;
+    }
+
+    public void setMinInterval(long minIntervalMs) {
+        this.minIntervalMs = minIntervalMs;
+    }
+
+    public void subscribe(Subscriber subscriber) {
+        if (!subscribers.contains(subscriber)) {
+            subscribers.add(subscriber);
+        }
+    }
+
+    public void unsubscribe(Subscriber subscriber) {
+        subscribers.remove(subscriber);
+    }
+
+    public void publishFrameCount(int frameCount) {
+        this.frameCount = frameCount;
+        scheduleDelivery();
+    }
+
+    public void publishCompileBacklog(int compileBacklog) {
+        this.compileBacklog = compileBacklog;
+        scheduleDelivery();
+    }
+
+    // Deliver the current values immediately (e.g. at start/stop)
+    public void flush() {
+        handler.post(deliverRunnable);
+    }
+
+    public Progress getLatest() {
+        return new Progress(frameCount, compileBacklog, SystemClock.elapsedRealtime());
+    }
+
+    private void scheduleDelivery() {
+        synchronized (this) {
+            if (deliveryScheduled) return;
+            deliveryScheduled = true;
+        }
+        long sinceLast = SystemClock.elapsedRealtime() - lastDeliveryMs;
+        handler.postDelayed(deliverRunnable, Math.max(0, minIntervalMs - sinceLast));
+    }
+
+    private final Runnable deliverRunnable = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (ProgressBus.this) {
+                deliveryScheduled = false;
+            }
+            lastDeliveryMs = SystemClock.elapsedRealtime();
+            if (subscribers.isEmpty()) return;
+
+            Progress progress = getLatest();
+            for (Subscriber subscriber : subscribers) {
+                subscriber.onProgress(progress);
+            }
+        }
+    };
+}
@@ -0,0 +1,89 @@
+package com.timelapse;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Handler;
+import android.os.Looper;
+import android.view.View;
+import android.widget.ImageView;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+// Plays the session's proxy frames as a looping timelapse in a small ImageView.
+// Long sessions are strided so one loop never exceeds MAX_LOOP_FRAMES.
+public class ProxyPreviewPlayer {
+
+    private static final int PLAYBACK_FPS = 15;
+    private static final int MAX_LOOP_FRAMES = 150;
+
+    private final ImageView target;
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final ExecutorService decodeExecutor = Executors.newSingleThreadExecutor();
+
+    private ProxyStore proxyStore;
+    private boolean playing = false;
+    private boolean decodePending = false;
+    private int position = 0;
+
+    public ProxyPreviewPlayer(ImageView target) {
+        this.target = target;
+    }
+
+    public void start(ProxyStore store) {
+        if (store == null) {
+            return;
+        }
+        proxyStore = store;
+        if (!playing) {
+            playing = true;
+            handler.post(frameRunnable);
+        }
+    }
+
+    public void stop() {
+        playing = false;
+        handler.removeCallbacks(frameRunnable);
+        target.setVisibility(View.GONE);
+        target.setImageBitmap(null);
+    }
+
+    public void release() {
+        stop();
+        decodeExecutor.shutdown();
+    }
+
+    private final Runnable frameRunnable = new Runnable() {
+        @Override
+        public void run() {
+            if (!playing) return;
+
+            int frameCount = proxyStore.getFrameCount();
+            // Skip this tick if the previous decode hasn't landed yet
+            if (frameCount > 0 && !decodePending) {
+                int stride = Math.max(1, (frameCount + MAX_LOOP_FRAMES - 1) / MAX_LOOP_FRAMES);
+                if (position >= frameCount) {
+                    position = 0;
+                }
+                final String path = proxyStore.getFramePath(position);
+                position += stride;
+
+                decodePending = true;
+                decodeExecutor.execute(() -> {
+                    BitmapFactory.Options options = new BitmapFactory.Options();
+                    options.inPreferredConfig = Bitmap.Config.RGB_565;
+                    final Bitmap frame = BitmapFactory.decodeFile(path, options);
+                    handler.post(() -> {
+                        decodePending = false;
+                        if (playing && frame != null) {
+                            target.setImageBitmap(frame);
+                            target.setVisibility(View.VISIBLE);
+                        }
+                    });
+                });
+            }
+
+            handler.postDelayed(this, 1000 / PLAYBACK_FPS);
+        }
+    };
+}
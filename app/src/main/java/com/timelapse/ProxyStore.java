@@ -0,0 +1,234 @@
+package com.timelapse;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Matrix;
+import android.media.ExifInterface;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+// Keeps a small (240p) JPEG copy of every captured frame for the live preview and quick exports.
+// Still captures are proxied with a subsampled decode (inSampleSize), so libjpeg scales during
+// the IDCT and the full-resolution frame is never materialized.
+public class ProxyStore {
+
+    private static final String TAG = "ProxyStore";
+    public static final int PROXY_SHORT_SIDE = 240;
+    private static final int PROXY_JPEG_QUALITY = 70;
+
+    private final File proxyDir;
+    private final List<String> proxyPaths = new ArrayList<>();
+
+    public ProxyStore(File sessionDir) {
+        proxyDir = new File(sessionDir, "proxy");
+        if (!proxyDir.exists() && !proxyDir.mkdirs()) {
+            Log.e(TAG, "Failed to create proxy directory");
+        }
+    }
+
+    public File getDirectory() {
+        return proxyDir;
+    }
+
+    // Create a proxy from a freshly saved capture. Returns the frame's mean luma (0-255), or -1.
+    public float addFromJpeg(String imagePath, int frameIndex) {
+        try {
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inJustDecodeBounds = true;
+            BitmapFactory.decodeFile(imagePath, options);
+            int shortSide = Math.min(options.outWidth, options.outHeight);
+            if (shortSide <= 0) {
+                return -1;
+            }
+
+            int sampleSize = 1;
+            while (shortSide / (sampleSize * 2) >= PROXY_SHORT_SIDE) {
+                sampleSize *= 2;
+            }
+            options.inJustDecodeBounds = false;
+            options.inSampleSize = sampleSize;
+            options.inPreferredConfig = Bitmap.Config.RGB_565;
+            Bitmap sampled = BitmapFactory.decodeFile(imagePath, options);
+            if (sampled == null) {
+                return -1;
+            }
+
+            // Scale to the exact proxy size and bake in the EXIF rotation (cheap at this size)
+            ExifInterface exif = new ExifInterface(imagePath);
+            int orientation = exif.getAttributeInt(ExifInterface.TAG_ORIENTATION, ExifInterface.ORIENTATION_NORMAL);
+            float scale = (float) PROXY_SHORT_SIDE / Math.min(sampled.getWidth(), sampled.getHeight());
+            Matrix matrix = new Matrix();
+            matrix.postScale(scale, scale);
+            if (orientation == ExifInterface.ORIENTATION_ROTATE_90) {
+                matrix.postRotate(90);
+            } else if (orientation == ExifInterface.ORIENTATION_ROTATE_180) {
+                matrix.postRotate(180);
+            } else if (orientation == ExifInterface.ORIENTATION_ROTATE_270) {
+                matrix.postRotate(270);
+            }
+            Bitmap proxy = Bitmap.createBitmap(sampled, 0, 0, sampled.getWidth(), sampled.getHeight(), matrix, true);
+            if (proxy != sampled) {
+                sampled.recycle();
+            }
+
+            float meanLuma = computeMeanLuma(proxy);
+            add(proxy, frameIndex);
+            proxy.recycle();
+            return meanLuma;
+        } catch (Exception e) {
+            Log.e(TAG, "Error creating proxy for " + imagePath, e);
+            return -1;
+        }
+    }
+
+    // Even proxy size of a width x height frame, for sampleNV12()
+    public static int[] getProxySize(int width, int height) {
+        float scale = (float) PROXY_SHORT_SIDE / Math.min(width, height);
+        return new int[]{Math.max(2, Math.round(width * scale) & ~1), Math.max(2, Math.round(height * scale) & ~1)};
+    }
+
+    // Point-samples an NV12 frame down to a small NV12 frame. Only the destination grid of the
+    // source is read, so the stream thread can hand a copy to the proxy executor cheaply.
+    public static void sampleNV12(byte[] src, int srcWidth, int srcHeight, byte[] dst, int dstWidth, int dstHeight) {
+        for (int dy = 0; dy < dstHeight; dy++) {
+            int row = Math.min(srcHeight - 1, dy * srcHeight / dstHeight) * srcWidth;
+            int out = dy * dstWidth;
+            for (int dx = 0; dx < dstWidth; dx++) {
+                dst[out + dx] = src[row + Math.min(srcWidth - 1, dx * srcWidth / dstWidth)];
+            }
+        }
+        int srcFrameSize = srcWidth * srcHeight;
+        int dstFrameSize = dstWidth * dstHeight;
+        int srcChromaWidth = srcWidth / 2;
+        int srcChromaHeight = srcHeight / 2;
+        for (int dy = 0; dy < dstHeight / 2; dy++) {
+            int row = srcFrameSize + Math.min(srcChromaHeight - 1, dy * srcHeight / dstHeight) * srcWidth;
+            int out = dstFrameSize + dy * dstWidth;
+            for (int dx = 0; dx < dstWidth / 2; dx++) {
+                int in = row + Math.min(srcChromaWidth - 1, dx * srcWidth / dstWidth) * 2;
+                dst[out + dx * 2] = src[in];
+                dst[out + dx * 2 + 1] = src[in + 1];
+            }
+        }
+    }
+
+    // Create a proxy by point-sampling an NV12 frame from the stream capture path (already
+    // reduced by sampleNV12(), so this runs on the proxy executor). Only the ~240p grid of
+    // pixels is read. Returns the frame's mean luma (0-255), or -1.
+    public float addFromNV12(byte[] nv12, int width, int height, int rotationDegrees, int frameIndex) {
+        try {
+            float scale = (float) PROXY_SHORT_SIDE / Math.min(width, height);
+            int proxyWidth = Math.max(1, Math.round(width * scale));
+            int proxyHeight = Math.max(1, Math.round(height * scale));
+            int frameSize = width * height;
+
+            int[] argb = new int[proxyWidth * proxyHeight];
+            int index = 0;
+            long lumaSum = 0;
+            for (int py = 0; py < proxyHeight; py++) {
+                int y = Math.min(height - 1, (int) (py / scale));
+                int uvRow = frameSize + (y / 2) * width;
+                for (int px = 0; px < proxyWidth; px++) {
+                    int x = Math.min(width - 1, (int) (px / scale));
+                    int Y = (nv12[y * width + x] & 0xff);
+                    lumaSum += Y;
+                    Y -= 16;
+                    int uvIndex = uvRow + (x & ~1);
+                    int U = (nv12[uvIndex] & 0xff) - 128;
+                    int V = (nv12[uvIndex + 1] & 0xff) - 128;
+
+                    int C = 298 * Math.max(0, Y);
+                    int R = clamp((C + 409 * V + 128) >> 8);
+                    int G = clamp((C - 100 * U - 208 * V + 128) >> 8);
+                    int B = clamp((C + 516 * U + 128) >> 8);
+                    argb[index++] = 0xff000000 | (R << 16) | (G << 8) | B;
+                }
+            }
+
+            Bitmap proxy = Bitmap.createBitmap(argb, proxyWidth, proxyHeight, Bitmap.Config.ARGB_8888);
+            if (rotationDegrees != 0) {
+                Matrix matrix = new Matrix();
+                matrix.postRotate(rotationDegrees);
+                Bitmap rotated = Bitmap.createBitmap(proxy, 0, 0, proxyWidth, proxyHeight, matrix, false);
+                if (rotated != proxy) {
+                    proxy.recycle();
+                }
+                proxy = rotated;
+            }
+
+            add(proxy, frameIndex);
+            proxy.recycle();
+            return (float) lumaSum / argb.length;
+        } catch (Exception e) {
+            Log.e(TAG, "Error creating proxy for stream frame " + frameIndex, e);
+            return -1;
+        }
+    }
+
+    private static float computeMeanLuma(Bitmap bitmap) {
+        int width = bitmap.getWidth();
+        int height = bitmap.getHeight();
+        int[] pixels = new int[width * height];
+        bitmap.getPixels(pixels, 0, width, 0, 0, width, height);
+        long sum = 0;
+        for (int pixel : pixels) {
+            int R = (pixel >> 16) & 0xff;
+            int G = (pixel >> 8) & 0xff;
+            int B = pixel & 0xff;
+            sum += ((66 * R + 129 * G + 25 * B + 128) >> 8) + 16;
+        }
+        return (float) sum / pixels.length;
+    }
+
+    private static int clamp(int value) {
+        return value < 0 ? 0 : (value > 255 ? 255 : value);
+    }
+
+    // Store an already downscaled, upright frame
+    public void add(Bitmap proxy, int frameIndex) throws Exception {
+        File proxyFile = new File(proxyDir, String.format(Locale.US, "proxy_%06d.jpg", frameIndex));
+        try (FileOutputStream out = new FileOutputStream(proxyFile)) {
+            proxy.compress(Bitmap.CompressFormat.JPEG, PROXY_JPEG_QUALITY, out);
+        }
+        synchronized (proxyPaths) {
+            proxyPaths.add(proxyFile.getAbsolutePath());
+        }
+    }
+
+    public int getFrameCount() {
+        synchronized (proxyPaths) {
+            return proxyPaths.size();
+        }
+    }
+
+    public String getFramePath(int index) {
+        synchronized (proxyPaths) {
+            return proxyPaths.get(index);
+        }
+    }
+
+    public List<String> getFramePaths() {
+        synchronized (proxyPaths) {
+            return new ArrayList<>(proxyPaths);
+        }
+    }
+
+    // Delete all proxies and the proxy directory
+    public void clear() {
+        synchronized (proxyPaths) {
+            proxyPaths.clear();
+        }
+        File[] files = proxyDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        proxyDir.delete();
+    }
+}
@@ -0,0 +1,727 @@
+package com.timelapse;
+
+import android.media.ExifInterface;
+import android.os.Handler;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import androidx.camera.core.ImageAnalysis;
+import androidx.camera.core.ImageCapture;
+import androidx.camera.core.ImageCaptureException;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+// One recording, from the first capture to the saved (or queued) video. Each session owns its
+// frames, segments, output directory, settings and executors, so TimeLapseService can capture
+// session N+1 while session N compiles its last segment and merges in the background.
+// Segment compiles of all sessions share CompilePool, which is bounded by encoder instances.
+public class RecordingSession {
+
+    private static final String TAG = "RecordingSession";
+    static final int FRAMES_PER_SEGMENT = 300; // Compile every 300 frames (10 seconds of output video)
+
+    private final TimeLapseService service;
+    private final File outputDir;
+    private final ProxyStore proxyStore;
+    private final List<Rendition> renditions;
+    private final int captureIntervalMs;
+    private final int outputFrameRate;
+    private final boolean variableFrameRate; // Keep exact capture times instead of snapping to the frame grid
+    private final boolean allIntraSegments; // Keyframe-only segments for frame-accurate retime/trim
+    private final boolean uprightPixels; // Rotate still-capture pixels instead of writing an orientation hint
+    private final boolean stabilize; // Inline stabilization of still-capture segments
+    private final Stabilizer stabilizer; // Shared by those segments, which then compile in order on stabilizedLane
+    private final Executor stabilizedLane;
+    private final String reframePreset; // Crop/pan-zoom of still-capture segments
+    private final int overlayLayers; // OverlayCompositor.LAYER_* flags burned into every frame
+    private final int interpolation; // FrameInterpolator.MODE_*; captures are then CAPTURE_DIVISOR output frames apart
+    private final int captureStepMs; // Time between captures; captureIntervalMs still maps capture time to output time
+    private final boolean holdForReview; // Keep still frames uncompiled for ReviewActivity
+    private boolean reviewFrames = false; // holdForReview of a still capture; set at start
+
+    // Capture callbacks run here, then finalization (at background priority) once stopped
+    private final ExecutorService sessionExecutor = createSerialExecutor();
+    // Stream analyzer frames and the live segment encoders
+    private final ExecutorService streamExecutor = createSerialExecutor();
+
+    private volatile boolean capturing = false;
+    private volatile boolean prewarmReleased = false;
+    private ImageCapture imageCapture;
+    private ImageAnalysis imageAnalysis;
+    private StreamFrameSampler streamSampler;
+    private Handler captureHandler;
+    private TimeLapseService.VideoCompletionCallback videoCompletionCallback;
+    private volatile EnergyMonitor energyMonitor; // Runs from start until the session has finished
+
+    private volatile int totalFrameCount = 0;
+    private int preRollFrameCount = 0; // Frames handed over at start, counted once drained
+    private final List<String> capturedImages = new ArrayList<>(); // Only touched on sessionExecutor
+    private boolean capturedLeadIn = false; // capturedImages starts with the last frame of the previous segment
+    private final List<Long> capturedPresentationTimes = new ArrayList<>(); // Output timestamp of each entry in capturedImages
+    private final List<Long> segmentStartTimes = new ArrayList<>(); // First output timestamp of each segment, indexed like compiledSegments
+    private final List<String[]> compiledSegments = new ArrayList<>(); // Indexed by segment number, one path per rendition, null until compiled
+    private final List<Future<?>> pendingSegments = Collections.synchronizedList(new ArrayList<>());
+    private long sessionStartUs = -1; // Capture time of the first frame, -1 until then
+    private volatile long sessionStartWallMs; // Wall-clock time of the first frame, for overlays
+    private long lastPresentationUs = -1; // Keeps output timestamps strictly increasing
+    private long captureRoundTripTotalMs = 0;
+    private long captureRoundTripMaxMs = 0; // Worst round-trip in the current logging window (stalls)
+
+    private SegmentEncoder[] streamEncoders; // One per rendition, only touched on streamExecutor
+    private byte[][] streamScaledFrames; // Downscale buffers for the smaller renditions
+    private int streamSegmentNumber;
+    private OverlayCompositor streamCompositor;
+    private long streamSegmentStartUs;
+    private FrameInterpolator streamInterpolator;
+    private byte[] streamPreviousFrame; // Last sampled frame before overlays, for interpolation
+    private byte[] streamInterpolatedFrame;
+    private long streamPreviousUs;
+
+    RecordingSession(TimeLapseService service, File outputDir, List<Rendition> renditions, int captureIntervalMs,
+                     int outputFrameRate, boolean variableFrameRate, boolean allIntraSegments, boolean uprightPixels,
+                     boolean stabilize, String reframePreset, int overlayLayers, int interpolation, boolean holdForReview) {
+        this.service = service;
+        this.outputDir = outputDir;
+        this.proxyStore = new ProxyStore(outputDir);
+        this.renditions = renditions;
+        this.captureIntervalMs = captureIntervalMs;
+        this.outputFrameRate = outputFrameRate;
+        this.variableFrameRate = variableFrameRate;
+        this.allIntraSegments = allIntraSegments;
+        this.uprightPixels = uprightPixels;
+        this.stabilize = stabilize;
+        this.stabilizer = stabilize ? new Stabilizer(true) : null;
+        this.stabilizedLane = stabilize ? CompilePool.newSerialLane(service) : null;
+        this.reframePreset = reframePreset;
+        this.overlayLayers = overlayLayers;
+        this.interpolation = interpolation;
+        this.captureStepMs = interpolation != FrameInterpolator.MODE_OFF
+                ? captureIntervalMs * FrameInterpolator.CAPTURE_DIVISOR
+                : captureIntervalMs;
+        this.holdForReview = holdForReview;
+    }
+
+    // Single worker that exits when idle, so a finished session leaves no thread behind
+    private static ExecutorService createSerialExecutor() {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1, 10, TimeUnit.SECONDS, new LinkedBlockingQueue<>());
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    public File getOutputDir() {
+        return outputDir;
+    }
+
+    // Proxy frames of this session, for the live preview
+    public ProxyStore getProxyStore() {
+        return proxyStore;
+    }
+
+    public int getFrameCount() {
+        return totalFrameCount;
+    }
+
+    // Battery use of this session so far; null before start
+    public EnergyMonitor getEnergyMonitor() {
+        return energyMonitor;
+    }
+
+    // Luma/sharpness statistics of every frame compiled so far in this session, or of the
+    // whole session once it has been rendered
+    public List<FrameStats> getFrameStats() {
+        return outputDir.exists() ? FrameStats.readSession(outputDir) : FrameStats.readArchive(service, outputDir.getName());
+    }
+
+    // Pass an ImageAnalysis to sample frames from the continuous YUV stream instead of
+    // running a still capture per frame; imageCapture may then be null. Pre-roll frames (may be
+    // null) become the start of the session, queued ahead of the first live frame.
+    void start(ImageCapture imageCapture, ImageAnalysis imageAnalysis, Handler captureHandler, PreRollBuffer preRoll) {
+        this.imageCapture = imageCapture;
+        this.imageAnalysis = imageAnalysis;
+        this.captureHandler = captureHandler;
+        capturing = true;
+        preRollFrameCount = preRoll != null ? preRoll.getFrameCount() : 0;
+        reviewFrames = holdForReview && imageAnalysis == null; // Stream frames are never written out
+        energyMonitor = new EnergyMonitor(service, captureHandler, imageAnalysis != null ? "stream" : "interval",
+                captureStepMs, outputFrameRate);
+        energyMonitor.start(service.getPreviewState());
+
+        if (imageAnalysis != null) {
+            streamSegmentNumber = -1;
+            if (preRollFrameCount > 0) {
+                streamExecutor.execute(() -> preRoll.drain((data, length, width, height, rotationDegrees, timestampNs) ->
+                        onStreamFrame(data, width, height, rotationDegrees, timestampNs)));
+            }
+            streamInterpolator = interpolation != FrameInterpolator.MODE_OFF ? new FrameInterpolator(interpolation) : null;
+            streamSampler = new StreamFrameSampler(captureStepMs, this::onStreamFrame);
+            imageAnalysis.setAnalyzer(streamExecutor, streamSampler);
+            Log.d(TAG, "Stream capture started: " + outputDir.getName());
+        } else {
+            streamSampler = null;
+            if (preRollFrameCount > 0) {
+                sessionExecutor.execute(() -> preRoll.drain(this::savePreRollFrame));
+            }
+            captureHandler.post(captureRunnable);
+            Log.d(TAG, "Still capture started: " + outputDir.getName());
+        }
+    }
+
+    // Stops capturing and finishes the video in the background; the camera is free for the next
+    // session as soon as this returns. The callback runs on this session's thread, never before
+    // this returns, including the error when no frames were captured.
+    void stop(boolean deferRendering, TimeLapseService.VideoCompletionCallback callback) {
+        capturing = false;
+        videoCompletionCallback = callback;
+        captureHandler.removeCallbacks(captureRunnable);
+        if (streamSampler != null) {
+            streamSampler.stop();
+            imageAnalysis.clearAnalyzer();
+        }
+
+        sessionExecutor.execute(() -> {
+            // Counted after any capture still queued on this thread has been saved
+            if (totalFrameCount == 0 && preRollFrameCount == 0) {
+                SessionRender.deleteRecursively(outputDir);
+                energyMonitor.stop();
+                callback.onError("No frames captured");
+                service.onSessionFinished(this);
+                return;
+            }
+            finish(deferRendering);
+        });
+    }
+
+    // Runs on streamExecutor. Sampled frames go straight into the live segment encoder.
+    private void onStreamFrame(byte[] nv12, int width, int height, int rotationDegrees, long timestampNs) {
+        if (!capturing) return;
+
+        energyMonitor.beginPhase(EnergyMonitor.PHASE_CAPTURE);
+        try {
+            long presentationUs = nextPresentationTimeUs(timestampNs / 1000);
+            int inBetweenCount = streamInterpolator != null && streamPreviousFrame != null
+                    ? FrameInterpolator.getInBetweenCount(streamPreviousUs, presentationUs, outputFrameRate)
+                    : 0;
+            if (streamEncoders == null) {
+                // A new segment starts with the in-betweens leading up to this frame
+                openStreamSegment(width, height, rotationDegrees, inBetweenCount > 0
+                        ? FrameInterpolator.getInBetweenTimeUs(streamPreviousUs, presentationUs, 1, inBetweenCount)
+                        : presentationUs);
+            }
+
+            OverlayCompositor.Spec overlay = getOverlaySpec();
+            if (overlay != null && streamCompositor == null) {
+                streamCompositor = new OverlayCompositor(service, overlay, outputFrameRate, width, height, rotationDegrees);
+            }
+
+            if (inBetweenCount > 0) {
+                if (streamInterpolatedFrame == null || streamInterpolatedFrame.length != nv12.length) {
+                    streamInterpolatedFrame = new byte[nv12.length];
+                }
+                streamInterpolator.setPair(streamPreviousFrame, nv12, width, height);
+                for (int k = 1; k <= inBetweenCount; k++) {
+                    long inBetweenUs = FrameInterpolator.getInBetweenTimeUs(streamPreviousUs, presentationUs, k, inBetweenCount);
+                    streamInterpolator.interpolate((float) k / (inBetweenCount + 1), streamInterpolatedFrame);
+                    if (streamCompositor != null) {
+                        streamCompositor.compose(streamInterpolatedFrame, inBetweenUs);
+                    }
+                    encodeStreamFrame(streamInterpolatedFrame, width, height, inBetweenUs);
+                }
+            }
+            if (streamInterpolator != null) {
+                // Kept before overlays are drawn into nv12
+                if (streamPreviousFrame == null || streamPreviousFrame.length != nv12.length) {
+                    streamPreviousFrame = new byte[nv12.length];
+                }
+                System.arraycopy(nv12, 0, streamPreviousFrame, 0, nv12.length);
+                streamPreviousUs = presentationUs;
+            }
+
+            if (streamCompositor != null) {
+                streamCompositor.compose(nv12, presentationUs);
+            }
+            SegmentEncoder master = streamEncoders[0];
+            Tracer.d(Tracer.STREAM_FRAME, totalFrameCount, presentationUs);
+            encodeStreamFrame(nv12, width, height, presentationUs);
+            // Only a small copy is taken here; the proxy JPEG is made off the encoder thread
+            int[] proxySize = ProxyStore.getProxySize(width, height);
+            final byte[] proxyFrame = new byte[proxySize[0] * proxySize[1] * 3 / 2];
+            ProxyStore.sampleNV12(nv12, width, height, proxyFrame, proxySize[0], proxySize[1]);
+            final int frameIndex = totalFrameCount;
+            service.getProxyExecutor().execute(() -> service.reportSceneLuma(
+                    proxyStore.addFromNV12(proxyFrame, proxySize[0], proxySize[1], rotationDegrees, frameIndex)));
+
+            totalFrameCount++;
+            service.onFrameCaptured(this, totalFrameCount);
+
+            if (master.getFrameCount() >= FRAMES_PER_SEGMENT) {
+                closeStreamSegment(false);
+            }
+        } catch (Exception e) {
+            Log.e(TAG, "Stream frame encoding failed", e);
+            Tracer.e(Tracer.SEGMENT_FAILED, streamSegmentNumber, totalFrameCount);
+            if (streamEncoders != null) {
+                for (SegmentEncoder encoder : streamEncoders) {
+                    if (encoder != null) {
+                        encoder.release();
+                    }
+                }
+                streamEncoders = null;
+            }
+        } finally {
+            energyMonitor.endPhase(EnergyMonitor.PHASE_CAPTURE);
+        }
+    }
+
+    // Runs on streamExecutor. The master gets the frame as is, smaller renditions a scaled copy.
+    private void encodeStreamFrame(byte[] nv12, int width, int height, long presentationUs) {
+        long frameTimeUs = presentationUs - streamSegmentStartUs;
+        for (int r = 0; r < streamEncoders.length; r++) {
+            if (streamEncoders[r] == null) {
+                continue;
+            } else if (streamScaledFrames[r] == null) {
+                streamEncoders[r].encodeFrame(nv12, frameTimeUs);
+            } else {
+                VideoCompiler.scaleYUV420SP(nv12, width, height, streamScaledFrames[r],
+                        streamEncoders[r].getWidth(), streamEncoders[r].getHeight());
+                streamEncoders[r].encodeFrame(streamScaledFrames[r], frameTimeUs);
+            }
+        }
+    }
+
+    // Runs on streamExecutor. Reserves the next segment slot and opens one encoder per rendition;
+    // renditions that would not be smaller than the master are skipped.
+    private void openStreamSegment(int width, int height, int rotationDegrees, long startUs) throws Exception {
+        synchronized (compiledSegments) {
+            streamSegmentNumber = compiledSegments.size();
+            compiledSegments.add(null);
+            segmentStartTimes.add(startUs);
+        }
+        streamSegmentStartUs = startUs;
+        EncoderCapabilities capabilities = EncoderCapabilities.get(service);
+        SegmentEncoder[] encoders = new SegmentEncoder[renditions.size()];
+        if (streamScaledFrames == null || streamScaledFrames.length != renditions.size()) {
+            streamScaledFrames = new byte[renditions.size()][];
+        }
+        int[][] sizes = capabilities.getRenditionSizes(width, height, renditions, outputFrameRate);
+        try {
+            for (int r = 0; r < renditions.size(); r++) {
+                int[] size = sizes[r];
+                if (size == null) {
+                    // No smaller than the master; the master covers it
+                    continue;
+                }
+                boolean fullSize = size[0] == width && size[1] == height;
+                String segmentPath = VideoCompiler.getSegmentPath(outputDir.getAbsolutePath(), streamSegmentNumber, renditions.get(r));
+                encoders[r] = new SegmentEncoder(segmentPath, size[0], size[1], outputFrameRate,
+                        allIntraSegments ? 0 : VideoCompiler.I_FRAME_INTERVAL, rotationDegrees, capabilities);
+                int scaledLength = size[0] * size[1] * 3 / 2;
+                if (fullSize) {
+                    streamScaledFrames[r] = null;
+                } else if (streamScaledFrames[r] == null || streamScaledFrames[r].length != scaledLength) {
+                    streamScaledFrames[r] = new byte[scaledLength];
+                }
+            }
+        } catch (Exception e) {
+            for (SegmentEncoder encoder : encoders) {
+                if (encoder != null) {
+                    encoder.release();
+                }
+            }
+            throw e;
+        }
+        streamEncoders = encoders;
+        releaseUnusedPrewarmed();
+    }
+
+    // Once the first segment has taken the pre-warmed encoders it matches, any left over are of
+    // no use to this session; don't hold their instances for the rest of the recording
+    private void releaseUnusedPrewarmed() {
+        if (!prewarmReleased) {
+            prewarmReleased = true;
+            EncoderCapabilities.releasePrewarmed();
+        }
+    }
+
+    // Runs on streamExecutor. Finalizing drains the codecs, so mid-recording rolls
+    // hand it to the compile pool to keep the stream thread free.
+    private void closeStreamSegment(boolean synchronous) {
+        final SegmentEncoder[] encoders = streamEncoders;
+        final int segmentNumber = streamSegmentNumber;
+        streamEncoders = null;
+        if (encoders == null) return;
+
+        Runnable finishTask = () -> {
+            String[] segmentPaths = new String[encoders.length];
+            try {
+                for (int r = 0; r < encoders.length; r++) {
+                    if (encoders[r] != null) {
+                        encoders[r].finish();
+                        segmentPaths[r] = encoders[r].getOutputPath();
+                    }
+                }
+                synchronized (compiledSegments) {
+                    compiledSegments.set(segmentNumber, segmentPaths);
+                }
+                Log.d(TAG, "Stream segment #" + segmentNumber + " finished with " + encoders[0].getFrameCount() + " frames");
+            } catch (Exception e) {
+                Log.e(TAG, "Stream segment #" + segmentNumber + " failed", e);
+                Tracer.e(Tracer.SEGMENT_FAILED, segmentNumber, 0);
+                for (SegmentEncoder encoder : encoders) {
+                    if (encoder != null) {
+                        encoder.release();
+                    }
+                }
+            }
+        };
+
+        if (synchronous) {
+            finishTask.run();
+        } else {
+            service.onCompileQueued();
+            pendingSegments.add(service.getCompilationExecutor().submit(() -> {
+                energyMonitor.beginPhase(EnergyMonitor.PHASE_COMPILE);
+                try {
+                    finishTask.run();
+                } finally {
+                    energyMonitor.endPhase(EnergyMonitor.PHASE_COMPILE);
+                    service.onCompileFinished();
+                }
+            }));
+        }
+    }
+
+    // Output timestamp for a frame captured at captureTimeUs (any monotonic clock, one per session).
+    // Called on the capture thread of the active mode only.
+    private long nextPresentationTimeUs(long captureTimeUs) {
+        if (sessionStartUs < 0) {
+            sessionStartUs = captureTimeUs;
+            // Capture clocks are elapsedRealtime based; pre-roll frames can be minutes old
+            long ageMs = (SystemClock.elapsedRealtimeNanos() / 1000 - captureTimeUs) / 1000;
+            sessionStartWallMs = System.currentTimeMillis() - (ageMs >= 0 && ageMs < 3600000 ? ageMs : 0);
+        }
+        long presentationUs = VideoCompiler.getPresentationTimeUs(captureTimeUs - sessionStartUs,
+                captureIntervalMs * 1000L, outputFrameRate, variableFrameRate);
+        if (presentationUs <= lastPresentationUs) {
+            // Two captures in one output slot (an early frame after a late one): take the next slot
+            presentationUs = lastPresentationUs + (variableFrameRate ? 1000 : 1000000L / outputFrameRate);
+        }
+        lastPresentationUs = presentationUs;
+        return presentationUs;
+    }
+
+    private final Runnable captureRunnable = new Runnable() {
+        @Override
+        public void run() {
+            if (!capturing) return;
+
+            captureImage();
+            captureHandler.postDelayed(this, captureStepMs);
+        }
+    };
+
+    // Runs on sessionExecutor ahead of any live capture callback. Writes a pre-roll JPEG as a
+    // session frame; its timestamp is on the elapsedRealtime clock like live captures.
+    private void savePreRollFrame(byte[] jpeg, int length, int width, int height, int rotationDegrees, long timestampNs) {
+        File outputFile = new File(outputDir, String.format(Locale.US, "preroll_%04d.jpg", totalFrameCount));
+        try (FileOutputStream out = new FileOutputStream(outputFile)) {
+            out.write(jpeg, 0, length);
+        } catch (Exception e) {
+            Log.e(TAG, "Error saving pre-roll frame", e);
+            return;
+        }
+
+        try {
+            // In-memory captures carry the rotation beside the JPEG, not always inside it
+            ExifInterface exif = new ExifInterface(outputFile.getAbsolutePath());
+            exif.setAttribute(ExifInterface.TAG_ORIENTATION, String.valueOf(getExifOrientation(rotationDegrees)));
+            exif.saveAttributes();
+        } catch (Exception e) {
+            Log.w(TAG, "Error writing pre-roll orientation", e);
+        }
+
+        totalFrameCount++;
+        capturedImages.add(outputFile.getAbsolutePath());
+        capturedPresentationTimes.add(nextPresentationTimeUs(timestampNs / 1000));
+        final int frameIndex = totalFrameCount - 1;
+        service.getProxyExecutor().execute(() ->
+                service.reportSceneLuma(proxyStore.addFromJpeg(outputFile.getAbsolutePath(), frameIndex)));
+        service.onFrameCaptured(this, totalFrameCount);
+    }
+
+    private static int getExifOrientation(int rotationDegrees) {
+        switch (rotationDegrees) {
+            case 90:
+                return ExifInterface.ORIENTATION_ROTATE_90;
+            case 180:
+                return ExifInterface.ORIENTATION_ROTATE_180;
+            case 270:
+                return ExifInterface.ORIENTATION_ROTATE_270;
+            default:
+                return ExifInterface.ORIENTATION_NORMAL;
+        }
+    }
+
+    private void captureImage() {
+        String fileName = String.format(Locale.getDefault(), "frame_%06d.jpg", totalFrameCount);
+        File outputFile = new File(outputDir, fileName);
+
+        ImageCapture.OutputFileOptions outputFileOptions =
+                new ImageCapture.OutputFileOptions.Builder(outputFile).build();
+        final long requestTimeMs = SystemClock.elapsedRealtime();
+
+        // Request to saved file; the camera pipeline and JPEG write are the capture cost
+        energyMonitor.beginPhase(EnergyMonitor.PHASE_CAPTURE);
+        imageCapture.takePicture(
+                outputFileOptions,
+                sessionExecutor,
+                new ImageCapture.OnImageSavedCallback() {
+                    @Override
+                    public void onImageSaved(@androidx.annotation.NonNull ImageCapture.OutputFileResults output) {
+                        energyMonitor.endPhase(EnergyMonitor.PHASE_CAPTURE);
+                        if (!capturing) {
+                            // Landed after stop; the session's frames are already being finalized
+                            outputFile.delete();
+                            return;
+                        }
+
+                        totalFrameCount++;
+                        capturedImages.add(outputFile.getAbsolutePath());
+                        capturedPresentationTimes.add(nextPresentationTimeUs(requestTimeMs * 1000L));
+
+                        // Track takePicture round-trips (shorter once 3A is locked) and stalls
+                        long roundTripMs = SystemClock.elapsedRealtime() - requestTimeMs;
+                        captureRoundTripTotalMs += roundTripMs;
+                        captureRoundTripMaxMs = Math.max(captureRoundTripMaxMs, roundTripMs);
+                        if (totalFrameCount % 30 == 0) {
+                            Log.d(TAG, "Average capture round-trip: " + (captureRoundTripTotalMs / totalFrameCount) + "ms, max "
+                                    + captureRoundTripMaxMs + "ms" + (service.isExposureLocked() ? " (3A locked)" : ""));
+                            captureRoundTripMaxMs = 0;
+                        }
+
+                        // Downsample for the live preview off the capture thread
+                        final int frameIndex = totalFrameCount - 1;
+                        service.getProxyExecutor().execute(() ->
+                                service.reportSceneLuma(proxyStore.addFromJpeg(outputFile.getAbsolutePath(), frameIndex)));
+
+                        service.onFrameCaptured(RecordingSession.this, totalFrameCount);
+                        Tracer.d(Tracer.IMAGE_SAVED, frameIndex, roundTripMs);
+
+                        // Hand a full segment to the compile pool, unless every frame waits for review
+                        if (!reviewFrames && getUncompiledFrameCount() >= FRAMES_PER_SEGMENT) {
+                            submitCapturedFrames();
+                        }
+                    }
+
+                    @Override
+                    public void onError(@androidx.annotation.NonNull ImageCaptureException exception) {
+                        energyMonitor.endPhase(EnergyMonitor.PHASE_CAPTURE);
+                        Log.e(TAG, "Image capture failed: " + exception.getMessage());
+                    }
+                }
+        );
+    }
+
+    // Captured frames not yet in a segment, not counting a lead-in frame
+    private int getUncompiledFrameCount() {
+        return capturedImages.size() - (capturedLeadIn ? 1 : 0);
+    }
+
+    // Cut all captured frames (and their timestamps) into a segment. When interpolating, the
+    // last frame stays behind as the next segment's lead-in, so the output slots between
+    // segments are filled too. Called on sessionExecutor only, so capturedImages needs no locking.
+    private void submitCapturedFrames() {
+        int frameCount = capturedImages.size();
+        final List<String> framesToCompile = new ArrayList<>(capturedImages);
+        final long[] presentationTimesUs = new long[frameCount];
+        for (int i = 0; i < frameCount; i++) {
+            presentationTimesUs[i] = capturedPresentationTimes.get(i);
+        }
+        boolean leadIn = capturedLeadIn;
+        int keep = interpolation != FrameInterpolator.MODE_OFF ? 1 : 0;
+        capturedImages.subList(0, frameCount - keep).clear();
+        capturedPresentationTimes.subList(0, frameCount - keep).clear();
+        capturedLeadIn = keep > 0;
+        submitSegment(framesToCompile, presentationTimesUs, leadIn);
+    }
+
+    private void submitSegment(final List<String> framesToCompile, final long[] presentationTimesUs, final boolean leadIn) {
+        // Reserve the segment's slot now so the merge keeps capture order
+        // no matter which worker finishes first
+        final int segmentNumber;
+        synchronized (compiledSegments) {
+            segmentNumber = compiledSegments.size();
+            compiledSegments.add(null);
+            segmentStartTimes.add(FrameInterpolator.getSegmentStartUs(presentationTimesUs, leadIn, outputFrameRate));
+        }
+        int backlog = service.onCompileQueued();
+
+        Log.d(TAG, "Queued segment #" + segmentNumber + " with " + framesToCompile.size() + " frames (backlog: " + backlog + ")");
+        Tracer.d(Tracer.SEGMENT_QUEUED, segmentNumber, framesToCompile.size());
+
+        FutureTask<Void> task = new FutureTask<>(() -> {
+            long startMs = SystemClock.elapsedRealtime();
+            energyMonitor.beginPhase(EnergyMonitor.PHASE_COMPILE);
+            try {
+                VideoCompiler compiler = new VideoCompiler();
+                compiler.setUprightPixels(uprightPixels);
+                compiler.setAllIntra(allIntraSegments);
+                compiler.setFrameRate(outputFrameRate);
+                compiler.setFrameStatsFile(FrameStats.getSegmentFile(outputDir, segmentNumber));
+                compiler.setStabilizer(stabilizer);
+                compiler.setReframe(Reframe.forPreset(reframePreset));
+                compiler.setOverlay(getOverlaySpec());
+                compiler.setInterpolation(interpolation, leadIn);
+                String[] segmentPaths = compiler.compileImagesToVideo(service, framesToCompile, presentationTimesUs,
+                        outputDir.getAbsolutePath(), segmentNumber, renditions);
+                releaseUnusedPrewarmed();
+
+                synchronized (compiledSegments) {
+                    compiledSegments.set(segmentNumber, segmentPaths);
+                }
+
+                // Delete compiled frames to free up storage. Frames shared with a neighbouring
+                // segment as its lead-in are left for the session directory cleanup, since
+                // segments compile in parallel.
+                int last = framesToCompile.size() - 1;
+                for (int i = 0; i <= last; i++) {
+                    if ((leadIn && i == 0) || (interpolation != FrameInterpolator.MODE_OFF && i == last)) {
+                        continue;
+                    }
+                    File imageFile = new File(framesToCompile.get(i));
+                    if (imageFile.exists()) {
+                        imageFile.delete();
+                    }
+                }
+
+                Log.d(TAG, "Segment #" + segmentNumber + " compiled successfully: " + segmentPaths[0]);
+                Tracer.d(Tracer.SEGMENT_COMPILED, segmentNumber, SystemClock.elapsedRealtime() - startMs);
+
+            } catch (Exception e) {
+                Log.e(TAG, "Segment #" + segmentNumber + " compilation failed", e);
+                Tracer.e(Tracer.SEGMENT_FAILED, segmentNumber, framesToCompile.size());
+            } finally {
+                energyMonitor.endPhase(EnergyMonitor.PHASE_COMPILE);
+                int remaining = service.onCompileFinished();
+                Log.d(TAG, "Compile backlog: " + remaining);
+            }
+        }, null);
+        pendingSegments.add(task);
+        // Stabilized segments continue each other's camera path, so they run one after another
+        (stabilizedLane != null ? stabilizedLane : service.getCompilationExecutor()).execute(task);
+    }
+
+    // Overlay of this session once its first frame is in, null without layers
+    private OverlayCompositor.Spec getOverlaySpec() {
+        if (overlayLayers == 0 || sessionStartUs < 0) return null;
+        return new OverlayCompositor.Spec(overlayLayers, sessionStartWallMs, captureIntervalMs * outputFrameRate / 1000.0);
+    }
+
+    private void waitForPendingSegments() throws InterruptedException {
+        List<Future<?>> futures;
+        synchronized (pendingSegments) {
+            futures = new ArrayList<>(pendingSegments);
+        }
+        for (Future<?> future : futures) {
+            try {
+                future.get();
+            } catch (ExecutionException e) {
+                Log.e(TAG, "Segment task failed", e);
+            }
+        }
+        pendingSegments.clear();
+    }
+
+    // Snapshot of the stopped session for rendering. With includeFrames, frames not yet
+    // compiled are handed over too instead of being compiled here.
+    private SessionRender buildSessionRender(boolean includeFrames) {
+        SessionRender render = new SessionRender(outputDir, outputFrameRate, allIntraSegments, uprightPixels, stabilize,
+                reframePreset, getOverlaySpec(), interpolation, renditions);
+        render.setStabilizer(stabilizer);
+        if (includeFrames) {
+            // A lead-in alone has nothing left to interpolate towards
+            if (getUncompiledFrameCount() > 0) {
+                for (int i = 0; i < capturedImages.size(); i++) {
+                    render.addFrame(capturedImages.get(i), capturedPresentationTimes.get(i));
+                }
+                render.setLeadIn(capturedLeadIn);
+            }
+            capturedImages.clear();
+            capturedPresentationTimes.clear();
+            capturedLeadIn = false;
+        }
+        synchronized (compiledSegments) {
+            for (int i = 0; i < compiledSegments.size(); i++) {
+                if (compiledSegments.get(i) != null) {
+                    render.addSegment(compiledSegments.get(i).clone(), segmentStartTimes.get(i));
+                }
+            }
+        }
+        return render;
+    }
+
+    // Runs on sessionExecutor after the last capture callback, below the priority of the
+    // next session's capture. Energy is measured until the video is saved or queued.
+    private void finish(boolean deferRendering) {
+        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+        energyMonitor.beginPhase(EnergyMonitor.PHASE_COMPILE);
+        try {
+            // Close the live segment of a stream capture after any frame still in flight
+            if (streamSampler != null) {
+                streamExecutor.submit(() -> closeStreamSegment(true)).get();
+            }
+
+            if (reviewFrames) {
+                // Nothing was compiled; the whole session waits for ReviewActivity
+                proxyStore.clear();
+                SessionRender render = buildSessionRender(true);
+                render.setHeld(true);
+                DeferredJobQueue.get(service).enqueue(render);
+                videoCompletionCallback.onVideoCompleted(null);
+                return;
+            }
+
+            if (deferRendering) {
+                // Only wait for segments already being compiled; the rest waits for the charger
+                waitForPendingSegments();
+                proxyStore.clear();
+                DeferredJobQueue.get(service).enqueue(buildSessionRender(true));
+                videoCompletionCallback.onVideoCompleted(null);
+                return;
+            }
+
+            // Compile any remaining frames as final segment, then wait for the pool to drain
+            if (getUncompiledFrameCount() > 0) {
+                Log.d(TAG, "Compiling remaining " + getUncompiledFrameCount() + " frames");
+                submitCapturedFrames();
+            }
+            waitForPendingSegments();
+
+            proxyStore.clear();
+            String videoPath = buildSessionRender(false).render(service, null);
+            videoCompletionCallback.onVideoCompleted(videoPath);
+
+        } catch (Exception e) {
+            Log.e(TAG, "Video compilation failed", e);
+            videoCompletionCallback.onError("Video compilation failed: " + e.getMessage());
+        } finally {
+            energyMonitor.endPhase(EnergyMonitor.PHASE_COMPILE);
+            energyMonitor.stop();
+            energyMonitor.writeSummary(outputDir.getName(), deferRendering || reviewFrames);
+            service.onSessionFinished(this);
+        }
+    }
+}
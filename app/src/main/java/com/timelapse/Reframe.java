@@ -0,0 +1,166 @@
+package com.timelapse;
+
+import android.graphics.Rect;
+import android.graphics.RectF;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// Per-frame crop of the captured frame, fixed or keyframed over output time (pan/zoom).
+// Crops are given in normalized upright coordinates (what the user sees) and mapped to the
+// stored sensor-orientation pixels, so VideoCompiler can decode just that region with
+// BitmapRegionDecoder instead of decoding and scaling the whole frame.
+public class Reframe {
+
+    public static final String FULL = "full";
+    public static final String SQUARE = "square";
+    public static final String WIDE = "wide";
+    public static final String KEN_BURNS = "ken_burns";
+    public static final String[] PRESETS = {FULL, SQUARE, WIDE, KEN_BURNS};
+    public static final String[] PRESET_LABELS = {"Full Frame", "Square 1:1", "Wide 16:9", "Ken Burns Zoom"};
+
+    private static final long KEN_BURNS_DURATION_US = 20 * 1000000L; // Zoom over the first 20s of output
+    private static final float KEN_BURNS_END_SCALE = 0.6f;
+
+    private static class Keyframe {
+        final long timeUs;
+        final RectF crop;
+
+        Keyframe(long timeUs, RectF crop) {
+            this.timeUs = timeUs;
+            this.crop = crop;
+        }
+    }
+
+    public final String name;
+    private final float aspect; // Upright width / height of the crop, 0 keeps the frame's aspect
+    private final List<Keyframe> keyframes = new ArrayList<>(); // Crops relative to the aspect-fit window
+
+    public Reframe(String name, float aspect) {
+        this.name = name;
+        this.aspect = aspect;
+    }
+
+    // Returns null for the full frame (no reframing)
+    public static Reframe forPreset(String preset) {
+        if (SQUARE.equals(preset)) {
+            return new Reframe(preset, 1f).addKeyframe(0, new RectF(0, 0, 1, 1));
+        } else if (WIDE.equals(preset)) {
+            return new Reframe(preset, 16f / 9f).addKeyframe(0, new RectF(0, 0, 1, 1));
+        } else if (KEN_BURNS.equals(preset)) {
+            float inset = (1f - KEN_BURNS_END_SCALE) / 2f;
+            return new Reframe(preset, 16f / 9f)
+                    .addKeyframe(0, new RectF(0, 0, 1, 1))
+                    .addKeyframe(KEN_BURNS_DURATION_US, new RectF(inset, inset, 1f - inset, 1f - inset));
+        }
+        return null;
+    }
+
+    // Crop at an output time, as a fraction of the largest window of this aspect that fits the frame.
+    // Crops are interpolated linearly between keyframes and held after the last one.
+    public Reframe addKeyframe(long timeUs, RectF crop) {
+        int index = 0;
+        while (index < keyframes.size() && keyframes.get(index).timeUs <= timeUs) {
+            index++;
+        }
+        keyframes.add(index, new Keyframe(timeUs, crop));
+        return this;
+    }
+
+    public boolean isAnimated() {
+        return keyframes.size() > 1;
+    }
+
+    // Output frame size in sensor orientation (even), sized by the largest crop so every
+    // segment of a session encodes at the same size
+    public int[] getOutputSize(int sensorWidth, int sensorHeight, int rotationDegrees) {
+        float maxFraction = 0;
+        for (Keyframe keyframe : keyframes) {
+            maxFraction = Math.max(maxFraction, keyframe.crop.width());
+        }
+        RectF window = getWindow(sensorWidth, sensorHeight, rotationDegrees);
+        float uprightWidth = window.width() * maxFraction;
+        float uprightHeight = window.height() * maxFraction;
+        int width;
+        int height;
+        if (rotationDegrees == 90 || rotationDegrees == 270) {
+            // Upright width runs along the sensor's height
+            width = Math.round(uprightHeight * sensorWidth);
+            height = Math.round(uprightWidth * sensorHeight);
+        } else {
+            width = Math.round(uprightWidth * sensorWidth);
+            height = Math.round(uprightHeight * sensorHeight);
+        }
+        return new int[]{Math.max(2, (width / 2) * 2), Math.max(2, (height / 2) * 2)};
+    }
+
+    // Pixel region of the stored (sensor-orientation) image to show at this output time
+    public Rect getRegion(long presentationTimeUs, int sensorWidth, int sensorHeight, int rotationDegrees) {
+        RectF window = getWindow(sensorWidth, sensorHeight, rotationDegrees);
+        RectF crop = cropAt(presentationTimeUs);
+        RectF upright = new RectF(
+                window.left + crop.left * window.width(),
+                window.top + crop.top * window.height(),
+                window.left + crop.right * window.width(),
+                window.top + crop.bottom * window.height());
+
+        // Map the normalized upright rectangle back onto the sensor image
+        RectF sensor;
+        switch (rotationDegrees) {
+            case 90:
+                sensor = new RectF(upright.top, 1f - upright.right, upright.bottom, 1f - upright.left);
+                break;
+            case 180:
+                sensor = new RectF(1f - upright.right, 1f - upright.bottom, 1f - upright.left, 1f - upright.top);
+                break;
+            case 270:
+                sensor = new RectF(1f - upright.bottom, upright.left, 1f - upright.top, upright.right);
+                break;
+            default:
+                sensor = upright;
+                break;
+        }
+        Rect region = new Rect(
+                Math.round(sensor.left * sensorWidth),
+                Math.round(sensor.top * sensorHeight),
+                Math.round(sensor.right * sensorWidth),
+                Math.round(sensor.bottom * sensorHeight));
+        region.intersect(0, 0, sensorWidth, sensorHeight);
+        return region;
+    }
+
+    // Largest centered upright window with this aspect, normalized to the upright frame
+    private RectF getWindow(int sensorWidth, int sensorHeight, int rotationDegrees) {
+        boolean swap = rotationDegrees == 90 || rotationDegrees == 270;
+        float frameAspect = swap ? (float) sensorHeight / sensorWidth : (float) sensorWidth / sensorHeight;
+        if (aspect <= 0 || Math.abs(aspect - frameAspect) < 0.001f) {
+            return new RectF(0, 0, 1, 1);
+        }
+        if (frameAspect > aspect) {
+            float width = aspect / frameAspect;
+            return new RectF((1f - width) / 2f, 0, (1f + width) / 2f, 1);
+        }
+        float height = frameAspect / aspect;
+        return new RectF(0, (1f - height) / 2f, 1, (1f + height) / 2f);
+    }
+
+    private RectF cropAt(long timeUs) {
+        if (keyframes.isEmpty()) return new RectF(0, 0, 1, 1);
+        Keyframe first = keyframes.get(0);
+        if (timeUs <= first.timeUs) return first.crop;
+
+        for (int i = 1; i < keyframes.size(); i++) {
+            Keyframe a = keyframes.get(i - 1);
+            Keyframe b = keyframes.get(i);
+            if (timeUs <= b.timeUs) {
+                float t = (float) (timeUs - a.timeUs) / Math.max(1, b.timeUs - a.timeUs);
+                return new RectF(
+                        a.crop.left + (b.crop.left - a.crop.left) * t,
+                        a.crop.top + (b.crop.top - a.crop.top) * t,
+                        a.crop.right + (b.crop.right - a.crop.right) * t,
+                        a.crop.bottom + (b.crop.bottom - a.crop.bottom) * t);
+            }
+        }
+        return keyframes.get(keyframes.size() - 1).crop;
+    }
+}
@@ -0,0 +1,46 @@
+package com.timelapse;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+// An output variant of the same timelapse, e.g. the full-resolution master and a 720p share copy.
+// All renditions are encoded from a single decode of each frame.
+public class Rendition {
+
+    public static final Rendition MASTER = new Rendition("master", 0, "");
+    public static final Rendition SHARE_720P = new Rendition("share", 720, "_720p");
+
+    public final String name;
+    public final int maxShortSide; // 0 keeps the source size
+    public final String fileSuffix; // Appended to segment and gallery file names
+
+    public Rendition(String name, int maxShortSide, String fileSuffix) {
+        this.name = name;
+        this.maxShortSide = maxShortSide;
+        this.fileSuffix = fileSuffix;
+    }
+
+    public static Rendition forName(String name) {
+        return SHARE_720P.name.equals(name) ? SHARE_720P : MASTER;
+    }
+
+    // Renditions a recording encodes, master first
+    public static List<Rendition> forSession(boolean shareCopy) {
+        return shareCopy
+                ? Arrays.asList(MASTER, SHARE_720P)
+                : Collections.singletonList(MASTER);
+    }
+
+    // Even output dimensions for a source of the given size (never upscales)
+    public int[] getSize(int sourceWidth, int sourceHeight) {
+        int shortSide = Math.min(sourceWidth, sourceHeight);
+        if (maxShortSide <= 0 || shortSide <= maxShortSide) {
+            return new int[]{(sourceWidth / 2) * 2, (sourceHeight / 2) * 2};
+        }
+        float scale = (float) maxShortSide / shortSide;
+        int width = Math.round(sourceWidth * scale);
+        int height = Math.round(sourceHeight * scale);
+        return new int[]{(width / 2) * 2, (height / 2) * 2};
+    }
+}
@@ -0,0 +1,275 @@
+package com.timelapse;
+
+import android.graphics.Bitmap;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+import android.view.View;
+import android.widget.Button;
+import android.widget.ImageView;
+import android.widget.LinearLayout;
+import android.widget.SeekBar;
+import android.widget.TextView;
+import android.widget.Toast;
+
+import androidx.appcompat.app.AlertDialog;
+import androidx.appcompat.app.AppCompatActivity;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+// Timeline of a session held for review: scrub through its frames, trim the start and end and
+// drop bad frames, then release it to the render queue. Only thumbnails are decoded here; the
+// kept ranges go to SessionRender, which compiles nothing outside them.
+public class ReviewActivity extends AppCompatActivity implements ThumbnailCache.Listener {
+
+    private static final String TAG = "ReviewActivity";
+    static final String EXTRA_OUTPUT_DIR = "output_dir";
+    private static final int STRIP_SIZE = 7; // Odd, so the focused frame is in the middle
+    private static final long PREVIEW_DELAY_MS = 150; // Scrub pause before decoding a sharper frame
+    private static final float EXCLUDED_ALPHA = 0.3f;
+
+    private DeferredJobQueue queue;
+    private SessionRender render;
+    private List<String> frames;
+    private ThumbnailCache thumbnails;
+    private final Handler handler = new Handler(Looper.getMainLooper());
+
+    private int current = 0;
+    private int trimStart = 0;
+    private int trimEnd; // Inclusive
+    private boolean[] dropped;
+    private boolean previewShown = false; // The large view shows more than the thumbnail
+
+    private ImageView frameView;
+    private ImageView[] stripViews;
+    private TextView infoText;
+    private SeekBar seekBar;
+    private Button dropButton;
+
+    private final Runnable previewRunnable = new Runnable() {
+        @Override
+        public void run() {
+            thumbnails.loadPreview(current, Math.max(frameView.getWidth(), frameView.getHeight()));
+        }
+    };
+
+    @Override
+    protected void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        queue = DeferredJobQueue.get(this);
+        render = queue.findByOutputDir(getIntent().getStringExtra(EXTRA_OUTPUT_DIR));
+        if (render == null || !render.isHeld() || render.getFrameCount() == 0) {
+            Toast.makeText(this, "This recording is no longer waiting for review", Toast.LENGTH_SHORT).show();
+            finish();
+            return;
+        }
+        setContentView(R.layout.activity_review);
+
+        frames = render.getFramePaths();
+        dropped = new boolean[frames.size()];
+        trimEnd = frames.size() - 1;
+        restoreKeptRanges(render.getKeptRanges());
+        thumbnails = new ThumbnailCache(render.outputDir, frames, this);
+        Log.d(TAG, "Reviewing " + frames.size() + " frames of " + render.outputDir.getName());
+
+        frameView = findViewById(R.id.reviewFrame);
+        infoText = findViewById(R.id.reviewInfo);
+        seekBar = findViewById(R.id.reviewSeekBar);
+        dropButton = findViewById(R.id.dropButton);
+
+        LinearLayout strip = findViewById(R.id.reviewStrip);
+        stripViews = new ImageView[STRIP_SIZE];
+        for (int i = 0; i < STRIP_SIZE; i++) {
+            ImageView view = new ImageView(this);
+            view.setScaleType(ImageView.ScaleType.CENTER_CROP);
+            view.setPadding(2, 2, 2, 2);
+            final int offset = i - STRIP_SIZE / 2;
+            view.setOnClickListener(v -> seekBar.setProgress(current + offset));
+            strip.addView(view, new LinearLayout.LayoutParams(0, LinearLayout.LayoutParams.MATCH_PARENT, 1));
+            stripViews[i] = view;
+        }
+        stripViews[STRIP_SIZE / 2].setBackgroundColor(0xFFFF8800);
+
+        seekBar.setMax(frames.size() - 1);
+        seekBar.setOnSeekBarChangeListener(new SeekBar.OnSeekBarChangeListener() {
+            @Override
+            public void onProgressChanged(SeekBar seekBar, int progress, boolean fromUser) {
+                showFrame(progress);
+            }
+
+            @Override
+            public void onStartTrackingTouch(SeekBar seekBar) {}
+
+            @Override
+            public void onStopTrackingTouch(SeekBar seekBar) {}
+        });
+
+        findViewById(R.id.trimStartButton).setOnClickListener(v -> {
+            trimStart = current;
+            trimEnd = Math.max(trimEnd, current);
+            updateMarks();
+        });
+        findViewById(R.id.trimEndButton).setOnClickListener(v -> {
+            trimEnd = current;
+            trimStart = Math.min(trimStart, current);
+            updateMarks();
+        });
+        dropButton.setOnClickListener(v -> {
+            dropped[current] = !dropped[current];
+            updateMarks();
+        });
+        findViewById(R.id.discardButton).setOnClickListener(v -> confirmDiscard());
+        findViewById(R.id.renderLaterButton).setOnClickListener(v -> release(false));
+        findViewById(R.id.renderNowButton).setOnClickListener(v -> release(true));
+
+        showFrame(trimStart);
+        seekBar.setProgress(trimStart);
+    }
+
+    @Override
+    protected void onPause() {
+        super.onPause();
+        if (render != null && render.isHeld()) {
+            queue.saveReview(render, getKeptRanges());
+        }
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        handler.removeCallbacks(previewRunnable);
+        if (thumbnails != null) {
+            thumbnails.close();
+        }
+    }
+
+    private void showFrame(int index) {
+        current = Math.max(0, Math.min(frames.size() - 1, index));
+        previewShown = false;
+        Bitmap thumbnail = thumbnails.get(current);
+        if (thumbnail != null) {
+            frameView.setImageBitmap(thumbnail);
+        }
+        handler.removeCallbacks(previewRunnable);
+        handler.postDelayed(previewRunnable, PREVIEW_DELAY_MS);
+        updateMarks();
+    }
+
+    @Override
+    public void onThumbnailReady(int index) {
+        Bitmap thumbnail = thumbnails.peek(index);
+        if (thumbnail == null) return;
+        if (index == current && !previewShown) {
+            frameView.setImageBitmap(thumbnail);
+        }
+        int slot = index - current + STRIP_SIZE / 2;
+        if (slot >= 0 && slot < STRIP_SIZE) {
+            stripViews[slot].setImageBitmap(thumbnail);
+        }
+    }
+
+    @Override
+    public void onPreviewReady(int index, Bitmap preview) {
+        if (index == current) {
+            previewShown = true;
+            frameView.setImageBitmap(preview);
+        }
+    }
+
+    private boolean isKept(int index) {
+        return index >= trimStart && index <= trimEnd && !dropped[index];
+    }
+
+    // Refreshes the strip, dimming excluded frames, and the summary line
+    private void updateMarks() {
+        for (int i = 0; i < STRIP_SIZE; i++) {
+            int index = current + i - STRIP_SIZE / 2;
+            ImageView view = stripViews[i];
+            if (index < 0 || index >= frames.size()) {
+                view.setImageBitmap(null);
+                view.setVisibility(View.INVISIBLE);
+                continue;
+            }
+            view.setVisibility(View.VISIBLE);
+            view.setImageBitmap(thumbnails.peek(index)); // Requested with the focused frame's prefetch
+            view.setAlpha(isKept(index) ? 1f : EXCLUDED_ALPHA);
+        }
+        frameView.setAlpha(isKept(current) ? 1f : EXCLUDED_ALPHA);
+        dropButton.setText(dropped[current] ? R.string.review_keep : R.string.review_drop);
+
+        int kept = getKeptCount();
+        String state = current < trimStart || current > trimEnd ? " (trimmed)" : dropped[current] ? " (dropped)" : "";
+        infoText.setText(String.format(Locale.US, "Frame %d of %d%s\nKeeping %d frames (%.1f s of video)",
+                current + 1, frames.size(), state, kept, getOutputSeconds(kept)));
+    }
+
+    private int getKeptCount() {
+        int kept = 0;
+        for (int i = trimStart; i <= trimEnd; i++) {
+            if (!dropped[i]) kept++;
+        }
+        return kept;
+    }
+
+    private double getOutputSeconds(int keptFrames) {
+        int framesPerCapture = render.interpolation != FrameInterpolator.MODE_OFF ? FrameInterpolator.CAPTURE_DIVISOR : 1;
+        return (double) keptFrames * framesPerCapture / render.frameRate;
+    }
+
+    // [first, last) runs of kept frames, or null when nothing is excluded
+    private List<int[]> getKeptRanges() {
+        if (getKeptCount() == frames.size()) return null;
+        List<int[]> ranges = new ArrayList<>();
+        int start = -1;
+        for (int i = 0; i <= frames.size(); i++) {
+            boolean kept = i < frames.size() && isKept(i);
+            if (kept && start < 0) {
+                start = i;
+            } else if (!kept && start >= 0) {
+                ranges.add(new int[]{start, i});
+                start = -1;
+            }
+        }
+        return ranges;
+    }
+
+    private void restoreKeptRanges(List<int[]> ranges) {
+        if (ranges == null || ranges.isEmpty()) return;
+        trimStart = Math.max(0, ranges.get(0)[0]);
+        trimEnd = Math.min(frames.size() - 1, ranges.get(ranges.size() - 1)[1] - 1);
+        for (int i = trimStart; i <= trimEnd; i++) {
+            dropped[i] = true;
+        }
+        for (int[] range : ranges) {
+            for (int i = Math.max(range[0], trimStart); i < Math.min(range[1], trimEnd + 1); i++) {
+                dropped[i] = false;
+            }
+        }
+    }
+
+    private void release(boolean now) {
+        if (getKeptCount() == 0) {
+            Toast.makeText(this, "Keep at least one frame", Toast.LENGTH_SHORT).show();
+            return;
+        }
+        queue.release(render, getKeptRanges(), now);
+        Toast.makeText(this, now ? "Rendering " + getKeptCount() + " frames" : "Will render while charging",
+                Toast.LENGTH_SHORT).show();
+        finish();
+    }
+
+    private void confirmDiscard() {
+        new AlertDialog.Builder(this)
+                .setTitle("Discard Recording")
+                .setMessage("Delete all " + frames.size() + " frames of this recording?")
+                .setPositiveButton("Discard", (dialog, id) -> {
+                    queue.discard(render);
+                    finish();
+                })
+                .setNegativeButton("Cancel", null)
+                .show();
+    }
+}
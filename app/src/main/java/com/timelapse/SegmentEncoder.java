@@ -0,0 +1,291 @@
+package com.timelapse;
+
+import android.media.Image;
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.media.MediaMuxer;
+import android.os.Build;
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+
+// One H.264 encoder + MP4 muxer session fed with NV12 frames.
+// Shared by the image compiler and the live stream capture path. The codec, size limits and
+// input color format come from EncoderCapabilities; frames are repacked when the encoder
+// does not take NV12 directly.
+public class SegmentEncoder {
+
+    private static final String TAG = "SegmentEncoder";
+    private static final int TIMEOUT_US = 10000;
+    private static final int OPEN_ATTEMPTS = 4;
+    private static final long OPEN_RETRY_DELAY_MS = 250; // Times the attempt number
+
+    private final String outputPath;
+    private final int width;
+    private final int height;
+    private final int colorFormat;
+    private final MediaCodec encoder;
+    private final MediaMuxer muxer;
+    private final MediaCodec.BufferInfo bufferInfo = new MediaCodec.BufferInfo();
+
+    private int trackIndex = -1;
+    private boolean muxerStarted = false;
+    private long lastPresentationTimeUs = 0;
+    private int frameCount = 0;
+    private boolean released = false;
+    private byte[] planarFrame; // I420 repack buffer, only for planar-only encoders
+    private int flexibleFrameSize; // Bytes queued per flexible-format frame, from the first input image
+
+    // width and height should come from EncoderCapabilities.getEncodeSize
+    public SegmentEncoder(String outputPath, int width, int height, int frameRate, int iFrameInterval, int rotationDegrees,
+                          EncoderCapabilities capabilities) throws Exception {
+        this.outputPath = outputPath;
+        this.width = width;
+        this.height = height;
+        this.colorFormat = capabilities.colorFormat;
+
+        MediaCodec codec = openCodec(capabilities, width, height, frameRate, iFrameInterval);
+        MediaMuxer mediaMuxer = null;
+        try {
+            // Setup muxer with output file. The rotation is stored as container metadata.
+            mediaMuxer = new MediaMuxer(outputPath, MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
+            if (rotationDegrees != 0) {
+                mediaMuxer.setOrientationHint(rotationDegrees);
+            }
+        } catch (Exception e) {
+            codec.release();
+            if (mediaMuxer != null) {
+                mediaMuxer.release();
+            }
+            throw e;
+        }
+        encoder = codec;
+        muxer = mediaMuxer;
+    }
+
+    // Takes the encoder configured ahead of time if it matches, otherwise sets one up now, and
+    // starts it. When the codec reports a shortage of instances or memory (another app's
+    // encoders, or a finishing segment's not yet released), pre-warmed encoders are freed and
+    // the setup is retried with a growing delay before giving up.
+    private static MediaCodec openCodec(EncoderCapabilities capabilities, int width, int height, int frameRate,
+                                        int iFrameInterval) throws Exception {
+        MediaCodec codec = capabilities.takePrewarmed(width, height, frameRate, iFrameInterval);
+        if (codec != null) {
+            try {
+                codec.start();
+                Log.d(TAG, "Using pre-warmed encoder for " + width + "x" + height);
+                return codec;
+            } catch (Exception e) {
+                Log.w(TAG, "Pre-warmed encoder failed to start, setting up a new one", e);
+                codec.release();
+            }
+        }
+        for (int attempt = 1; ; attempt++) {
+            codec = null;
+            try {
+                codec = capabilities.createCodec();
+                MediaFormat format = capabilities.createFormat(width, height, frameRate, iFrameInterval);
+                codec.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+                codec.start();
+                return codec;
+            } catch (Exception e) {
+                if (codec != null) {
+                    codec.release();
+                }
+                if (attempt >= OPEN_ATTEMPTS || !isShortOfResources(e)) {
+                    throw e;
+                }
+                Log.w(TAG, "Encoder short of resources for " + width + "x" + height + " (attempt " + attempt + "), retrying", e);
+                EncoderCapabilities.releasePrewarmed();
+                Thread.sleep(OPEN_RETRY_DELAY_MS * attempt);
+            }
+        }
+    }
+
+    private static boolean isShortOfResources(Exception e) {
+        if (!(e instanceof MediaCodec.CodecException)) {
+            return false;
+        }
+        MediaCodec.CodecException codecException = (MediaCodec.CodecException) e;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M
+                && codecException.getErrorCode() == MediaCodec.CodecException.ERROR_INSUFFICIENT_RESOURCE) {
+            return true;
+        }
+        return codecException.isTransient();
+    }
+
+    public String getOutputPath() {
+        return outputPath;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public int getFrameCount() {
+        return frameCount;
+    }
+
+    // Queue one NV12 frame, waiting for an input buffer if the encoder is busy
+    public void encodeFrame(byte[] yuvData, long presentationTimeUs) {
+        while (true) {
+            int inputBufferIndex = encoder.dequeueInputBuffer(TIMEOUT_US);
+            if (inputBufferIndex >= 0) {
+                int size = yuvData.length;
+                if (colorFormat == EncoderCapabilities.COLOR_FLEXIBLE) {
+                    // Once an index's image is taken its ByteBuffer may no longer be, so the
+                    // queued size comes from the image layout instead of the buffer
+                    Image image = encoder.getInputImage(inputBufferIndex);
+                    writeToImage(image, yuvData);
+                    size = getFlexibleFrameSize(image);
+                } else {
+                    ByteBuffer inputBuffer = encoder.getInputBuffer(inputBufferIndex);
+                    inputBuffer.clear();
+                    if (colorFormat == EncoderCapabilities.COLOR_I420) {
+                        inputBuffer.put(toPlanar(yuvData));
+                    } else {
+                        inputBuffer.put(yuvData);
+                    }
+                }
+                encoder.queueInputBuffer(inputBufferIndex, 0, size, presentationTimeUs, 0);
+                break;
+            }
+            drainEncoder(false);
+        }
+        lastPresentationTimeUs = presentationTimeUs;
+        frameCount++;
+        drainEncoder(false);
+    }
+
+    // Signal end of stream, write out everything pending and close the file
+    public void finish() {
+        try {
+            while (true) {
+                int inputBufferIndex = encoder.dequeueInputBuffer(TIMEOUT_US);
+                if (inputBufferIndex >= 0) {
+                    encoder.queueInputBuffer(inputBufferIndex, 0, 0, lastPresentationTimeUs, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+                    break;
+                }
+                drainEncoder(false);
+            }
+            drainEncoder(true);
+        } finally {
+            release();
+        }
+    }
+
+    // NV12 -> I420: same Y plane, interleaved UV split into a U plane then a V plane
+    private byte[] toPlanar(byte[] nv12) {
+        int frameSize = width * height;
+        int quarter = frameSize / 4;
+        if (planarFrame == null) {
+            planarFrame = new byte[nv12.length];
+        }
+        System.arraycopy(nv12, 0, planarFrame, 0, frameSize);
+        for (int i = 0; i < quarter; i++) {
+            planarFrame[frameSize + i] = nv12[frameSize + i * 2];
+            planarFrame[frameSize + quarter + i] = nv12[frameSize + i * 2 + 1];
+        }
+        return planarFrame;
+    }
+
+    // Copies NV12 into the codec's own YUV layout (any row/pixel stride)
+    // A YUV 4:2:0 frame at the luma row stride and the codec's slice height (rows per plane
+    // before the chroma starts), which is what the image planes span in the input buffer
+    private int getFlexibleFrameSize(Image image) {
+        if (flexibleFrameSize == 0) {
+            MediaFormat inputFormat = encoder.getInputFormat();
+            int sliceHeight = inputFormat.containsKey(MediaFormat.KEY_SLICE_HEIGHT)
+                    ? Math.max(height, inputFormat.getInteger(MediaFormat.KEY_SLICE_HEIGHT))
+                    : height;
+            flexibleFrameSize = image.getPlanes()[0].getRowStride() * sliceHeight * 3 / 2;
+        }
+        return flexibleFrameSize;
+    }
+
+    private void writeToImage(Image image, byte[] nv12) {
+        Image.Plane[] planes = image.getPlanes();
+        copyPlane(nv12, 0, 1, width, width, height, planes[0]);
+        int chromaOffset = width * height;
+        copyPlane(nv12, chromaOffset, 2, width, width / 2, height / 2, planes[1]);
+        copyPlane(nv12, chromaOffset + 1, 2, width, width / 2, height / 2, planes[2]);
+    }
+
+    private static void copyPlane(byte[] src, int offset, int srcPixelStride, int srcRowStride,
+                                  int planeWidth, int planeHeight, Image.Plane plane) {
+        ByteBuffer buffer = plane.getBuffer();
+        int rowStride = plane.getRowStride();
+        int pixelStride = plane.getPixelStride();
+        for (int y = 0; y < planeHeight; y++) {
+            int srcRow = offset + y * srcRowStride;
+            int dstRow = y * rowStride;
+            if (pixelStride == 1 && srcPixelStride == 1) {
+                buffer.position(dstRow);
+                buffer.put(src, srcRow, planeWidth);
+            } else {
+                for (int x = 0; x < planeWidth; x++) {
+                    buffer.put(dstRow + x * pixelStride, src[srcRow + x * srcPixelStride]);
+                }
+            }
+        }
+    }
+
+    public void release() {
+        if (released) {
+            return;
+        }
+        released = true;
+        try {
+            encoder.stop();
+        } catch (IllegalStateException e) {
+            Log.e(TAG, "Error stopping encoder", e);
+        }
+        encoder.release();
+        if (muxerStarted) {
+            muxer.stop();
+        }
+        muxer.release();
+    }
+
+    private void drainEncoder(boolean endOfStream) {
+        while (true) {
+            int outputBufferIndex = encoder.dequeueOutputBuffer(bufferInfo, TIMEOUT_US);
+
+            if (outputBufferIndex == MediaCodec.INFO_TRY_AGAIN_LATER) {
+                if (!endOfStream) {
+                    break;
+                }
+            } else if (outputBufferIndex == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+                if (muxerStarted) {
+                    throw new RuntimeException("Format changed twice");
+                }
+                MediaFormat newFormat = encoder.getOutputFormat();
+                trackIndex = muxer.addTrack(newFormat);
+                muxer.start();
+                muxerStarted = true;
+            } else if (outputBufferIndex >= 0) {
+                ByteBuffer encodedData = encoder.getOutputBuffer(outputBufferIndex);
+
+                if ((bufferInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
+                    bufferInfo.size = 0;
+                }
+
+                if (bufferInfo.size != 0 && muxerStarted) {
+                    encodedData.position(bufferInfo.offset);
+                    encodedData.limit(bufferInfo.offset + bufferInfo.size);
+                    muxer.writeSampleData(trackIndex, encodedData, bufferInfo);
+                }
+
+                encoder.releaseOutputBuffer(outputBufferIndex, false);
+
+                if ((bufferInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                    break;
+                }
+            }
+        }
+    }
+}
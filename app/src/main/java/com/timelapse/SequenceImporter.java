@@ -0,0 +1,206 @@
+package com.timelapse;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.Cursor;
+import android.graphics.BitmapFactory;
+import android.media.ExifInterface;
+import android.net.Uri;
+import android.os.Build;
+import android.os.Environment;
+import android.provider.DocumentsContract;
+import android.provider.OpenableColumns;
+import android.util.Log;
+
+import java.io.File;
+import java.io.InputStream;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+// Turns an existing image sequence (a folder or a set of content:// images, e.g. from a DSLR
+// intervalometer) into a video with the compile pipeline. Frames are ordered by EXIF capture
+// time, and each frame is oriented and fitted to the output size on its own, so sequences
+// mixing cameras, resolutions and orientations come out consistent.
+public class SequenceImporter {
+
+    private static final String TAG = "SequenceImporter";
+    private static final String FILE_SUFFIX = "_import";
+
+    public interface ProgressListener {
+        void onImportProgress(int framesDone, int totalFrames);
+    }
+
+    // One image of the sequence with what ordering and decoding need to know about it
+    static final class Frame {
+        final Uri uri;
+        final String name;
+        final long lastModifiedMs;
+        long captureTimeMs;
+        int orientation = ExifInterface.ORIENTATION_NORMAL;
+
+        Frame(Uri uri, String name, long lastModifiedMs) {
+            this.uri = uri;
+            this.name = name != null ? name : uri.getLastPathSegment();
+            this.lastModifiedMs = lastModifiedMs;
+            this.captureTimeMs = lastModifiedMs;
+        }
+    }
+
+    private final Context context;
+
+    public SequenceImporter(Context context) {
+        this.context = context.getApplicationContext();
+    }
+
+    // Images directly inside a folder picked with ACTION_OPEN_DOCUMENT_TREE
+    public List<Frame> listFolder(Uri treeUri) {
+        Uri childrenUri = DocumentsContract.buildChildDocumentsUriUsingTree(treeUri,
+                DocumentsContract.getTreeDocumentId(treeUri));
+        String[] projection = {
+                DocumentsContract.Document.COLUMN_DOCUMENT_ID,
+                DocumentsContract.Document.COLUMN_DISPLAY_NAME,
+                DocumentsContract.Document.COLUMN_MIME_TYPE,
+                DocumentsContract.Document.COLUMN_LAST_MODIFIED};
+        List<Frame> frames = new ArrayList<>();
+        try (Cursor cursor = context.getContentResolver().query(childrenUri, projection, null, null, null)) {
+            while (cursor != null && cursor.moveToNext()) {
+                String mimeType = cursor.getString(2);
+                if (mimeType == null || !mimeType.startsWith("image/")) continue;
+                Uri uri = DocumentsContract.buildDocumentUriUsingTree(treeUri, cursor.getString(0));
+                frames.add(new Frame(uri, cursor.getString(1), cursor.getLong(3)));
+            }
+        }
+        return frames;
+    }
+
+    // Images picked individually (ACTION_OPEN_DOCUMENT with multiple selection)
+    public List<Frame> describe(List<Uri> uris) {
+        List<Frame> frames = new ArrayList<>();
+        ContentResolver resolver = context.getContentResolver();
+        for (Uri uri : uris) {
+            String name = null;
+            long lastModifiedMs = 0;
+            try (Cursor cursor = resolver.query(uri, null, null, null, null)) {
+                if (cursor != null && cursor.moveToFirst()) {
+                    int nameColumn = cursor.getColumnIndex(OpenableColumns.DISPLAY_NAME);
+                    int modifiedColumn = cursor.getColumnIndex(DocumentsContract.Document.COLUMN_LAST_MODIFIED);
+                    name = nameColumn >= 0 ? cursor.getString(nameColumn) : null;
+                    lastModifiedMs = modifiedColumn >= 0 ? cursor.getLong(modifiedColumn) : 0;
+                }
+            } catch (Exception e) {
+                Log.w(TAG, "Error querying " + uri, e);
+            }
+            frames.add(new Frame(uri, name, lastModifiedMs));
+        }
+        return frames;
+    }
+
+    // Orders the frames by capture time, compiles them at up to maxShortSide pixels on the short
+    // side and saves the video to the gallery. Returns the gallery path.
+    public String importSequence(List<Frame> frames, int maxShortSide, int frameRate, boolean allIntra,
+                                 ProgressListener listener) throws Exception {
+        if (frames.isEmpty()) {
+            throw new IllegalArgumentException("No images to import");
+        }
+        int workers = VideoCompiler.getDecodeWorkerCount();
+        ExecutorService pool = Executors.newFixedThreadPool(workers);
+        try {
+            readCaptureTimes(frames, pool);
+        } finally {
+            pool.shutdown();
+        }
+        Collections.sort(frames, (a, b) -> a.captureTimeMs != b.captureTimeMs
+                ? Long.compare(a.captureTimeMs, b.captureTimeMs)
+                : a.name.compareTo(b.name));
+
+        // The first frame sets the aspect; the rest are center-cropped to it
+        int[] size = getUprightSize(frames.get(0));
+        float scale = Math.min(1f, (float) maxShortSide / Math.min(size[0], size[1]));
+        int width = Math.round(size[0] * scale);
+        int height = Math.round(size[1] * scale);
+        Log.d(TAG, "Importing " + frames.size() + " frames at " + width + "x" + height + " with " + workers + " decoders");
+
+        File workDir = new File(context.getExternalFilesDir(Environment.DIRECTORY_MOVIES), "timelapse_import");
+        if (!workDir.exists() && !workDir.mkdirs()) {
+            throw new Exception("Failed to create import directory");
+        }
+        File workFile = new File(workDir, "import.mp4");
+        try {
+            VideoCompiler compiler = new VideoCompiler();
+            compiler.setFrameRate(frameRate);
+            compiler.setAllIntra(allIntra);
+            compiler.compileSequence(context, frames, width, height, workFile.getAbsolutePath(), listener);
+            return compiler.saveToGallery(context, workFile.getAbsolutePath(), FILE_SUFFIX);
+        } finally {
+            SessionRender.deleteRecursively(workDir);
+        }
+    }
+
+    // EXIF headers are small but each is a separate open on a content provider, so they are read in parallel
+    private void readCaptureTimes(List<Frame> frames, ExecutorService pool) throws Exception {
+        List<Future<?>> futures = new ArrayList<>();
+        int chunk = Math.max(1, frames.size() / 64);
+        for (int start = 0; start < frames.size(); start += chunk) {
+            final List<Frame> part = frames.subList(start, Math.min(frames.size(), start + chunk));
+            futures.add(pool.submit(() -> {
+                SimpleDateFormat format = new SimpleDateFormat("yyyy:MM:dd HH:mm:ss", Locale.US);
+                for (Frame frame : part) {
+                    readExif(frame, format);
+                }
+            }));
+        }
+        for (Future<?> future : futures) {
+            future.get();
+        }
+    }
+
+    private void readExif(Frame frame, SimpleDateFormat format) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.N) {
+            // No stream-based EXIF reader before API 24: keep the file time and upright pixels
+            return;
+        }
+        try (InputStream in = context.getContentResolver().openInputStream(frame.uri)) {
+            if (in == null) return;
+            ExifInterface exif = new ExifInterface(in);
+            frame.orientation = exif.getAttributeInt(ExifInterface.TAG_ORIENTATION, ExifInterface.ORIENTATION_NORMAL);
+            String dateTime = exif.getAttribute(ExifInterface.TAG_DATETIME_ORIGINAL);
+            if (dateTime == null) {
+                dateTime = exif.getAttribute(ExifInterface.TAG_DATETIME);
+            }
+            if (dateTime != null) {
+                long timeMs = format.parse(dateTime).getTime();
+                // Sub-second digits order bursts shot within one second
+                String subSec = exif.getAttribute(ExifInterface.TAG_SUBSEC_TIME_ORIGINAL);
+                if (subSec != null && subSec.matches("\\d+")) {
+                    timeMs += Math.round(Double.parseDouble("0." + subSec) * 1000);
+                }
+                frame.captureTimeMs = timeMs;
+            }
+        } catch (ParseException e) {
+            Log.w(TAG, "Unreadable capture time in " + frame.name);
+        } catch (Exception e) {
+            Log.w(TAG, "Error reading EXIF of " + frame.name, e);
+        }
+    }
+
+    private int[] getUprightSize(Frame frame) throws Exception {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        try (InputStream in = context.getContentResolver().openInputStream(frame.uri)) {
+            BitmapFactory.decodeStream(in, null, options);
+        }
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            throw new Exception("Cannot read image " + frame.name);
+        }
+        return VideoCompiler.isTransposed(frame.orientation)
+                ? new int[]{options.outHeight, options.outWidth}
+                : new int[]{options.outWidth, options.outHeight};
+    }
+}
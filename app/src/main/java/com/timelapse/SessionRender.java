@@ -0,0 +1,485 @@
+package com.timelapse;
+
+import android.content.Context;
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+// Everything still needed to turn a stopped recording into gallery videos: frames not yet
+// compiled, compiled segments per rendition and the output settings. It is rendered right
+// away at stop, or serialized into the DeferredJobQueue and rendered later.
+// Progress is recorded as it goes (compiled frames are removed, finished renditions are
+// cleared), so an interrupted render resumes where it stopped. A render held for review is
+// skipped by the queue until the review releases it; the kept ranges chosen there decide
+// which uncompiled frames reach the compiler, so trimmed and dropped frames are never decoded.
+public class SessionRender {
+
+    private static final String TAG = "SessionRender";
+
+    public interface ProgressListener {
+        void onRenderProgress(SessionRender render, int step, int totalSteps);
+    }
+
+    public final File outputDir;
+    public final int frameRate;
+    public final boolean allIntra;
+    public final boolean uprightPixels; // Rotate the pixels instead of writing an orientation hint
+    public final boolean stabilize;
+    public final String reframePreset;
+    public final OverlayCompositor.Spec overlay; // null for none
+    public final int interpolation; // FrameInterpolator.MODE_*
+    public final List<Rendition> renditions;
+
+    private final List<String> frames = new ArrayList<>();
+    private final List<Long> framePresentationTimes = new ArrayList<>();
+    private final List<String[]> segments = new ArrayList<>(); // One path per rendition, null once finished
+    private final List<Long> segmentStartTimes = new ArrayList<>();
+    private String videoPath; // Gallery path of the master once saved
+    private boolean leadIn = false; // The first frame was compiled already and only leads into the rest
+    private volatile boolean held = false; // Waiting for ReviewActivity
+    private List<int[]> keptRanges; // [first, last) frame indices to compile; null keeps every frame
+
+    private Stabilizer stabilizer; // The recording's, so the path continues from its last segment; not persisted
+
+    private volatile boolean cancelled = false;
+
+    public SessionRender(File outputDir, int frameRate, boolean allIntra, boolean uprightPixels, boolean stabilize,
+                         String reframePreset, OverlayCompositor.Spec overlay, int interpolation, List<Rendition> renditions) {
+        this.outputDir = outputDir;
+        this.frameRate = frameRate;
+        this.allIntra = allIntra;
+        this.uprightPixels = uprightPixels;
+        this.stabilize = stabilize;
+        this.reframePreset = reframePreset;
+        this.overlay = overlay;
+        this.interpolation = interpolation;
+        this.renditions = renditions;
+    }
+
+    public void addFrame(String framePath, long presentationTimeUs) {
+        frames.add(framePath);
+        framePresentationTimes.add(presentationTimeUs);
+    }
+
+    // With interpolation, the first frame added is the last frame of the previous segment
+    public void setLeadIn(boolean leadIn) {
+        this.leadIn = leadIn;
+    }
+
+    public void addSegment(String[] segmentPaths, long startTimeUs) {
+        segments.add(segmentPaths);
+        segmentStartTimes.add(startTimeUs);
+    }
+
+    public int getFrameCount() {
+        return frames.size();
+    }
+
+    // Uncompiled frames in capture order, for the review screen
+    public List<String> getFramePaths() {
+        return new ArrayList<>(frames);
+    }
+
+    public boolean isHeld() {
+        return held;
+    }
+
+    public void setHeld(boolean held) {
+        this.held = held;
+    }
+
+    public List<int[]> getKeptRanges() {
+        return keptRanges;
+    }
+
+    // Ranges are applied at render time, so the review can be revised until then
+    public void setKeptRanges(List<int[]> keptRanges) {
+        this.keptRanges = keptRanges;
+    }
+
+    // Hands over the stabilizer of the recording's segments. A render without one (e.g. after
+    // the queue was reloaded) starts a new path at its first frame.
+    public void setStabilizer(Stabilizer stabilizer) {
+        this.stabilizer = stabilizer;
+    }
+
+    public int getSegmentCount() {
+        return segments.size();
+    }
+
+    // Stop at the next step boundary; the render throws CancellationException
+    public void cancel() {
+        cancelled = true;
+    }
+
+    // Forget an earlier cancel before the render is run again. The queue calls this under its
+    // lock when it picks the render, so a cancel that lands once it is running is kept.
+    void clearCancel() {
+        cancelled = false;
+    }
+
+    // Compile the remaining frames, save every rendition to the gallery and delete the session
+    // directory. Returns the master's gallery path.
+    public String render(Context context, ProgressListener listener) throws Exception {
+        VideoCompiler compiler = newCompiler();
+
+        int totalSteps = (frames.isEmpty() ? 0 : 1) + renditions.size();
+        int step = 0;
+
+        if (!frames.isEmpty()) {
+            checkCancelled();
+            List<String> keptFrames = new ArrayList<>();
+            List<Long> captureTimes = new ArrayList<>();
+            long[] presentationTimesUs = selectKeptFrames(keptFrames, captureTimes);
+            boolean keptLeadIn = leadIn && isKept(0);
+            Log.d(TAG, "Compiling remaining " + keptFrames.size() + " of " + frames.size() + " frames");
+            if (keptFrames.size() > (keptLeadIn ? 1 : 0)) {
+                // Overlays show when each frame was captured, not where it lands after the cut
+                long[] captureTimesUs = null;
+                if (keptRanges != null) {
+                    captureTimesUs = new long[captureTimes.size()];
+                    for (int i = 0; i < captureTimesUs.length; i++) {
+                        captureTimesUs[i] = captureTimes.get(i);
+                    }
+                }
+                compileKeptFrames(context, keptFrames, presentationTimesUs, captureTimesUs, keptLeadIn);
+            }
+            for (String framePath : frames) {
+                new File(framePath).delete();
+            }
+            frames.clear();
+            framePresentationTimes.clear();
+            keptRanges = null;
+            leadIn = false;
+            report(listener, ++step, totalSteps);
+        }
+
+        // Each rendition is assembled from its own segments; the master's gallery path is reported
+        checkCancelled();
+        if (videoPath == null) {
+            videoPath = finishRendition(context, compiler, 0);
+            if (videoPath == null) {
+                throw new Exception("No video segments to compile");
+            }
+        }
+        report(listener, ++step, totalSteps);
+
+        for (int r = 1; r < renditions.size(); r++) {
+            checkCancelled();
+            try {
+                finishRendition(context, compiler, r);
+            } catch (Exception e) {
+                // A failed share copy must not lose the master
+                Log.e(TAG, "Rendition " + renditions.get(r).name + " failed", e);
+            }
+            report(listener, ++step, totalSteps);
+        }
+
+        // Clean up proxies, frames left behind by failed segments and the temporary directory;
+        // the frame statistics are kept under app files first
+        FrameStats.archiveSession(context, outputDir);
+        deleteRecursively(outputDir);
+        Log.d(TAG, "Deleted temporary directory: " + outputDir.getAbsolutePath());
+        return videoPath;
+    }
+
+    // Compiler with this render's output settings; each segment compile gets its own
+    private VideoCompiler newCompiler() {
+        VideoCompiler compiler = new VideoCompiler();
+        compiler.setFrameRate(frameRate);
+        compiler.setAllIntra(allIntra);
+        compiler.setStabilizer(stabilize ? stabilizer : null);
+        compiler.setUprightPixels(uprightPixels);
+        compiler.setReframe(Reframe.forPreset(reframePreset));
+        compiler.setOverlay(overlay);
+        return compiler;
+    }
+
+    // Cuts the kept frames into segments of RecordingSession.FRAMES_PER_SEGMENT and compiles them
+    // on the shared compile pool, as a recording does. When interpolating, each segment leads in
+    // from the previous one's last frame; when stabilizing, they share one Stabilizer and run in
+    // order. A cancel skips segments not started yet; the finished ones are then deleted and the
+    // frames stay, so the next run compiles them again.
+    private void compileKeptFrames(final Context context, List<String> keptFrames, long[] presentationTimesUs,
+                                   long[] captureTimesUs, boolean keptLeadIn) throws Exception {
+        int overlap = interpolation != FrameInterpolator.MODE_OFF ? 1 : 0;
+        if (stabilize && stabilizer == null) {
+            stabilizer = new Stabilizer(true);
+        }
+        Executor pool = stabilize ? CompilePool.newSerialLane(context) : CompilePool.get(context);
+        List<Future<String[]>> pending = new ArrayList<>();
+        List<Long> startTimes = new ArrayList<>();
+        int start = 0;
+        boolean chunkLeadIn = keptLeadIn;
+        while (true) {
+            int end = Math.min(keptFrames.size(), start + (chunkLeadIn ? 1 : 0) + RecordingSession.FRAMES_PER_SEGMENT);
+            final List<String> chunkFrames = new ArrayList<>(keptFrames.subList(start, end));
+            final long[] chunkTimesUs = Arrays.copyOfRange(presentationTimesUs, start, end);
+            final long[] chunkCaptureTimesUs = captureTimesUs != null ? Arrays.copyOfRange(captureTimesUs, start, end) : null;
+            final boolean leadsIn = chunkLeadIn;
+            final int segmentNumber = segments.size() + pending.size();
+            startTimes.add(FrameInterpolator.getSegmentStartUs(chunkTimesUs, leadsIn, frameRate));
+            FutureTask<String[]> task = new FutureTask<>(() -> {
+                checkCancelled();
+                VideoCompiler compiler = newCompiler();
+                compiler.setFrameStatsFile(FrameStats.getSegmentFile(outputDir, segmentNumber));
+                compiler.setInterpolation(interpolation, leadsIn);
+                if (chunkCaptureTimesUs != null) {
+                    compiler.setCaptureTimes(chunkCaptureTimesUs);
+                }
+                return compiler.compileImagesToVideo(context, chunkFrames, chunkTimesUs,
+                        outputDir.getAbsolutePath(), segmentNumber, renditions);
+            });
+            pending.add(task);
+            pool.execute(task);
+            if (end == keptFrames.size()) break;
+            start = end - overlap;
+            chunkLeadIn = overlap > 0;
+        }
+        Log.d(TAG, "Queued " + pending.size() + " segments on the compile pool");
+
+        // Wait for every segment, so none is still writing when a failure cleans up
+        List<String[]> compiled = new ArrayList<>();
+        Exception failure = null;
+        for (Future<String[]> segment : pending) {
+            try {
+                compiled.add(segment.get());
+            } catch (ExecutionException e) {
+                compiled.add(null);
+                if (failure == null) {
+                    failure = e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+                }
+            }
+        }
+        if (failure != null) {
+            for (String[] segmentPaths : compiled) {
+                if (segmentPaths == null) continue;
+                for (String path : segmentPaths) {
+                    if (path != null) {
+                        new File(path).delete();
+                    }
+                }
+            }
+            if (stabilize) {
+                stabilizer = null; // Its path ran on through the deleted segments
+            }
+            throw failure;
+        }
+        for (int i = 0; i < compiled.size(); i++) {
+            addSegment(compiled.get(i), startTimes.get(i));
+        }
+    }
+
+    private boolean isKept(int index) {
+        if (keptRanges == null) return true;
+        for (int[] range : keptRanges) {
+            if (index >= range[0] && index < range[1]) return true;
+        }
+        return false;
+    }
+
+    // Fills keptFrames with the frames inside the kept ranges and captureTimes with their
+    // original timestamps, and returns their output timestamps. Each kept frame follows the
+    // previous kept one by that frame's own original spacing, so trimmed and dropped stretches
+    // close up instead of holding a frame over the gap.
+    private long[] selectKeptFrames(List<String> keptFrames, List<Long> captureTimes) {
+        List<Long> times = new ArrayList<>();
+        int previous = -1;
+        for (int i = 0; i < frames.size(); i++) {
+            if (!isKept(i)) continue;
+            long timeUs = framePresentationTimes.get(i);
+            if (previous >= 0) {
+                timeUs = times.get(times.size() - 1)
+                        + framePresentationTimes.get(previous + 1) - framePresentationTimes.get(previous);
+            }
+            keptFrames.add(frames.get(i));
+            captureTimes.add(framePresentationTimes.get(i));
+            times.add(timeUs);
+            previous = i;
+        }
+        long[] presentationTimesUs = new long[times.size()];
+        for (int i = 0; i < presentationTimesUs.length; i++) {
+            presentationTimesUs[i] = times.get(i);
+        }
+        return presentationTimesUs;
+    }
+
+    private void checkCancelled() {
+        if (cancelled) {
+            throw new CancellationException("Render cancelled");
+        }
+    }
+
+    private void report(ProgressListener listener, int step, int totalSteps) {
+        Tracer.d(Tracer.RENDER_STEP, step, totalSteps);
+        if (listener != null) {
+            listener.onRenderProgress(this, step, totalSteps);
+        }
+    }
+
+    // Merge (or save) one rendition's segments to the gallery and delete them.
+    // Returns the gallery path, or null if the rendition has no segments.
+    private String finishRendition(Context context, VideoCompiler compiler, int renditionIndex) throws Exception {
+        Rendition rendition = renditions.get(renditionIndex);
+
+        // Segments in capture order, skipping any that failed
+        List<String> paths = new ArrayList<>();
+        List<Long> starts = new ArrayList<>();
+        for (int i = 0; i < segments.size(); i++) {
+            String[] segmentPaths = segments.get(i);
+            if (segmentPaths != null && segmentPaths[renditionIndex] != null) {
+                paths.add(segmentPaths[renditionIndex]);
+                starts.add(segmentStartTimes.get(i));
+            }
+        }
+        long[] segmentStartsUs = new long[starts.size()];
+        for (int i = 0; i < segmentStartsUs.length; i++) {
+            segmentStartsUs[i] = starts.get(i);
+        }
+
+        String path;
+        if (paths.size() > 1) {
+            // If we have multiple segments, merge them
+            Log.d(TAG, "Merging " + paths.size() + " " + rendition.name + " segments");
+            path = compiler.mergeVideoSegments(context, paths, segmentStartsUs, outputDir.getAbsolutePath(), rendition.fileSuffix);
+        } else if (paths.size() == 1) {
+            // Only one segment, save it to gallery
+            Log.d(TAG, "Single " + rendition.name + " segment, saving to gallery");
+            path = compiler.saveToGallery(context, paths.get(0), rendition.fileSuffix);
+        } else {
+            return null;
+        }
+
+        // Delete individual segments after saving and mark the rendition done
+        for (int i = 0; i < paths.size(); i++) {
+            File segmentFile = new File(paths.get(i));
+            if (segmentFile.exists()) {
+                long length = segmentFile.length();
+                segmentFile.delete();
+                Tracer.v(Tracer.FILE_DELETED, i, length);
+            }
+        }
+        for (String[] segmentPaths : segments) {
+            if (segmentPaths != null) {
+                segmentPaths[renditionIndex] = null;
+            }
+        }
+        return path;
+    }
+
+    static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
+
+    public JSONObject toJson() throws JSONException {
+        JSONObject json = new JSONObject();
+        json.put("outputDir", outputDir.getAbsolutePath());
+        json.put("frameRate", frameRate);
+        json.put("allIntra", allIntra);
+        json.put("uprightPixels", uprightPixels);
+        json.put("stabilize", stabilize);
+        json.put("reframe", reframePreset);
+        if (overlay != null) {
+            json.put("overlay", overlay.toJson());
+        }
+        json.put("interpolation", interpolation);
+        json.put("leadIn", leadIn);
+        json.put("held", held);
+        if (keptRanges != null) {
+            JSONArray ranges = new JSONArray();
+            for (int[] range : keptRanges) {
+                ranges.put(new JSONArray().put(range[0]).put(range[1]));
+            }
+            json.put("keptRanges", ranges);
+        }
+        if (videoPath != null) {
+            json.put("videoPath", videoPath);
+        }
+
+        JSONArray renditionNames = new JSONArray();
+        for (Rendition rendition : renditions) {
+            renditionNames.put(rendition.name);
+        }
+        json.put("renditions", renditionNames);
+
+        JSONArray frameArray = new JSONArray();
+        for (int i = 0; i < frames.size(); i++) {
+            frameArray.put(new JSONArray().put(frames.get(i)).put(framePresentationTimes.get(i)));
+        }
+        json.put("frames", frameArray);
+
+        JSONArray segmentArray = new JSONArray();
+        for (int i = 0; i < segments.size(); i++) {
+            JSONArray paths = new JSONArray();
+            String[] segmentPaths = segments.get(i);
+            for (int r = 0; r < renditions.size(); r++) {
+                paths.put(segmentPaths != null && segmentPaths[r] != null ? segmentPaths[r] : JSONObject.NULL);
+            }
+            segmentArray.put(new JSONObject().put("start", segmentStartTimes.get(i)).put("paths", paths));
+        }
+        json.put("segments", segmentArray);
+        return json;
+    }
+
+    public static SessionRender fromJson(JSONObject json) throws JSONException {
+        List<Rendition> renditions = new ArrayList<>();
+        JSONArray renditionNames = json.getJSONArray("renditions");
+        for (int i = 0; i < renditionNames.length(); i++) {
+            renditions.add(Rendition.forName(renditionNames.getString(i)));
+        }
+
+        JSONObject overlay = json.optJSONObject("overlay");
+        SessionRender render = new SessionRender(new File(json.getString("outputDir")), json.getInt("frameRate"),
+                json.getBoolean("allIntra"), json.optBoolean("uprightPixels", false), json.optBoolean("stabilize", false),
+                json.optString("reframe", Reframe.FULL),
+                overlay != null ? OverlayCompositor.Spec.fromJson(overlay) : null,
+                json.optInt("interpolation", FrameInterpolator.MODE_OFF), renditions);
+        render.videoPath = json.optString("videoPath", null);
+        render.leadIn = json.optBoolean("leadIn", false);
+        render.held = json.optBoolean("held", false);
+        JSONArray ranges = json.optJSONArray("keptRanges");
+        if (ranges != null) {
+            render.keptRanges = new ArrayList<>();
+            for (int i = 0; i < ranges.length(); i++) {
+                JSONArray range = ranges.getJSONArray(i);
+                render.keptRanges.add(new int[]{range.getInt(0), range.getInt(1)});
+            }
+        }
+
+        JSONArray frameArray = json.getJSONArray("frames");
+        for (int i = 0; i < frameArray.length(); i++) {
+            JSONArray frame = frameArray.getJSONArray(i);
+            render.addFrame(frame.getString(0), frame.getLong(1));
+        }
+
+        JSONArray segmentArray = json.getJSONArray("segments");
+        for (int i = 0; i < segmentArray.length(); i++) {
+            JSONObject segment = segmentArray.getJSONObject(i);
+            JSONArray paths = segment.getJSONArray("paths");
+            String[] segmentPaths = new String[renditions.size()];
+            for (int r = 0; r < segmentPaths.length; r++) {
+                segmentPaths[r] = paths.isNull(r) ? null : paths.getString(r);
+            }
+            render.addSegment(segmentPaths, segment.getLong("start"));
+        }
+        return render;
+    }
+}
@@ -0,0 +1,212 @@
+package com.timelapse;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.util.Log;
+
+// Global-motion stabilization that runs inline while frames are compiled.
+// Frame-to-frame translation is found by coarse-to-fine block matching on a 3-level luma
+// pyramid (160px wide at the base). Rotation, if enabled, comes from the difference in
+// vertical motion between the left and right halves. The camera path is smoothed causally
+// (exponential moving average), and the frame is shifted toward the smoothed path and
+// zoomed slightly to hide the borders. Costs a few milliseconds per frame, most of it
+// building the 160px base level.
+// One instance follows a whole session: its segments are compiled in order and each picks up
+// the previous one's last frame and smoothed path, so the correction doesn't jump between them.
+public class Stabilizer {
+
+    private static final String TAG = "Stabilizer";
+    private static final int PYRAMID_BASE_WIDTH = 160;
+    private static final int PYRAMID_LEVELS = 3;
+    private static final int COARSE_SEARCH_RADIUS = 4; // Pixels at the coarsest level (~10% of the width)
+    private static final float CROP_MARGIN = 0.08f; // Fraction of each side given up for correction
+    private static final float SMOOTHING = 0.9f; // EMA weight of the smoothed path
+
+    private final boolean estimateRotation;
+
+    // Pyramid buffers, swapped every frame, and the base-level scaling, all reused while the
+    // frame size stays the same, so measuring a frame allocates nothing
+    private byte[][] previousLevels;
+    private byte[][] spareLevels;
+    private int[] levelWidths;
+    private int[] levelHeights;
+    private int[] basePixels;
+    private Bitmap baseBitmap;
+    private Canvas baseCanvas;
+    private final Matrix baseMatrix = new Matrix();
+    private final Paint basePaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+    private final Matrix correction = new Matrix(); // Returned by update(), valid until the next call
+
+    // Accumulated camera path and its smoothed version, in base-level pixels and radians
+    private double pathX, pathY, pathAngle;
+    private double smoothX, smoothY, smoothAngle;
+    private int frameCount = 0;
+    private long totalNanos = 0;
+
+    public Stabilizer(boolean estimateRotation) {
+        this.estimateRotation = estimateRotation;
+    }
+
+    // Measures the motion of this frame relative to the previous one and returns the correction
+    // to post-concatenate onto a matrix that maps the frame to an outWidth x outHeight output.
+    // The matrix is reused, so it is only valid until the next call.
+    public Matrix update(Bitmap frame, int outWidth, int outHeight) {
+        long startNanos = System.nanoTime();
+        byte[][] levels = buildPyramid(frame);
+
+        if (previousLevels != null) {
+            int top = PYRAMID_LEVELS - 1;
+            int[] motion = search(levels[top], previousLevels[top], levelWidths[top], levelHeights[top],
+                    0, 0, COARSE_SEARCH_RADIUS, COARSE_SEARCH_RADIUS, 0, levelWidths[top]);
+            for (int level = top - 1; level >= 0; level--) {
+                motion = search(levels[level], previousLevels[level], levelWidths[level], levelHeights[level],
+                        motion[0] * 2, motion[1] * 2, 1, 1, 0, levelWidths[level]);
+            }
+
+            double angle = 0;
+            if (estimateRotation) {
+                int width = levelWidths[0];
+                int half = width / 2;
+                int[] left = search(levels[0], previousLevels[0], width, levelHeights[0], motion[0], motion[1], 0, 2, 0, half);
+                int[] right = search(levels[0], previousLevels[0], width, levelHeights[0], motion[0], motion[1], 0, 2, half, width);
+                angle = Math.atan2(right[1] - left[1], half);
+            }
+
+            pathX += motion[0];
+            pathY += motion[1];
+            pathAngle += angle;
+        }
+        spareLevels = previousLevels;
+        previousLevels = levels;
+
+        smoothX = SMOOTHING * smoothX + (1 - SMOOTHING) * pathX;
+        smoothY = SMOOTHING * smoothY + (1 - SMOOTHING) * pathY;
+        smoothAngle = SMOOTHING * smoothAngle + (1 - SMOOTHING) * pathAngle;
+
+        // Shift toward the smoothed path, limited to what the crop margin can hide
+        float scale = (float) outWidth / levelWidths[0];
+        float maxShiftX = CROP_MARGIN * outWidth;
+        float maxShiftY = CROP_MARGIN * outHeight;
+        float shiftX = clamp((float) (smoothX - pathX) * scale, maxShiftX);
+        float shiftY = clamp((float) (smoothY - pathY) * scale, maxShiftY);
+        float degrees = clamp((float) Math.toDegrees(smoothAngle - pathAngle), 2f);
+
+        float zoom = 1f / (1f - 2f * CROP_MARGIN);
+        correction.setTranslate(shiftX, shiftY);
+        correction.postRotate(degrees, outWidth / 2f, outHeight / 2f);
+        correction.postScale(zoom, zoom, outWidth / 2f, outHeight / 2f);
+
+        frameCount++;
+        totalNanos += System.nanoTime() - startNanos;
+        if (frameCount % 100 == 0) {
+            Log.d(TAG, "Average estimation time: " + (totalNanos / frameCount / 1000) + "us per frame");
+        }
+        return correction;
+    }
+
+    // The last frame again, as the lead-in of the next segment: it gets the correction it was
+    // encoded with, without counting as motion. A stabilizer that hasn't seen it measures it.
+    public Matrix repeat(Bitmap frame, int outWidth, int outHeight) {
+        return frameCount > 0 ? correction : update(frame, outWidth, outHeight);
+    }
+
+    private byte[][] buildPyramid(Bitmap frame) {
+        int baseWidth = PYRAMID_BASE_WIDTH;
+        int baseHeight = Math.max(8, Math.round((float) frame.getHeight() * baseWidth / frame.getWidth()));
+        if (levelWidths == null || levelHeights[0] != baseHeight) {
+            levelWidths = new int[PYRAMID_LEVELS];
+            levelHeights = new int[PYRAMID_LEVELS];
+            for (int level = 0; level < PYRAMID_LEVELS; level++) {
+                levelWidths[level] = baseWidth >> level;
+                levelHeights[level] = baseHeight >> level;
+            }
+            previousLevels = null;
+            spareLevels = null;
+            basePixels = new int[baseWidth * baseHeight];
+            if (baseBitmap != null) {
+                baseBitmap.recycle();
+            }
+            baseBitmap = Bitmap.createBitmap(baseWidth, baseHeight, Bitmap.Config.ARGB_8888);
+            baseCanvas = new Canvas(baseBitmap);
+        }
+
+        baseMatrix.setScale((float) baseWidth / frame.getWidth(), (float) baseHeight / frame.getHeight());
+        baseCanvas.drawBitmap(frame, baseMatrix, basePaint);
+        int[] pixels = basePixels;
+        baseBitmap.getPixels(pixels, 0, baseWidth, 0, 0, baseWidth, baseHeight);
+
+        byte[][] levels = spareLevels;
+        if (levels == null) {
+            levels = new byte[PYRAMID_LEVELS][];
+            for (int level = 0; level < PYRAMID_LEVELS; level++) {
+                levels[level] = new byte[levelWidths[level] * levelHeights[level]];
+            }
+        }
+        for (int i = 0; i < pixels.length; i++) {
+            int pixel = pixels[i];
+            levels[0][i] = (byte) ((((pixel >> 16) & 0xff) * 77 + ((pixel >> 8) & 0xff) * 150 + (pixel & 0xff) * 29) >> 8);
+        }
+
+        // Each level is a 2x2 box average of the one below
+        for (int level = 1; level < PYRAMID_LEVELS; level++) {
+            int srcWidth = levelWidths[level - 1];
+            int width = levelWidths[level];
+            int height = levelHeights[level];
+            byte[] src = levels[level - 1];
+            byte[] dst = levels[level];
+            for (int y = 0; y < height; y++) {
+                int row0 = (y * 2) * srcWidth;
+                int row1 = row0 + srcWidth;
+                for (int x = 0; x < width; x++) {
+                    int sx = x * 2;
+                    dst[y * width + x] = (byte) (((src[row0 + sx] & 0xff) + (src[row0 + sx + 1] & 0xff)
+                            + (src[row1 + sx] & 0xff) + (src[row1 + sx + 1] & 0xff)) >> 2);
+                }
+            }
+        }
+        return levels;
+    }
+
+    // Displacement (dx, dy) around (centerX, centerY) that minimizes the mean absolute difference
+    // between current(x, y) and previous(x - dx, y - dy), over columns [x0, x1)
+    private static int[] search(byte[] current, byte[] previous, int width, int height,
+                                int centerX, int centerY, int radiusX, int radiusY, int x0, int x1) {
+        int bestX = centerX;
+        int bestY = centerY;
+        long bestCost = Long.MAX_VALUE;
+
+        for (int dy = centerY - radiusY; dy <= centerY + radiusY; dy++) {
+            for (int dx = centerX - radiusX; dx <= centerX + radiusX; dx++) {
+                int startX = Math.max(x0, dx);
+                int endX = Math.min(x1, width + dx);
+                int startY = Math.max(0, dy);
+                int endY = Math.min(height, height + dy);
+                int count = (endX - startX) * (endY - startY);
+                if (count < (x1 - x0) * height / 4) continue; // Too little overlap to trust
+
+                long sum = 0;
+                for (int y = startY; y < endY; y++) {
+                    int currentRow = y * width;
+                    int previousRow = (y - dy) * width - dx;
+                    for (int x = startX; x < endX; x++) {
+                        sum += Math.abs((current[currentRow + x] & 0xff) - (previous[previousRow + x] & 0xff));
+                    }
+                }
+                // Compare means (scaled to keep integer math) since overlaps differ in size
+                long cost = (sum << 10) / count;
+                if (cost < bestCost) {
+                    bestCost = cost;
+                    bestX = dx;
+                    bestY = dy;
+                }
+            }
+        }
+        return new int[]{bestX, bestY};
+    }
+
+    private static float clamp(float value, float limit) {
+        return Math.max(-limit, Math.min(limit, value));
+    }
+}
@@ -0,0 +1,108 @@
+package com.timelapse;
+
+import androidx.annotation.NonNull;
+import androidx.camera.core.ImageAnalysis;
+import androidx.camera.core.ImageProxy;
+
+import java.nio.ByteBuffer;
+
+// Samples frames from a continuous ImageAnalysis (YUV_420_888) stream at the capture interval.
+// Sampling is driven by sensor timestamps, so analyzer scheduling jitter doesn't drift the cadence.
+public class StreamFrameSampler implements ImageAnalysis.Analyzer {
+
+    public interface FrameListener {
+        // nv12 is reused for the next frame, consume it before returning
+        void onFrameSampled(byte[] nv12, int width, int height, int rotationDegrees, long timestampNs);
+    }
+
+    private final long intervalNs;
+    private final long toleranceNs;
+    private final FrameListener listener;
+
+    private long nextSampleNs = -1;
+    private byte[] nv12Buffer;
+    private byte[] uRowBuffer;
+    private byte[] vRowBuffer;
+    private volatile boolean active = true;
+
+    public StreamFrameSampler(long intervalMs, FrameListener listener) {
+        this.intervalNs = intervalMs * 1000000L;
+        // Accept frames slightly early so sensor jitter doesn't skip every other frame at 1x
+        this.toleranceNs = intervalNs / 4;
+        this.listener = listener;
+    }
+
+    public void stop() {
+        active = false;
+    }
+
+    @Override
+    public void analyze(@NonNull ImageProxy image) {
+        try {
+            if (!active) return;
+
+            long timestampNs = image.getImageInfo().getTimestamp();
+            if (nextSampleNs >= 0 && timestampNs < nextSampleNs - toleranceNs) {
+                return;
+            }
+
+            // Advance on the ideal grid, resyncing if we fell more than an interval behind
+            nextSampleNs = (nextSampleNs < 0) ? timestampNs + intervalNs : nextSampleNs + intervalNs;
+            if (nextSampleNs <= timestampNs) {
+                nextSampleNs = timestampNs + intervalNs;
+            }
+
+            int width = (image.getWidth() / 2) * 2;
+            int height = (image.getHeight() / 2) * 2;
+            copyToNV12(image, width, height);
+            listener.onFrameSampled(nv12Buffer, width, height, image.getImageInfo().getRotationDegrees(), timestampNs);
+        } finally {
+            image.close();
+        }
+    }
+
+    private void copyToNV12(ImageProxy image, int width, int height) {
+        int frameSize = width * height;
+        if (nv12Buffer == null || nv12Buffer.length != frameSize * 3 / 2) {
+            nv12Buffer = new byte[frameSize * 3 / 2];
+        }
+
+        // Y plane, row by row to drop any row padding
+        ImageProxy.PlaneProxy yPlane = image.getPlanes()[0];
+        ByteBuffer yBuffer = yPlane.getBuffer();
+        int yRowStride = yPlane.getRowStride();
+        for (int row = 0; row < height; row++) {
+            yBuffer.position(row * yRowStride);
+            yBuffer.get(nv12Buffer, row * width, width);
+        }
+
+        ImageProxy.PlaneProxy uPlane = image.getPlanes()[1];
+        ImageProxy.PlaneProxy vPlane = image.getPlanes()[2];
+        ByteBuffer uBuffer = uPlane.getBuffer();
+        ByteBuffer vBuffer = vPlane.getBuffer();
+        int uvRowStride = uPlane.getRowStride();
+        int uvPixelStride = uPlane.getPixelStride();
+        int chromaWidth = width / 2;
+        int chromaHeight = height / 2;
+
+        // Bulk-read each chroma row, then interleave into UVUV...
+        int rowLength = (chromaWidth - 1) * uvPixelStride + 1;
+        if (uRowBuffer == null || uRowBuffer.length < rowLength) {
+            uRowBuffer = new byte[rowLength];
+            vRowBuffer = new byte[rowLength];
+        }
+
+        int out = frameSize;
+        for (int row = 0; row < chromaHeight; row++) {
+            uBuffer.position(row * uvRowStride);
+            uBuffer.get(uRowBuffer, 0, rowLength);
+            vBuffer.position(row * vPlane.getRowStride());
+            vBuffer.get(vRowBuffer, 0, rowLength);
+            for (int col = 0; col < chromaWidth; col++) {
+                int index = col * uvPixelStride;
+                nv12Buffer[out++] = uRowBuffer[index];
+                nv12Buffer[out++] = vRowBuffer[index];
+            }
+        }
+    }
+}
@@ -0,0 +1,287 @@
+package com.timelapse;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Matrix;
+import android.media.ExifInterface;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+import android.util.LruCache;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+// Small thumbnails of a session's frames for scrubbing through thousands of them. Bitmaps live
+// in an LruCache bounded by bytes; misses are decoded on a small pool with inSampleSize (the
+// JPEG decoder scales while decoding, so a 12 MP frame never exists at full size) and
+// prefetched ahead of the scroll direction. Each thumbnail is also appended as a JPEG to a
+// packed file in the session directory, so reopening the review reads one small record per
+// frame instead of decoding the frame again.
+public class ThumbnailCache {
+
+    private static final String TAG = "ThumbnailCache";
+    static final String PACK_FILE = "thumbnails.bin";
+    private static final int PACK_MAGIC = 0x544C5448; // "TLTH"
+    private static final int HEADER_BYTES = 8; // Magic, frame count
+    private static final int ENTRY_BYTES = 12; // Offset (long), length (int); length 0 until written
+
+    public static final int THUMB_LONG_SIDE = 192;
+    private static final int PREFETCH_AHEAD = 24;
+    private static final int PREFETCH_BEHIND = 4;
+    private static final int MAX_WORKERS = 4;
+
+    public interface Listener {
+        void onThumbnailReady(int index);
+        void onPreviewReady(int index, Bitmap preview);
+    }
+
+    private final List<String> frames;
+    private final Listener listener;
+    private final LruCache<Integer, Bitmap> cache;
+    private final ExecutorService pool;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final Set<Integer> inFlight = new HashSet<>(); // Guarded by itself
+    private final Object packLock = new Object();
+    private RandomAccessFile packFile; // Guarded by packLock; null if it couldn't be opened
+    private FileChannel pack;
+    private long packEnd;
+
+    private volatile int focusIndex = 0; // Last requested frame; queued decodes far from it are skipped
+    private volatile int previewIndex = -1;
+    private int lastRequested = -1; // Main thread only
+    private int direction = 1;
+    private volatile boolean closed = false;
+
+    public ThumbnailCache(File sessionDir, List<String> frames, Listener listener) {
+        this.frames = frames;
+        this.listener = listener;
+        // An eighth of the heap holds several hundred 192 px RGB_565 thumbnails; the pack file backs the rest
+        int maxBytes = (int) Math.min(Integer.MAX_VALUE, Runtime.getRuntime().maxMemory() / 8);
+        this.cache = new LruCache<Integer, Bitmap>(maxBytes) {
+            @Override
+            protected int sizeOf(Integer key, Bitmap value) {
+                return value.getByteCount();
+            }
+        };
+        this.pool = Executors.newFixedThreadPool(Math.min(MAX_WORKERS, VideoCompiler.getDecodeWorkerCount()));
+        openPack(new File(sessionDir, PACK_FILE));
+    }
+
+    // Called on the main thread for every frame shown. Returns the thumbnail if cached, else
+    // null and the listener is told once it is ready. Frames ahead of the scroll are queued too.
+    public Bitmap get(int index) {
+        if (index != lastRequested && lastRequested >= 0) {
+            direction = index > lastRequested ? 1 : -1;
+        }
+        lastRequested = index;
+        focusIndex = index;
+
+        Bitmap bitmap = cache.get(index);
+        if (bitmap == null) {
+            load(index);
+        }
+        for (int i = 1; i <= PREFETCH_AHEAD; i++) {
+            load(index + direction * i);
+        }
+        for (int i = 1; i <= PREFETCH_BEHIND; i++) {
+            load(index - direction * i);
+        }
+        return bitmap;
+    }
+
+    // Thumbnail if cached, without queueing anything (for the neighbours of the focused frame)
+    public Bitmap peek(int index) {
+        return cache.get(index);
+    }
+
+    // Decodes one frame at up to maxLongSide pixels for the large view once scrubbing settles.
+    // Not cached: only the latest request is delivered.
+    public void loadPreview(final int index, final int maxLongSide) {
+        if (closed) return;
+        previewIndex = index;
+        pool.execute(() -> {
+            if (closed || previewIndex != index) return;
+            try {
+                Bitmap preview = decodeFrame(frames.get(index), maxLongSide);
+                mainHandler.post(() -> {
+                    if (!closed && previewIndex == index) {
+                        listener.onPreviewReady(index, preview);
+                    }
+                });
+            } catch (Exception e) {
+                Log.w(TAG, "Error decoding preview of frame " + index, e);
+            }
+        });
+    }
+
+    public void close() {
+        closed = true;
+        pool.shutdownNow();
+        synchronized (packLock) {
+            if (packFile != null) {
+                try {
+                    packFile.close();
+                } catch (IOException e) {
+                    Log.w(TAG, "Error closing thumbnail pack", e);
+                }
+                packFile = null;
+                pack = null;
+            }
+        }
+        cache.evictAll();
+    }
+
+    private void load(final int index) {
+        if (closed || index < 0 || index >= frames.size() || cache.get(index) != null) return;
+        synchronized (inFlight) {
+            if (!inFlight.add(index)) return;
+        }
+        pool.execute(() -> {
+            try {
+                // Skip decodes the scrubber has long moved away from
+                if (closed || Math.abs(index - focusIndex) > PREFETCH_AHEAD * 2) return;
+                Bitmap bitmap = readPacked(index);
+                if (bitmap == null) {
+                    bitmap = decodeFrame(frames.get(index), THUMB_LONG_SIDE);
+                    writePacked(index, bitmap);
+                }
+                cache.put(index, bitmap);
+                mainHandler.post(() -> {
+                    if (!closed) listener.onThumbnailReady(index);
+                });
+            } catch (Exception e) {
+                Log.w(TAG, "Error loading thumbnail " + index, e);
+            } finally {
+                synchronized (inFlight) {
+                    inFlight.remove(index);
+                }
+            }
+        });
+    }
+
+    // Decodes an upright frame whose long side is at least maxLongSide, then scales it down to
+    // maxLongSide. The power-of-two inSampleSize keeps decoder memory at the output size.
+    static Bitmap decodeFrame(String path, int maxLongSide) throws IOException {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(path, options);
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            throw new IOException("Cannot read frame " + path);
+        }
+        int longSide = Math.max(options.outWidth, options.outHeight);
+        int sampleSize = 1;
+        while (longSide / (sampleSize * 2) >= maxLongSide) {
+            sampleSize *= 2;
+        }
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = sampleSize;
+        options.inPreferredConfig = Bitmap.Config.RGB_565;
+        Bitmap decoded = BitmapFactory.decodeFile(path, options);
+        if (decoded == null) {
+            throw new IOException("Cannot decode frame " + path);
+        }
+
+        int orientation = new ExifInterface(path).getAttributeInt(ExifInterface.TAG_ORIENTATION,
+                ExifInterface.ORIENTATION_NORMAL);
+        Matrix matrix = new Matrix();
+        VideoCompiler.setOrientationMatrix(matrix, orientation);
+        float scale = Math.min(1f, (float) maxLongSide / Math.max(decoded.getWidth(), decoded.getHeight()));
+        matrix.postScale(scale, scale);
+        if (matrix.isIdentity()) {
+            return decoded;
+        }
+        Bitmap upright = Bitmap.createBitmap(decoded, 0, 0, decoded.getWidth(), decoded.getHeight(), matrix, true);
+        if (upright != decoded) {
+            decoded.recycle();
+        }
+        return upright;
+    }
+
+    // Reuses the session's pack if it was written for the same frame list, else starts a new one
+    private void openPack(File file) {
+        try {
+            packFile = new RandomAccessFile(file, "rw");
+            pack = packFile.getChannel();
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+            boolean reuse = pack.size() >= HEADER_BYTES + (long) frames.size() * ENTRY_BYTES
+                    && pack.read(header, 0) == HEADER_BYTES
+                    && header.getInt(0) == PACK_MAGIC && header.getInt(4) == frames.size();
+            if (reuse) {
+                packEnd = pack.size();
+                Log.d(TAG, "Reusing thumbnail pack of " + frames.size() + " frames");
+                return;
+            }
+            pack.truncate(0);
+            ByteBuffer index = ByteBuffer.allocate(HEADER_BYTES + frames.size() * ENTRY_BYTES);
+            index.putInt(PACK_MAGIC).putInt(frames.size());
+            index.rewind();
+            writeFully(index, 0);
+            packEnd = index.capacity();
+        } catch (IOException e) {
+            Log.w(TAG, "Thumbnail pack unavailable, decoding every time", e);
+            packFile = null;
+            pack = null;
+        }
+    }
+
+    private Bitmap readPacked(int index) {
+        byte[] data;
+        synchronized (packLock) {
+            if (pack == null) return null;
+            try {
+                ByteBuffer entry = ByteBuffer.allocate(ENTRY_BYTES);
+                if (pack.read(entry, HEADER_BYTES + (long) index * ENTRY_BYTES) != ENTRY_BYTES) return null;
+                long offset = entry.getLong(0);
+                int length = entry.getInt(8);
+                if (length <= 0 || offset + length > packEnd) return null;
+                ByteBuffer buffer = ByteBuffer.allocate(length);
+                if (pack.read(buffer, offset) != length) return null;
+                data = buffer.array();
+            } catch (IOException e) {
+                Log.w(TAG, "Error reading packed thumbnail " + index, e);
+                return null;
+            }
+        }
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inPreferredConfig = Bitmap.Config.RGB_565;
+        return BitmapFactory.decodeByteArray(data, 0, data.length, options);
+    }
+
+    // The JPEG goes at the end of the file before its index entry, so an interrupted write
+    // leaves the frame unpacked rather than pointing at garbage
+    private void writePacked(int index, Bitmap bitmap) {
+        ByteArrayOutputStream jpeg = new ByteArrayOutputStream(16 * 1024);
+        bitmap.compress(Bitmap.CompressFormat.JPEG, 80, jpeg);
+        byte[] data = jpeg.toByteArray();
+        synchronized (packLock) {
+            if (pack == null) return;
+            try {
+                long offset = packEnd;
+                writeFully(ByteBuffer.wrap(data), offset);
+                packEnd += data.length;
+                ByteBuffer entry = ByteBuffer.allocate(ENTRY_BYTES);
+                entry.putLong(offset).putInt(data.length);
+                entry.rewind();
+                writeFully(entry, HEADER_BYTES + (long) index * ENTRY_BYTES);
+            } catch (IOException e) {
+                Log.w(TAG, "Error packing thumbnail " + index, e);
+            }
+        }
+    }
+
+    private void writeFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += pack.write(buffer, position);
+        }
+    }
+}
@@ -7,12 +7,7 @@ import android.app.PendingIntent;
 import android.app.Service;
 import android.content.Context;
 import android.content.Intent;
-import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
-import android.graphics.Canvas;
-import android.graphics.Color;
-import android.graphics.Paint;
-import android.graphics.Rect;
+import android.net.Uri;
 import android.os.Binder;
 import android.os.Build;
 import android.os.Environment;
@@ -20,13 +15,15 @@ import android.os.Handler;
 import android.os.IBinder;
 import android.os.Looper;
 import android.os.PowerManager;
+import android.os.SystemClock;
 import android.util.Log;
 
+import androidx.camera.core.ImageAnalysis;
 import androidx.camera.core.ImageCapture;
 import androidx.camera.core.ImageCaptureException;
+import androidx.camera.core.ImageProxy;
 
 import java.io.File;
-import java.io.FileOutputStream;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Date;
@@ -34,41 +31,53 @@ import java.util.List;
 import java.util.Locale;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
 
+// Owns the camera-facing side of recording (notification, wake lock, 3A lock, shared executors)
+// and one RecordingSession per recording. Only one session captures at a time, but stopped
+// sessions keep compiling and merging in the background, so a new recording can start at once.
 public class TimeLapseService extends Service {
 
     private static final String TAG = "TimeLapseService";
-    private static final int OUTPUT_FPS = 30; // Output video will be 30fps
     private static final String CHANNEL_ID = "timelapse_recording";
     private static final int NOTIFICATION_ID = 1;
-    private static final int FRAMES_PER_SEGMENT = 300; // Compile every 300 frames (10 seconds of output video)
+    private static final long PROGRESS_INTERVAL_MS = 500; // Coalesce progress updates to 2 per second
+    private static final long METRICS_LOG_INTERVAL_MS = 10000;
 
     private final IBinder binder = new LocalBinder();
     private Handler captureHandler;
-    private ExecutorService cameraExecutor;
-    private ExecutorService compilationExecutor;
-    private ImageCapture imageCapture;
-
-    private boolean isRecording = false;
-    private int frameCount = 0;
-    private int totalFrameCount = 0;
-    private List<String> capturedImages;
-    private List<String> compiledSegments;
-    private File outputDir;
-    private int captureIntervalMs = 333; // Dynamic capture interval based on speed
+    private ProgressBus progressBus;
+    private Notification.Builder notificationBuilder;
+    private ExecutorService cameraExecutor; // Retime exports and sequence imports
+    private ExecutorService proxyExecutor;
+    private ExecutorService preRollExecutor; // Pre-roll frames while idle
+    private volatile ExposureLockController exposureLock;
+
+    private volatile RecordingSession activeSession; // Capturing, null when not recording
+    private volatile RecordingSession latestSession; // Active or most recently stopped, for proxies and stats
+    private final List<RecordingSession> finishingSessions = new ArrayList<>(); // Stopped, still compiling or merging
+
+    private PreRollBuffer preRoll; // Filling while idle, null when pre-roll is off
+    private StreamFrameSampler preRollSampler;
+    private ImageAnalysis preRollAnalysis;
+    private ImageCapture preRollCapture;
+    private int preRollIntervalMs;
+    private volatile boolean preRollCaptureInFlight = false;
+    private volatile boolean allIntraSegments = false; // Keyframe-only segments for frame-accurate retime/trim
+    private volatile boolean stabilize = false; // Inline stabilization of still-capture segments
+    private volatile boolean uprightPixels = false; // Rotate pixels instead of writing an orientation hint
+    private volatile int interpolation = FrameInterpolator.MODE_OFF; // Capture at a fraction of the rate, synthesize the rest
+    private volatile String reframePreset = Reframe.FULL; // Crop/pan-zoom of still-capture segments
+    private volatile boolean deferRendering = false; // Queue the final render until charging instead of running it at stop
+    private volatile boolean reviewBeforeRender = false; // Keep every still frame uncompiled and queue the session for review
+    private int outputFrameRate = VideoCompiler.DEFAULT_FRAME_RATE;
+    private volatile int previewState = EnergyMonitor.PREVIEW_ON; // Reported by the activity, for energy telemetry
+    private boolean variableFrameRate = false; // Keep exact capture times instead of snapping to the frame grid
+    private final AtomicInteger compileBacklog = new AtomicInteger();
     private PowerManager.WakeLock wakeLock;
-    private boolean isCompiling = false;
-    private boolean showTimestamp = false;
-
-    private FrameCountCallback frameCountCallback;
-    private VideoCompletionCallback videoCompletionCallback;
-
-    public interface FrameCountCallback {
-        void onFrameCountUpdated(int count);
-    }
 
     public interface VideoCompletionCallback {
-        void onVideoCompleted(String videoPath);
+        void onVideoCompleted(String videoPath); // null when rendering was deferred
         void onError(String error);
     }
 
@@ -81,11 +90,14 @@ public class TimeLapseService extends Service {
     @Override
     public void onCreate() {
         super.onCreate();
+        Tracer.install(this);
         captureHandler = new Handler(Looper.getMainLooper());
+        progressBus = new ProgressBus(captureHandler, PROGRESS_INTERVAL_MS);
+        progressBus.subscribe(notificationSubscriber);
+        progressBus.subscribe(metricsSubscriber);
         cameraExecutor = Executors.newSingleThreadExecutor();
-        compilationExecutor = Executors.newSingleThreadExecutor();
-        capturedImages = new ArrayList<>();
-        compiledSegments = new ArrayList<>();
+        proxyExecutor = Executors.newSingleThreadExecutor();
+        preRollExecutor = Executors.newSingleThreadExecutor();
         createNotificationChannel();
     }
 
@@ -104,29 +116,84 @@ public class TimeLapseService extends Service {
         }
     }
 
-    private Notification createNotification(int frameCount) {
-        Intent notificationIntent = new Intent(this, MainActivity.class);
-        PendingIntent pendingIntent = PendingIntent.getActivity(
-                this,
-                0,
-                notificationIntent,
-                PendingIntent.FLAG_IMMUTABLE
-        );
+    // The builder and its PendingIntent are created once and only the text changes per update
+    private Notification buildNotification(int frameCount, int backlog) {
+        if (notificationBuilder == null) {
+            Intent notificationIntent = new Intent(this, MainActivity.class);
+            PendingIntent pendingIntent = PendingIntent.getActivity(
+                    this,
+                    0,
+                    notificationIntent,
+                    PendingIntent.FLAG_IMMUTABLE
+            );
 
-        Notification.Builder builder;
-        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
-            builder = new Notification.Builder(this, CHANNEL_ID);
-        } else {
-            builder = new Notification.Builder(this);
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+                notificationBuilder = new Notification.Builder(this, CHANNEL_ID);
+            } else {
+                notificationBuilder = new Notification.Builder(this);
+            }
+            notificationBuilder
+                    .setContentTitle("Recording Timelapse")
+                    .setSmallIcon(android.R.drawable.ic_menu_camera)
+                    .setContentIntent(pendingIntent)
+                    .setOnlyAlertOnce(true)
+                    .setOngoing(true);
         }
 
-        return builder
-                .setContentTitle("Recording Timelapse")
-                .setContentText("Captured " + frameCount + " frames")
-                .setSmallIcon(android.R.drawable.ic_menu_camera)
-                .setContentIntent(pendingIntent)
-                .setOngoing(true)
-                .build();
+        String text = "Captured " + frameCount + " frames";
+        if (backlog > 0) {
+            text += " • " + backlog + (backlog == 1 ? " segment" : " segments") + " compiling";
+        }
+        RecordingSession session = activeSession;
+        if (session != null && frameCount > 0 && session.getEnergyMonitor() != null) {
+            text += " • " + session.getEnergyMonitor().getSummaryLine();
+        }
+        return notificationBuilder.setContentText(text).build();
+    }
+
+    private final ProgressBus.Subscriber notificationSubscriber = new ProgressBus.Subscriber() {
+        @Override
+        public void onProgress(ProgressBus.Progress progress) {
+            if (activeSession == null && progress.compileBacklog == 0) return;
+            NotificationManager manager = getSystemService(NotificationManager.class);
+            if (manager != null) {
+                manager.notify(NOTIFICATION_ID, buildNotification(progress.frameCount, progress.compileBacklog));
+            }
+        }
+    };
+
+    // Logs the effective capture rate and compile backlog every METRICS_LOG_INTERVAL_MS
+    private final ProgressBus.Subscriber metricsSubscriber = new ProgressBus.Subscriber() {
+        private long windowStartMs = 0;
+        private int windowStartFrames = 0;
+
+        @Override
+        public void onProgress(ProgressBus.Progress progress) {
+            if (progress.frameCount < windowStartFrames) {
+                windowStartMs = 0; // New session
+            }
+            if (windowStartMs == 0) {
+                windowStartMs = progress.timestampMs;
+                windowStartFrames = progress.frameCount;
+                return;
+            }
+            long elapsedMs = progress.timestampMs - windowStartMs;
+            if (elapsedMs >= METRICS_LOG_INTERVAL_MS) {
+                float captureFps = (progress.frameCount - windowStartFrames) * 1000f / elapsedMs;
+                RecordingSession session = activeSession;
+                EnergyMonitor energy = session != null ? session.getEnergyMonitor() : null;
+                Log.d(TAG, String.format(Locale.US, "Metrics: %.2f frames/s captured, %d total, compile backlog %d%s",
+                        captureFps, progress.frameCount, progress.compileBacklog,
+                        energy != null ? ", " + energy.getSummaryLine() : ""));
+                windowStartMs = progress.timestampMs;
+                windowStartFrames = progress.frameCount;
+            }
+        }
+    };
+
+    // Progress updates (frame count, compile backlog) for UI and other subscribers
+    public ProgressBus getProgressBus() {
+        return progressBus;
     }
 
     @Override
@@ -134,335 +201,450 @@ public class TimeLapseService extends Service {
         return binder;
     }
 
-    public boolean startRecording(ImageCapture imageCapture, int speedMultiplier, boolean showTimestamp) {
-        if (isRecording) return false;
+    // Starts a new session; allowed as soon as the previous one is stopped, even while it is
+    // still finishing. Pass an ImageAnalysis to sample frames from the continuous YUV stream
+    // instead of running a still capture per frame; imageCapture may then be null.
+    // With lock3A, AE/AF/AWB are locked after a warm-up and relocked on schedule or brightness drift.
+    // With shareCopy, a 720p rendition is encoded alongside the master from the same frames.
+    // overlayLayers (OverlayCompositor.LAYER_* flags) are burned into every frame before encoding.
+    public boolean startRecording(ImageCapture imageCapture, ImageAnalysis imageAnalysis, CaptureRequestOverrides captureOverrides,
+                                  int speedMultiplier, int overlayLayers, boolean lock3A, boolean shareCopy) {
+        if (activeSession != null) return false;
 
-        this.imageCapture = imageCapture;
-        this.showTimestamp = showTimestamp;
+        List<Rendition> renditions = Rendition.forSession(shareCopy);
 
         // Calculate capture interval based on speed multiplier
-        // Formula: interval = (1000ms / OUTPUT_FPS) * speedMultiplier
-        // For 10x speed: (1000/30) * 10 = 333ms (capture at 3fps)
-        // For 20x speed: (1000/30) * 20 = 666ms (capture at 1.5fps)
-        captureIntervalMs = (1000 / OUTPUT_FPS) * speedMultiplier;
-        Log.d(TAG, "Speed: " + speedMultiplier + "x, Capture interval: " + captureIntervalMs + "ms");
+        // Formula: interval = (1000ms / outputFrameRate) * speedMultiplier
+        // For 10x speed at 30fps: (1000/30) * 10 = 333ms (capture at 3fps)
+        // For 20x speed at 30fps: (1000/30) * 20 = 666ms (capture at 1.5fps)
+        int captureIntervalMs = getCaptureIntervalMs(speedMultiplier);
+        Log.d(TAG, "Speed: " + speedMultiplier + "x, Capture interval: " + captureIntervalMs + "ms, output "
+                + outputFrameRate + "fps" + (variableFrameRate ? " (VFR)" : ""));
 
         // Start foreground service with notification
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
-            startForeground(NOTIFICATION_ID, createNotification(0), android.content.pm.ServiceInfo.FOREGROUND_SERVICE_TYPE_CAMERA);
+            startForeground(NOTIFICATION_ID, buildNotification(0, compileBacklog.get()), android.content.pm.ServiceInfo.FOREGROUND_SERVICE_TYPE_CAMERA);
         } else {
-            startForeground(NOTIFICATION_ID, createNotification(0));
+            startForeground(NOTIFICATION_ID, buildNotification(0, compileBacklog.get()));
         }
         Log.d(TAG, "Started foreground service");
 
-        // Acquire wake lock to keep CPU running while screen is off
-        PowerManager powerManager = (PowerManager) getSystemService(Context.POWER_SERVICE);
-        wakeLock = powerManager.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, "TimeLapse::RecordingWakeLock");
-        wakeLock.acquire();
-        Log.d(TAG, "Wake lock acquired");
+        // Acquire wake lock to keep CPU running while screen is off; it may still be held
+        // by a previous session that is finishing
+        if (wakeLock == null) {
+            PowerManager powerManager = (PowerManager) getSystemService(Context.POWER_SERVICE);
+            wakeLock = powerManager.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, "TimeLapse::RecordingWakeLock");
+            wakeLock.setReferenceCounted(false);
+        }
+        if (!wakeLock.isHeld()) {
+            wakeLock.acquire();
+            Log.d(TAG, "Wake lock acquired");
+        }
 
-        // Create output directory
+        // Create output directory, unique even if the previous session started in the same second
         String timeStamp = new SimpleDateFormat("yyyyMMdd_HHmmss", Locale.getDefault()).format(new Date());
-        outputDir = new File(getExternalFilesDir(Environment.DIRECTORY_MOVIES), "timelapse_" + timeStamp);
-        if (!outputDir.exists() && !outputDir.mkdirs()) {
+        File moviesDir = getExternalFilesDir(Environment.DIRECTORY_MOVIES);
+        File outputDir = new File(moviesDir, "timelapse_" + timeStamp);
+        for (int n = 2; outputDir.exists(); n++) {
+            outputDir = new File(moviesDir, "timelapse_" + timeStamp + "_" + n);
+        }
+        if (!outputDir.mkdirs()) {
             Log.e(TAG, "Failed to create output directory");
+            releaseIfIdle();
             return false;
         }
 
-        isRecording = true;
-        frameCount = 0;
-        totalFrameCount = 0;
-        capturedImages.clear();
-        compiledSegments.clear();
+        RecordingSession session = new RecordingSession(this, outputDir, renditions, captureIntervalMs, outputFrameRate,
+                variableFrameRate, allIntraSegments, uprightPixels, stabilize, reframePreset, overlayLayers, interpolation,
+                reviewBeforeRender);
+        PreRollBuffer preRollFrames = detachPreRoll();
+        activeSession = session;
+        latestSession = session;
+        progressBus.publishFrameCount(0);
+
+        exposureLock = (lock3A && captureOverrides != null) ? new ExposureLockController(captureOverrides, captureHandler) : null;
+        if (exposureLock != null) {
+            exposureLock.start();
+        }
 
-        startCapturing();
+        session.start(imageCapture, imageAnalysis, captureHandler, preRollFrames);
         return true;
     }
 
-    public void stopRecording(VideoCompletionCallback callback) {
-        if (!isRecording) return;
-
-        this.videoCompletionCallback = callback;
-        isRecording = false;
-
-        // Stop capturing and compile video
-        captureHandler.removeCallbacksAndMessages(null);
+    private int getCaptureIntervalMs(int speedMultiplier) {
+        return Math.max(1, Math.round(1000f * speedMultiplier / outputFrameRate));
+    }
 
-        if (capturedImages.isEmpty()) {
-            callback.onError("No frames captured");
-            return;
+    // While idle, keep the last frameCount frames at the capture interval of speedMultiplier
+    // and prepend them to the next recording. Uses whichever use case is bound: the analysis
+    // stream, or in-memory still captures. A frameCount of 0 turns pre-roll off.
+    public void startPreRoll(ImageCapture imageCapture, ImageAnalysis imageAnalysis, int speedMultiplier, int frameCount) {
+        detachPreRoll();
+        if (activeSession != null || frameCount <= 0 || (imageCapture == null && imageAnalysis == null)) return;
+
+        preRollIntervalMs = getCaptureIntervalMs(speedMultiplier);
+        preRoll = new PreRollBuffer(frameCount);
+        if (imageAnalysis != null) {
+            preRollAnalysis = imageAnalysis;
+            preRollSampler = new StreamFrameSampler(preRollIntervalMs, preRoll::add);
+            imageAnalysis.setAnalyzer(preRollExecutor, preRollSampler);
+        } else {
+            preRollCapture = imageCapture;
+            captureHandler.post(preRollRunnable);
         }
+        Log.d(TAG, "Pre-roll started: " + frameCount + " frames every " + preRollIntervalMs + "ms");
+    }
 
-        compileVideo();
+    public void stopPreRoll() {
+        detachPreRoll();
     }
 
-    private void startCapturing() {
-        captureHandler.post(captureRunnable);
+    // Stops filling the pre-roll and returns it (null if off)
+    private PreRollBuffer detachPreRoll() {
+        PreRollBuffer buffer = preRoll;
+        preRoll = null;
+        captureHandler.removeCallbacks(preRollRunnable);
+        preRollCapture = null;
+        if (preRollSampler != null) {
+            preRollSampler.stop();
+            preRollAnalysis.clearAnalyzer();
+            preRollSampler = null;
+            preRollAnalysis = null;
+        }
+        return buffer;
     }
 
-    private final Runnable captureRunnable = new Runnable() {
+    private final Runnable preRollRunnable = new Runnable() {
         @Override
         public void run() {
-            if (!isRecording) return;
+            final ImageCapture capture = preRollCapture;
+            final PreRollBuffer buffer = preRoll;
+            if (capture == null || buffer == null) return;
+
+            // Skip a tick rather than queue captures when the camera is slower than the interval
+            if (!preRollCaptureInFlight) {
+                preRollCaptureInFlight = true;
+                final long requestTimeMs = SystemClock.elapsedRealtime();
+                capture.takePicture(preRollExecutor, new ImageCapture.OnImageCapturedCallback() {
+                    @Override
+                    public void onCaptureSuccess(@androidx.annotation.NonNull ImageProxy image) {
+                        try {
+                            buffer.add(image.getPlanes()[0].getBuffer(), image.getWidth(), image.getHeight(),
+                                    image.getImageInfo().getRotationDegrees(), requestTimeMs * 1000000L);
+                        } finally {
+                            image.close();
+                            preRollCaptureInFlight = false;
+                        }
+                    }
 
-            captureImage();
-            captureHandler.postDelayed(this, captureIntervalMs);
+                    @Override
+                    public void onError(@androidx.annotation.NonNull ImageCaptureException exception) {
+                        preRollCaptureInFlight = false;
+                        Log.w(TAG, "Pre-roll capture failed: " + exception.getMessage());
+                    }
+                });
+            }
+            captureHandler.postDelayed(this, preRollIntervalMs);
         }
     };
 
-    private void captureImage() {
-        String fileName = String.format(Locale.getDefault(), "frame_%06d.jpg", frameCount);
-        File outputFile = new File(outputDir, fileName);
+    // Stops capturing and hands the session off to finish in the background. The camera, the
+    // 3A lock and the UI are free for the next recording as soon as this returns; the callback
+    // reports the saved (or queued) video later, on a background thread.
+    public void stopRecording(VideoCompletionCallback callback) {
+        RecordingSession session = activeSession;
+        if (session == null) return;
 
-        ImageCapture.OutputFileOptions outputFileOptions =
-                new ImageCapture.OutputFileOptions.Builder(outputFile).build();
+        activeSession = null;
+        if (exposureLock != null) {
+            exposureLock.stop();
+            exposureLock = null;
+        }
 
-        imageCapture.takePicture(
-                outputFileOptions,
-                cameraExecutor,
-                new ImageCapture.OnImageSavedCallback() {
-                    @Override
-                    public void onImageSaved(@androidx.annotation.NonNull ImageCapture.OutputFileResults output) {
-                        // Apply timestamp overlay if enabled
-                        if (showTimestamp) {
-                            applyTimestampOverlay(outputFile.getAbsolutePath());
-                        }
+        synchronized (finishingSessions) {
+            finishingSessions.add(session);
+        }
+        session.stop(deferRendering, callback);
+    }
 
-                        frameCount++;
-                        totalFrameCount++;
-                        capturedImages.add(outputFile.getAbsolutePath());
+    public boolean isRecording() {
+        return activeSession != null;
+    }
 
-                        // Update notification with frame count
-                        NotificationManager manager = getSystemService(NotificationManager.class);
-                        if (manager != null && isRecording) {
-                            manager.notify(NOTIFICATION_ID, createNotification(totalFrameCount));
-                        }
+    // Called on the session's capture thread
+    void onFrameCaptured(RecordingSession session, int frameCount) {
+        EnergyMonitor energy = session.getEnergyMonitor();
+        if (energy != null) {
+            energy.setFrameCount(frameCount);
+        }
+        if (session == activeSession) {
+            progressBus.publishFrameCount(frameCount);
+        }
+    }
 
-                        if (frameCountCallback != null) {
-                            frameCountCallback.onFrameCountUpdated(totalFrameCount);
-                        }
+    void reportSceneLuma(float meanLuma) {
+        ExposureLockController lock = exposureLock;
+        if (lock != null && meanLuma >= 0) {
+            lock.onSceneLuma(meanLuma);
+        }
+    }
 
-                        Log.d(TAG, "Image saved: " + fileName);
+    boolean isExposureLocked() {
+        ExposureLockController lock = exposureLock;
+        return lock != null && lock.isLocked();
+    }
 
-                        // Check if we should compile a segment
-                        if (frameCount >= FRAMES_PER_SEGMENT && !isCompiling) {
-                            compileSegment();
-                        }
-                    }
+    // Returns the backlog including this segment
+    int onCompileQueued() {
+        int backlog = compileBacklog.incrementAndGet();
+        progressBus.publishCompileBacklog(backlog);
+        return backlog;
+    }
 
-                    @Override
-                    public void onError(@androidx.annotation.NonNull ImageCaptureException exception) {
-                        Log.e(TAG, "Image capture failed: " + exception.getMessage());
-                    }
-                }
-        );
+    // Returns the remaining backlog
+    int onCompileFinished() {
+        int backlog = compileBacklog.decrementAndGet();
+        progressBus.publishCompileBacklog(backlog);
+        return backlog;
     }
 
-    private void compileSegment() {
-        isCompiling = true;
+    // Segment compiles of every session, shared with deferred renders; not for the main thread
+    ExecutorService getCompilationExecutor() {
+        return CompilePool.get(this);
+    }
 
-        // Create a copy of the current frame list to compile
-        final List<String> framesToCompile = new ArrayList<>(capturedImages);
-        final int segmentNumber = compiledSegments.size();
+    ExecutorService getProxyExecutor() {
+        return proxyExecutor;
+    }
 
-        Log.d(TAG, "Starting segment compilation #" + segmentNumber + " with " + framesToCompile.size() + " frames");
+    // Called by a session once its video is saved, queued or has failed
+    void onSessionFinished(RecordingSession session) {
+        synchronized (finishingSessions) {
+            finishingSessions.remove(session);
+        }
+        captureHandler.post(this::releaseIfIdle);
+    }
 
-        compilationExecutor.execute(() -> {
-            try {
-                VideoCompiler compiler = new VideoCompiler();
-                String segmentPath = compiler.compileImagesToVideo(this, framesToCompile, outputDir.getAbsolutePath(), segmentNumber);
-
-                synchronized (compiledSegments) {
-                    compiledSegments.add(segmentPath);
-                }
-
-                // Delete compiled frames to free up storage
-                for (String imagePath : framesToCompile) {
-                    File imageFile = new File(imagePath);
-                    if (imageFile.exists()) {
-                        imageFile.delete();
-                        Log.d(TAG, "Deleted compiled frame: " + imagePath);
-                    }
-                }
+    // Sessions stopped but still compiling or merging
+    public int getFinishingSessionCount() {
+        synchronized (finishingSessions) {
+            return finishingSessions.size();
+        }
+    }
+
+    // Keep the CPU and the foreground notification until the last session has finished
+    private void releaseIfIdle() {
+        if (activeSession != null || getFinishingSessionCount() > 0) return;
+        if (wakeLock != null && wakeLock.isHeld()) {
+            wakeLock.release();
+            Log.d(TAG, "Wake lock released");
+        }
+        stopForeground(true);
+        Log.d(TAG, "Stopped foreground service");
+    }
+
+    // Name of the active recording, under which FrameStats.readArchive() finds its statistics
+    // once rendered; null when not recording
+    public String getRecordingName() {
+        RecordingSession session = activeSession;
+        return session != null ? session.getOutputDir().getName() : null;
+    }
+
+    // Luma/sharpness statistics of every frame compiled so far in the latest session
+    public List<FrameStats> getFrameStats() {
+        RecordingSession session = latestSession;
+        return session != null ? session.getFrameStats() : new ArrayList<FrameStats>();
+    }
+
+    // Segments queued or being compiled, across all sessions
+    public int getCompileBacklog() {
+        return compileBacklog.get();
+    }
+
+    // Proxy frames of the latest session, for the live preview
+    public ProxyStore getProxyStore() {
+        RecordingSession session = latestSession;
+        return session != null ? session.getProxyStore() : null;
+    }
+
+    // EnergyMonitor.PREVIEW_* state of the camera preview, so sessions can be compared by preview mode
+    public void setPreviewState(int state) {
+        previewState = state;
+        RecordingSession session = activeSession;
+        if (session != null && session.getEnergyMonitor() != null) {
+            session.getEnergyMonitor().setPreviewState(state);
+        }
+    }
+
+    int getPreviewState() {
+        return previewState;
+    }
+
+    // Takes effect for the next recording
+    public void setAllIntraSegments(boolean allIntra) {
+        this.allIntraSegments = allIntra;
+    }
+
+    // Capture at 1/FrameInterpolator.CAPTURE_DIVISOR of the rate and synthesize the frames in
+    // between (FrameInterpolator.MODE_*); takes effect for the next recording
+    public void setInterpolation(int interpolation) {
+        this.interpolation = interpolation;
+    }
+
+    // Stabilize still-capture frames while compiling (translation and rotation); takes effect for the next recording
+    public void setStabilization(boolean stabilize) {
+        this.stabilize = stabilize;
+    }
+
+    // Crop preset (see Reframe) applied while compiling still-capture frames; takes effect for the next recording
+    public void setReframe(String preset) {
+        this.reframePreset = preset;
+    }
 
-                // Clear the compiled frames from the list and reset counter
-                synchronized (capturedImages) {
-                    capturedImages.clear();
-                    frameCount = 0;
-                }
+    // When set, stopping a recording only finishes segments already compiling; the remaining
+    // frames, merges and renditions go to the DeferredJobQueue. Takes effect at the next stop.
+    public void setDeferRendering(boolean deferRendering) {
+        this.deferRendering = deferRendering;
+    }
 
-                Log.d(TAG, "Segment #" + segmentNumber + " compiled successfully: " + segmentPath);
+    // When set, still-capture sessions compile nothing while recording; at stop they are queued
+    // held, so ReviewActivity can trim and drop frames before the first one is encoded. Stream
+    // sessions encode live and are only deferred. Takes effect at the next start.
+    public void setReviewBeforeRender(boolean reviewBeforeRender) {
+        this.reviewBeforeRender = reviewBeforeRender;
+    }
+
+    // Queued renders, with progress listeners, "run now" and cancellation
+    public DeferredJobQueue getDeferredQueue() {
+        return DeferredJobQueue.get(this);
+    }
 
+    // Output frame rate (one of VideoCompiler.OUTPUT_FRAME_RATES); takes effect for the next recording
+    public void setOutputTiming(int frameRate, boolean variableFrameRate) {
+        if (activeSession != null) return;
+        this.outputFrameRate = frameRate;
+        this.variableFrameRate = variableFrameRate;
+    }
+
+    // Re-export a finished video with new timing (no re-encode) and save it to the gallery
+    public void retimeVideo(final String sourcePath, final VideoRetimer retimer, final String nameSuffix,
+                            final VideoCompletionCallback callback) {
+        cameraExecutor.execute(() -> {
+            File workFile = new File(getExternalFilesDir(Environment.DIRECTORY_MOVIES), "timelapse_retime.mp4");
+            try {
+                long startMs = SystemClock.elapsedRealtime();
+                retimer.retime(this, sourcePath, workFile.getAbsolutePath());
+                String videoPath = new VideoCompiler().saveToGallery(this, workFile.getAbsolutePath(), nameSuffix);
+                Log.d(TAG, "Retime export took " + (SystemClock.elapsedRealtime() - startMs) + "ms");
+                callback.onVideoCompleted(videoPath);
             } catch (Exception e) {
-                Log.e(TAG, "Segment compilation failed", e);
+                Log.e(TAG, "Retime export failed", e);
+                callback.onError("Re-export failed: " + e.getMessage());
             } finally {
-                isCompiling = false;
+                workFile.delete();
             }
         });
     }
 
-    private void compileVideo() {
+    // Compile an existing image sequence (a picked folder, or individually picked images when
+    // treeUri is null) into a video at the current output frame rate and save it to the gallery
+    public void importSequence(final Uri treeUri, final List<Uri> imageUris, final int maxShortSide,
+                               final SequenceImporter.ProgressListener progress, final VideoCompletionCallback callback) {
+        final int frameRate = outputFrameRate;
+        final boolean allIntra = allIntraSegments;
         cameraExecutor.execute(() -> {
+            PowerManager powerManager = (PowerManager) getSystemService(Context.POWER_SERVICE);
+            PowerManager.WakeLock importLock = powerManager.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, "TimeLapse::ImportWakeLock");
+            importLock.acquire();
             try {
-                VideoCompiler compiler = new VideoCompiler();
-                String videoPath;
-
-                // Compile any remaining frames as final segment
-                if (!capturedImages.isEmpty()) {
-                    Log.d(TAG, "Compiling remaining " + capturedImages.size() + " frames");
-                    String finalSegmentPath = compiler.compileImagesToVideo(this, capturedImages, outputDir.getAbsolutePath(), compiledSegments.size());
-                    synchronized (compiledSegments) {
-                        compiledSegments.add(finalSegmentPath);
-                    }
-                }
-
-                // If we have multiple segments, merge them
-                if (compiledSegments.size() > 1) {
-                    Log.d(TAG, "Merging " + compiledSegments.size() + " segments");
-                    videoPath = compiler.mergeVideoSegments(this, compiledSegments, outputDir.getAbsolutePath());
-
-                    // Delete individual segments after merging
-                    for (String segmentPath : compiledSegments) {
-                        File segmentFile = new File(segmentPath);
-                        if (segmentFile.exists()) {
-                            segmentFile.delete();
-                            Log.d(TAG, "Deleted segment: " + segmentPath);
-                        }
-                    }
-                } else if (compiledSegments.size() == 1) {
-                    // Only one segment, save it to gallery
-                    String segmentPath = compiledSegments.get(0);
-                    Log.d(TAG, "Single segment, saving to gallery");
-                    videoPath = compiler.saveToGallery(this, segmentPath);
-
-                    // Delete the segment file after saving
-                    File segmentFile = new File(segmentPath);
-                    if (segmentFile.exists()) {
-                        segmentFile.delete();
-                        Log.d(TAG, "Deleted segment: " + segmentPath);
-                    }
-                } else {
-                    throw new Exception("No video segments to compile");
-                }
-
-                // Clean up remaining image files and temporary directory
-                for (String imagePath : capturedImages) {
-                    File imageFile = new File(imagePath);
-                    if (imageFile.exists()) {
-                        imageFile.delete();
-                        Log.d(TAG, "Deleted image: " + imagePath);
-                    }
-                }
-
-                // Delete temporary directory
-                if (outputDir != null && outputDir.exists()) {
-                    outputDir.delete();
-                    Log.d(TAG, "Deleted temporary directory: " + outputDir.getAbsolutePath());
-                }
-
-                if (videoCompletionCallback != null) {
-                    videoCompletionCallback.onVideoCompleted(videoPath);
-                }
-
+                long startMs = SystemClock.elapsedRealtime();
+                SequenceImporter importer = new SequenceImporter(this);
+                List<SequenceImporter.Frame> frames = treeUri != null
+                        ? importer.listFolder(treeUri)
+                        : importer.describe(imageUris);
+                String videoPath = importer.importSequence(frames, maxShortSide, frameRate, allIntra, progress);
+                Log.d(TAG, "Imported " + frames.size() + " images in " + (SystemClock.elapsedRealtime() - startMs) + "ms");
+                callback.onVideoCompleted(videoPath);
             } catch (Exception e) {
-                Log.e(TAG, "Video compilation failed", e);
-                if (videoCompletionCallback != null) {
-                    videoCompletionCallback.onError("Video compilation failed: " + e.getMessage());
-                }
+                Log.e(TAG, "Sequence import failed", e);
+                callback.onError("Import failed: " + e.getMessage());
             } finally {
-                // Release wake lock
-                if (wakeLock != null && wakeLock.isHeld()) {
-                    wakeLock.release();
-                    Log.d(TAG, "Wake lock released");
-                }
-                // Stop foreground service
-                stopForeground(true);
-                Log.d(TAG, "Stopped foreground service");
+                importLock.release();
             }
         });
     }
 
-    private void applyTimestampOverlay(String imagePath) {
-        try {
-            // Load the image
-            Bitmap original = BitmapFactory.decodeFile(imagePath);
-            if (original == null) {
-                Log.e(TAG, "Failed to load image for timestamp overlay");
-                return;
+    // Speed up an existing video (dashcam, screen recording) by speedMultiplier, taking one
+    // source frame per output frame the way a recording at that speed would capture them
+    public void importVideo(final Uri videoUri, final int speedMultiplier, final int maxShortSide,
+                            final SequenceImporter.ProgressListener progress, final VideoCompletionCallback callback) {
+        final int frameRate = outputFrameRate;
+        final boolean allIntra = allIntraSegments;
+        final long sampleIntervalUs = getCaptureIntervalMs(speedMultiplier) * 1000L;
+        cameraExecutor.execute(() -> {
+            PowerManager powerManager = (PowerManager) getSystemService(Context.POWER_SERVICE);
+            PowerManager.WakeLock importLock = powerManager.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, "TimeLapse::ImportWakeLock");
+            importLock.acquire();
+            try {
+                long startMs = SystemClock.elapsedRealtime();
+                String videoPath = new VideoSourceImporter(this).importVideo(videoUri, sampleIntervalUs, frameRate,
+                        maxShortSide, allIntra, progress);
+                Log.d(TAG, "Converted video at " + speedMultiplier + "x in " + (SystemClock.elapsedRealtime() - startMs) + "ms");
+                callback.onVideoCompleted(videoPath);
+            } catch (Exception e) {
+                Log.e(TAG, "Video import failed", e);
+                callback.onError("Import failed: " + e.getMessage());
+            } finally {
+                importLock.release();
             }
+        });
+    }
 
-            // Create a mutable copy
-            Bitmap mutableBitmap = original.copy(Bitmap.Config.ARGB_8888, true);
-            original.recycle();
-
-            Canvas canvas = new Canvas(mutableBitmap);
-
-            // Get current date and time
-            SimpleDateFormat dateFormat = new SimpleDateFormat("dd-MM-yyyy", Locale.getDefault());
-            SimpleDateFormat timeFormat = new SimpleDateFormat("HH:mm:ss", Locale.getDefault());
-            Date now = new Date();
-            String dateStr = dateFormat.format(now);
-            String timeStr = timeFormat.format(now);
-
-            // Setup paint for minimalistic text
-            Paint paint = new Paint(Paint.ANTI_ALIAS_FLAG);
-            paint.setColor(Color.WHITE);
-            paint.setStyle(Paint.Style.FILL);
-
-            // Calculate text size based on image width (smaller for minimalistic look)
-            int imageWidth = mutableBitmap.getWidth();
-            int imageHeight = mutableBitmap.getHeight();
-            float textSize = imageWidth * 0.025f; // 2.5% of image width
-            paint.setTextSize(textSize);
-
-            // Add subtle shadow for better readability
-            paint.setShadowLayer(textSize * 0.15f, 0, 0, Color.BLACK);
-
-            // Measure text dimensions
-            Rect dateBounds = new Rect();
-            Rect timeBounds = new Rect();
-            paint.getTextBounds(dateStr, 0, dateStr.length(), dateBounds);
-            paint.getTextBounds(timeStr, 0, timeStr.length(), timeBounds);
-
-            // Position in top right corner with padding
-            float padding = textSize * 0.8f;
-            float dateX = imageWidth - dateBounds.width() - padding;
-            float dateY = padding + dateBounds.height();
-            float timeX = imageWidth - timeBounds.width() - padding;
-            float timeY = dateY + timeBounds.height() + (textSize * 0.3f);
-
-            // Draw timestamp
-            canvas.drawText(dateStr, dateX, dateY, paint);
-            canvas.drawText(timeStr, timeX, timeY, paint);
-
-            // Save the modified image back to the same file
-            FileOutputStream out = new FileOutputStream(imagePath);
-            mutableBitmap.compress(Bitmap.CompressFormat.JPEG, 95, out);
-            out.flush();
-            out.close();
-            mutableBitmap.recycle();
-
-            Log.d(TAG, "Timestamp overlay applied to: " + imagePath);
-
-        } catch (Exception e) {
-            Log.e(TAG, "Error applying timestamp overlay", e);
+    // Export the proxy frames as a quick low-res MP4 to the gallery
+    public void exportProxyVideo(VideoCompletionCallback callback) {
+        final ProxyStore store = getProxyStore();
+        if (store == null || store.getFrameCount() == 0) {
+            callback.onError("No preview frames yet");
+            return;
         }
+
+        // Queued behind pending proxy writes so the export sees every frame captured so far
+        proxyExecutor.execute(() -> {
+            try {
+                VideoCompiler compiler = new VideoCompiler();
+                compiler.setFrameRate(outputFrameRate);
+                String videoPath = compiler.compileImagesToVideo(this, store.getFramePaths(), store.getDirectory().getAbsolutePath());
+                callback.onVideoCompleted(videoPath);
+            } catch (Exception e) {
+                Log.e(TAG, "Proxy export failed", e);
+                callback.onError("Preview export failed: " + e.getMessage());
+            }
+        });
     }
 
-    public void setFrameCountCallback(FrameCountCallback callback) {
-        this.frameCountCallback = callback;
+    // Rotate the pixels of compiled frames instead of writing the MP4 orientation hint, for
+    // players that ignore it; takes effect for the next recording
+    public void setUprightPixels(boolean uprightPixels) {
+        this.uprightPixels = uprightPixels;
     }
 
     @Override
     public void onDestroy() {
         super.onDestroy();
-        isRecording = false;
+        activeSession = null;
+        detachPreRoll();
         captureHandler.removeCallbacksAndMessages(null);
+        if (exposureLock != null) {
+            exposureLock.stop();
+        }
         if (cameraExecutor != null) {
             cameraExecutor.shutdown();
         }
-        if (compilationExecutor != null) {
-            compilationExecutor.shutdown();
+        if (proxyExecutor != null) {
+            proxyExecutor.shutdown();
+        }
+        if (preRollExecutor != null) {
+            preRollExecutor.shutdown();
         }
         if (wakeLock != null && wakeLock.isHeld()) {
             wakeLock.release();
@@ -0,0 +1,133 @@
+package com.timelapse;
+
+import android.content.Context;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Event tracer for the hot loops (per frame, per file), in place of Log.d string building.
+// Each event is a fixed-size record (time, level, event id, thread, two long arguments) written
+// into a preallocated ring of the last CAPACITY events, so tracing never allocates or makes a
+// syscall. Events below MIN_LEVEL (set from the build type) return before touching the ring.
+// The ring is dumped to logcat or a file on demand, when a segment or render fails, and on a crash.
+public final class Tracer {
+
+    private static final String TAG = "Tracer";
+    private static final int CAPACITY = 4096; // Power of two
+    private static final int RECORD_LONGS = 4;
+    private static final String DUMP_FILE = "trace.txt";
+
+    public static final int VERBOSE = 0;
+    public static final int DEBUG = 1;
+    public static final int INFO = 2;
+    public static final int WARN = 3;
+    public static final int ERROR = 4;
+    private static final String[] LEVEL_NAMES = {"V", "D", "I", "W", "E"};
+
+    // Release builds keep per-frame events (useful post-mortem) but skip per-file detail
+    private static final int MIN_LEVEL = BuildConfig.DEBUG ? VERBOSE : DEBUG;
+
+    // Event ids and the meaning of their two arguments
+    public static final int FRAME_ENCODED = 0; // frame index, presentation time (us)
+    public static final int FRAME_DECODE_FAILED = 1; // frame index, -
+    public static final int IMAGE_SAVED = 2; // frame index, capture round-trip (ms)
+    public static final int STREAM_FRAME = 3; // frame index, presentation time (us)
+    public static final int SEGMENT_QUEUED = 4; // segment number, frame count
+    public static final int SEGMENT_COMPILED = 5; // segment number, compile time (ms)
+    public static final int SEGMENT_FAILED = 6; // segment number, -
+    public static final int SEGMENT_MERGED = 7; // segment index, samples copied
+    public static final int FILE_DELETED = 8; // segment or frame index, file size (bytes)
+    public static final int RENDER_STEP = 9; // step, total steps
+    private static final String[] EVENT_NAMES = {
+            "frame_encoded", "frame_decode_failed", "image_saved", "stream_frame", "segment_queued",
+            "segment_compiled", "segment_failed", "segment_merged", "file_deleted", "render_step"};
+
+    private static final long[] ring = new long[CAPACITY * RECORD_LONGS];
+    private static final AtomicLong nextIndex = new AtomicLong();
+    private static File dumpDir;
+
+    private Tracer() {
+    }
+
+    public static void trace(int level, int event, long arg0, long arg1) {
+        if (level < MIN_LEVEL) return;
+        // Writers claim distinct slots; a dump racing a writer may show one torn record
+        int base = (int) (nextIndex.getAndIncrement() & (CAPACITY - 1)) * RECORD_LONGS;
+        ring[base] = SystemClock.elapsedRealtimeNanos();
+        ring[base + 1] = ((long) level << 56) | ((long) event << 32) | (Thread.currentThread().getId() & 0xffffffffL);
+        ring[base + 2] = arg0;
+        ring[base + 3] = arg1;
+    }
+
+    public static void d(int event, long arg0, long arg1) {
+        trace(DEBUG, event, arg0, arg1);
+    }
+
+    public static void v(int event, long arg0, long arg1) {
+        trace(VERBOSE, event, arg0, arg1);
+    }
+
+    // Records the failure and dumps the ring to the app's trace file
+    public static void e(int event, long arg0, long arg1) {
+        trace(ERROR, event, arg0, arg1);
+        dumpToFile();
+    }
+
+    // Enables file dumps and dumps the ring before the process dies of an uncaught exception
+    public static synchronized void install(Context context) {
+        if (dumpDir != null) return;
+        dumpDir = context.getApplicationContext().getFilesDir();
+        final Thread.UncaughtExceptionHandler previous = Thread.getDefaultUncaughtExceptionHandler();
+        Thread.setDefaultUncaughtExceptionHandler((thread, throwable) -> {
+            dumpToFile();
+            if (previous != null) {
+                previous.uncaughtException(thread, throwable);
+            }
+        });
+    }
+
+    // Oldest first, one line per event, times relative to the newest event
+    public static String dump() {
+        long end = nextIndex.get();
+        long start = Math.max(0, end - CAPACITY);
+        if (end == 0) return "";
+        long lastNanos = ring[(int) ((end - 1) & (CAPACITY - 1)) * RECORD_LONGS];
+
+        StringWriter out = new StringWriter();
+        PrintWriter writer = new PrintWriter(out);
+        for (long i = start; i < end; i++) {
+            int base = (int) (i & (CAPACITY - 1)) * RECORD_LONGS;
+            long header = ring[base + 1];
+            int level = (int) (header >>> 56) & 0xff;
+            int event = (int) (header >>> 32) & 0xffffff;
+            writer.printf(Locale.US, "%+10.3fms %5d %s %s %d %d%n",
+                    (ring[base] - lastNanos) / 1e6, header & 0xffffffffL,
+                    level < LEVEL_NAMES.length ? LEVEL_NAMES[level] : "?",
+                    event < EVENT_NAMES.length ? EVENT_NAMES[event] : "event_" + event,
+                    ring[base + 2], ring[base + 3]);
+        }
+        writer.flush();
+        return out.toString();
+    }
+
+    // Writes the ring to trace.txt in app storage. Returns the file, or null if not installed or on error.
+    public static synchronized File dumpToFile() {
+        if (dumpDir == null) return null;
+        File file = new File(dumpDir, DUMP_FILE);
+        try (FileWriter writer = new FileWriter(file)) {
+            writer.write(dump());
+            Log.i(TAG, "Trace dumped to " + file.getAbsolutePath());
+            return file;
+        } catch (IOException e) {
+            Log.e(TAG, "Error dumping trace", e);
+            return null;
+        }
+    }
+}
@@ -5,47 +5,177 @@ import android.content.ContentValues;
 import android.content.Context;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Canvas;
+import android.graphics.Color;
 import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.graphics.RectF;
 import android.media.ExifInterface;
 import android.media.MediaCodec;
-import android.media.MediaCodecInfo;
 import android.media.MediaExtractor;
 import android.media.MediaFormat;
+import android.media.MediaMetadataRetriever;
 import android.media.MediaMuxer;
 import android.net.Uri;
 import android.os.Build;
 import android.os.Environment;
+import android.os.ParcelFileDescriptor;
 import android.provider.MediaStore;
 import android.util.Log;
 
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
-import java.io.OutputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.text.SimpleDateFormat;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
+import java.util.Deque;
 import java.util.List;
 import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 public class VideoCompiler {
 
     private static final String TAG = "VideoCompiler";
-    private static final String MIME_TYPE = "video/avc";
-    private static final int FRAME_RATE = 30;
-    private static final int I_FRAME_INTERVAL = 5;
-    private static final int TIMEOUT_US = 10000;
+    static final String MIME_TYPE = "video/avc";
+    static final int DEFAULT_FRAME_RATE = 30;
+    static final int[] OUTPUT_FRAME_RATES = {24, 25, 30, 60};
+    static final int I_FRAME_INTERVAL = 5;
+
+    // When true, rotation is baked into the pixels (in the YUV domain) for players that
+    // ignore the container orientation hint
+    private boolean uprightPixels = false;
+
+    public void setUprightPixels(boolean uprightPixels) {
+        this.uprightPixels = uprightPixels;
+    }
+
+    // Where per-frame statistics of the next compile are written (null to skip writing)
+    private File frameStatsFile;
+
+    public void setFrameStatsFile(File frameStatsFile) {
+        this.frameStatsFile = frameStatsFile;
+    }
+
+    // Inline global-motion stabilization of still-capture frames (see Stabilizer), null for none.
+    // Consecutive segments share one instance and must then be compiled in order.
+    private Stabilizer stabilizer;
+
+    public void setStabilizer(Stabilizer stabilizer) {
+        this.stabilizer = stabilizer;
+    }
+
+    // Crop (and optional pan/zoom) of still-capture frames, decoded region-only (see Reframe)
+    private Reframe reframe;
+
+    public void setReframe(Reframe reframe) {
+        this.reframe = reframe;
+    }
+
+    // Every frame a keyframe: larger files, but VideoRetimer can then trim and decimate per frame
+    private int iFrameInterval = I_FRAME_INTERVAL;
+
+    public void setAllIntra(boolean allIntra) {
+        this.iFrameInterval = allIntra ? 0 : I_FRAME_INTERVAL;
+    }
+
+    // Layers burned into each frame just before encoding (see OverlayCompositor), null for none
+    private OverlayCompositor.Spec overlay;
+
+    public void setOverlay(OverlayCompositor.Spec overlay) {
+        this.overlay = overlay;
+    }
+
+    private int frameRate = DEFAULT_FRAME_RATE;
+
+    // Output slots between captured frames are filled with synthesized frames (see FrameInterpolator)
+    private int interpolation = FrameInterpolator.MODE_OFF;
+    // The first image is the previous segment's last frame: decoded only to interpolate towards
+    // this segment's first frame, not encoded
+    private boolean leadIn = false;
+
+    public void setInterpolation(int interpolation, boolean leadIn) {
+        this.interpolation = interpolation;
+        this.leadIn = leadIn && interpolation != FrameInterpolator.MODE_OFF;
+    }
+
+    // Original session time of each image of the next compile, when it differs from the output
+    // timestamp (frames after a trimmed or dropped stretch are moved earlier). Overlays and
+    // frame statistics follow the capture, not the output timeline. Null when they match.
+    private long[] captureTimesUs;
+
+    public void setCaptureTimes(long[] captureTimesUs) {
+        this.captureTimesUs = captureTimesUs;
+    }
+
+    // Move moov ahead of the media data while copying to the gallery (see FastStart); it
+    // rides along with the copy, so it costs no extra pass over the file
+    private boolean fastStart = true;
+
+    public void setFastStart(boolean fastStart) {
+        this.fastStart = fastStart;
+    }
+
+    public void setFrameRate(int frameRate) {
+        this.frameRate = frameRate;
+    }
+
+    // Output timestamp of a frame captured captureOffsetUs after the session started:
+    // capture time divided by the speed factor (captureInterval / frameDuration).
+    // Constant frame rate snaps to the output frame grid, so a late capture lands in the
+    // slot it belongs to instead of shifting every later frame.
+    static long getPresentationTimeUs(long captureOffsetUs, long captureIntervalUs, int frameRate, boolean variableFrameRate) {
+        long frameDurationUs = 1000000L / frameRate;
+        long ptsUs = Math.round((double) captureOffsetUs * frameDurationUs / Math.max(1, captureIntervalUs));
+        if (variableFrameRate) {
+            return ptsUs;
+        }
+        return (ptsUs + frameDurationUs / 2) / frameDurationUs * frameDurationUs;
+    }
 
     // Overloaded method for segment compilation (does NOT save to gallery)
     public String compileImagesToVideo(Context context, List<String> imagePaths, String outputDir, int segmentNumber) throws Exception {
+        return compileImagesToVideo(context, imagePaths, null, outputDir, segmentNumber, Collections.singletonList(Rendition.MASTER))[0];
+    }
+
+    // Segment compilation into several renditions from one decode pass.
+    // presentationTimesUs holds each frame's output timestamp (see getPresentationTimeUs), or null
+    // for a fixed frame step; the segment starts at the first frame's timestamp.
+    // Returns one segment path per rendition, in the same order; null for a rendition
+    // that would not be smaller than the master.
+    public String[] compileImagesToVideo(Context context, List<String> imagePaths, long[] presentationTimesUs, String outputDir,
+                                         int segmentNumber, List<Rendition> renditions) throws Exception {
         if (imagePaths.isEmpty()) {
             throw new IllegalArgumentException("No images to compile");
         }
 
-        // Create segment file path
-        String segmentPath = outputDir + "/timelapse_segment_" + segmentNumber + ".mp4";
-        compileImagesToVideoFile(imagePaths, segmentPath);
-        Log.d(TAG, "Segment " + segmentNumber + " saved: " + segmentPath);
-        return segmentPath;
+        // Create segment file paths
+        String[] segmentPaths = new String[renditions.size()];
+        for (int r = 0; r < renditions.size(); r++) {
+            segmentPaths[r] = getSegmentPath(outputDir, segmentNumber, renditions.get(r));
+        }
+        compileImagesToVideoFile(context, imagePaths, presentationTimesUs, segmentPaths, renditions);
+        Log.d(TAG, "Segment " + segmentNumber + " saved in " + renditions.size() + " rendition(s)");
+        return segmentPaths;
+    }
+
+    static String getSegmentPath(String outputDir, int segmentNumber, Rendition rendition) {
+        return outputDir + "/timelapse_segment_" + segmentNumber + rendition.fileSuffix + ".mp4";
     }
 
     // Original method for final video compilation (saves to gallery)
@@ -56,12 +186,13 @@ public class VideoCompiler {
 
         // Create temporary video file first
         String tempOutputPath = outputDir + "/timelapse_temp.mp4";
-        compileImagesToVideoFile(imagePaths, tempOutputPath);
+        compileImagesToVideoFile(context, imagePaths, null, new String[]{tempOutputPath},
+                Collections.singletonList(Rendition.MASTER));
 
         Log.d(TAG, "Video compilation completed, saving to gallery...");
 
         // Copy video to public gallery and get the final path
-        String finalPath = saveVideoToGallery(context, tempOutputPath);
+        String finalPath = saveVideoToGallery(context, tempOutputPath, "");
 
         // Delete temporary file
         File tempFile = new File(tempOutputPath);
@@ -74,8 +205,12 @@ public class VideoCompiler {
         return finalPath;
     }
 
-    // Core compilation method used by both segment and final compilation
-    private void compileImagesToVideoFile(List<String> imagePaths, String outputPath) throws Exception {
+    // Core compilation method used by both segment and final compilation.
+    // Each frame is decoded, oriented and converted to YUV once at full size; smaller
+    // renditions are box-scaled from that YUV frame rather than decoded again.
+    private void compileImagesToVideoFile(Context context, List<String> imagePaths, long[] presentationTimesUs,
+                                          String[] outputPaths, List<Rendition> renditions) throws Exception {
+        EncoderCapabilities capabilities = EncoderCapabilities.get(context);
 
         // Read EXIF orientation from first image
         ExifInterface exif = new ExifInterface(imagePaths.get(0));
@@ -85,138 +220,471 @@ public class VideoCompiler {
         BitmapFactory.Options options = new BitmapFactory.Options();
         options.inJustDecodeBounds = true;
         BitmapFactory.decodeFile(imagePaths.get(0), options);
-        int width = options.outWidth;
-        int height = options.outHeight;
-
-        // Swap dimensions if image is rotated 90 or 270 degrees
-        if (orientation == ExifInterface.ORIENTATION_ROTATE_90 || orientation == ExifInterface.ORIENTATION_ROTATE_270) {
-            int temp = width;
-            width = height;
-            height = temp;
+        int sensorWidth = options.outWidth;
+        int sensorHeight = options.outHeight;
+        int width = sensorWidth;
+        int height = sensorHeight;
+
+        // Pure rotations are not applied to the pixels. Frames are encoded in sensor
+        // orientation and the rotation is recorded in the container instead, unless
+        // upright pixels were requested, in which case the YUV planes are rotated.
+        // Flips can't be expressed as a container hint and still go through a bitmap transform.
+        int rotationDegrees = getRotationDegrees(orientation);
+        int bitmapOrientation = rotationDegrees == 0 ? orientation : ExifInterface.ORIENTATION_NORMAL;
+
+        // Reframed segments encode only the crop; flipped frames are left full-frame
+        Reframe frameReframe = bitmapOrientation == ExifInterface.ORIENTATION_NORMAL ? reframe : null;
+        if (frameReframe != null) {
+            int[] size = frameReframe.getOutputSize(sensorWidth, sensorHeight, rotationDegrees);
+            width = size[0];
+            height = size[1];
+            Log.d(TAG, "Reframe " + frameReframe.name + ": " + width + "x" + height + " of " + sensorWidth + "x" + sensorHeight);
         }
 
-        // Ensure dimensions are even (required for most codecs)
-        width = (width / 2) * 2;
-        height = (height / 2) * 2;
-
-        Log.d(TAG, "Video dimensions: " + width + "x" + height);
-        Log.d(TAG, "EXIF orientation: " + orientation);
+        // Fit the encoder's size limits and alignment (some need multiples of 16, not just even);
+        // frames are scaled to the result while decoding
+        boolean swap = uprightPixels && (rotationDegrees == 90 || rotationDegrees == 270);
+        int[][] renditionSizes = capabilities.getRenditionSizes(swap ? height : width, swap ? width : height,
+                renditions, frameRate);
+        int encodeWidth = renditionSizes[0][0];
+        int encodeHeight = renditionSizes[0][1];
+        width = swap ? encodeHeight : encodeWidth;
+        height = swap ? encodeWidth : encodeHeight;
+
+        Log.d(TAG, "Video dimensions: " + encodeWidth + "x" + encodeHeight);
+        Log.d(TAG, "EXIF orientation: " + orientation + " (rotation " + rotationDegrees + ", " + (uprightPixels ? "YUV rotate" : "container hint") + ")");
         Log.d(TAG, "Frame count: " + imagePaths.size());
 
-        MediaCodec encoder = null;
-        MediaMuxer muxer = null;
+        SegmentEncoder[] encoders = new SegmentEncoder[renditions.size()];
+        byte[][] scaledFrames = new byte[renditions.size()][];
+        FrameStats.Accumulator stats = new FrameStats.Accumulator();
+        // A moving crop would be read as camera motion, so pan/zoom and stabilization don't mix
+        StabilizedFrame stabilizedFrame = stabilizer != null && (frameReframe == null || !frameReframe.isAnimated())
+                ? new StabilizedFrame(stabilizer, width, height)
+                : null;
+        // Drawn on the master before renditions are scaled from it, in the orientation being encoded
+        OverlayCompositor compositor = overlay != null
+                ? new OverlayCompositor(context, overlay, frameRate, encodeWidth, encodeHeight, uprightPixels ? 0 : rotationDegrees)
+                : null;
+        DataOutputStream statsOut = null;
+        float sharpnessSum = 0;
+        float minSharpness = Float.MAX_VALUE;
+        int statsCount = 0;
+        FrameInterpolator interpolator = interpolation != FrameInterpolator.MODE_OFF && presentationTimesUs != null
+                ? new FrameInterpolator(interpolation)
+                : null;
+        byte[] previousFrame = null; // Last real frame before overlays, for interpolation
+        byte[] interpolatedFrame = null;
+        long previousTimeUs = 0;
+        long previousCaptureUs = 0;
 
         try {
-            // Setup encoder with YUV420 Semi-Planar format (NV21/NV12 compatible)
-            MediaFormat format = MediaFormat.createVideoFormat(MIME_TYPE, width, height);
-            format.setInteger(MediaFormat.KEY_COLOR_FORMAT, MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420SemiPlanar);
-            format.setInteger(MediaFormat.KEY_BIT_RATE, width * height * 8); // Increased bitrate for better quality
-            format.setInteger(MediaFormat.KEY_FRAME_RATE, FRAME_RATE);
-            format.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, I_FRAME_INTERVAL);
+            if (frameStatsFile != null) {
+                statsOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(frameStatsFile)));
+            }
+            for (int r = 0; r < renditions.size(); r++) {
+                int[] size = renditionSizes[r];
+                if (size == null) {
+                    // Source is already no larger than this rendition; the master covers it
+                    outputPaths[r] = null;
+                    continue;
+                }
+                encoders[r] = new SegmentEncoder(outputPaths[r], size[0], size[1], frameRate, iFrameInterval,
+                        uprightPixels ? 0 : rotationDegrees, capabilities);
+                if (size[0] != encodeWidth || size[1] != encodeHeight) {
+                    scaledFrames[r] = new byte[size[0] * size[1] * 3 / 2];
+                }
+                Log.d(TAG, "Rendition " + renditions.get(r).name + ": " + size[0] + "x" + size[1]);
+            }
 
-            encoder = MediaCodec.createEncoderByType(MIME_TYPE);
-            encoder.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
-            encoder.start();
+            long frameDurationUs = 1000000L / frameRate;
+            long segmentStartUs = presentationTimesUs != null
+                    ? FrameInterpolator.getSegmentStartUs(presentationTimesUs, leadIn, frameRate)
+                    : 0;
 
-            // Setup muxer with output file
-            muxer = new MediaMuxer(outputPath, MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
+            byte[] rotatedFrame = null; // Upright-pixels output, reused for every frame
+            for (int i = 0; i < imagePaths.size(); i++) {
+                long frameTimeUs = presentationTimesUs != null
+                        ? presentationTimesUs[i] - segmentStartUs
+                        : i * frameDurationUs;
+                boolean leadInFrame = leadIn && i == 0;
+
+                // Load and convert bitmap to YUV420 in sensor orientation
+                long sessionTimeUs = presentationTimesUs != null ? presentationTimesUs[i] : frameTimeUs;
+                long captureUs = captureTimesUs != null ? captureTimesUs[i] : sessionTimeUs;
+                Rect region = frameReframe != null
+                        ? frameReframe.getRegion(sessionTimeUs, sensorWidth, sensorHeight, rotationDegrees)
+                        : null;
+                Bitmap bitmap = loadScaledBitmap(imagePaths.get(i), region, width, height, bitmapOrientation,
+                        stabilizedFrame, leadInFrame);
+                if (bitmap != null) {
+                    stats.reset();
+                    byte[] yuvData = convertBitmapToYUV420(bitmap, width, height, stats);
+                    if (stabilizedFrame == null) {
+                        bitmap.recycle(); // The stabilized target is drawn again for the next frame
+                    }
 
-            int trackIndex = -1;
-            boolean muxerStarted = false;
-            long frameTimeUs = 0;
-            long frameDurationUs = 1000000L / FRAME_RATE;
+                    // The lead-in frame's statistics belong to the previous segment
+                    if (!leadInFrame) {
+                        FrameStats frameStats = stats.toStats(captureUs);
+                        if (statsOut != null) {
+                            frameStats.writeTo(statsOut);
+                        }
+                        sharpnessSum += frameStats.sharpness;
+                        minSharpness = Math.min(minSharpness, frameStats.sharpness);
+                        statsCount++;
+                    }
 
-            MediaCodec.BufferInfo bufferInfo = new MediaCodec.BufferInfo();
+                    if (uprightPixels && rotationDegrees != 0) {
+                        if (rotatedFrame == null) {
+                            rotatedFrame = new byte[yuvData.length];
+                        }
+                        rotateYUV420SP(yuvData, rotatedFrame, width, height, rotationDegrees);
+                        yuvData = rotatedFrame;
+                    }
 
-            for (int i = 0; i < imagePaths.size(); i++) {
-                // Load and convert bitmap to YUV420 with proper rotation
-                Bitmap bitmap = loadScaledBitmap(imagePaths.get(i), width, height, orientation);
-                if (bitmap != null) {
-                    byte[] yuvData = convertBitmapToYUV420(bitmap, width, height);
-                    bitmap.recycle();
+                    if (interpolator != null) {
+                        // Fill the output slots since the previous frame, before overlays are
+                        // drawn so they are composed sharp on each synthesized frame
+                        if (previousFrame != null) {
+                            int count = FrameInterpolator.getInBetweenCount(previousTimeUs, sessionTimeUs, frameRate);
+                            if (count > 0) {
+                                if (interpolatedFrame == null) {
+                                    interpolatedFrame = new byte[yuvData.length];
+                                }
+                                interpolator.setPair(previousFrame, yuvData, encodeWidth, encodeHeight);
+                            }
+                            for (int k = 1; k <= count; k++) {
+                                long inBetweenUs = FrameInterpolator.getInBetweenTimeUs(previousTimeUs, sessionTimeUs, k, count);
+                                interpolator.interpolate((float) k / (count + 1), interpolatedFrame);
+                                if (compositor != null) {
+                                    compositor.compose(interpolatedFrame,
+                                            FrameInterpolator.getInBetweenTimeUs(previousCaptureUs, captureUs, k, count));
+                                }
+                                encodeRenditions(encoders, scaledFrames, interpolatedFrame, encodeWidth, encodeHeight,
+                                        inBetweenUs - segmentStartUs);
+                            }
+                        }
+                        if (previousFrame == null) {
+                            previousFrame = new byte[yuvData.length];
+                        }
+                        System.arraycopy(yuvData, 0, previousFrame, 0, yuvData.length);
+                        previousTimeUs = sessionTimeUs;
+                        previousCaptureUs = captureUs;
+                    }
+                    if (leadInFrame) {
+                        continue;
+                    }
 
-                    // Queue input frame
-                    int inputBufferIndex = encoder.dequeueInputBuffer(TIMEOUT_US);
-                    if (inputBufferIndex >= 0) {
-                        ByteBuffer inputBuffer = encoder.getInputBuffer(inputBufferIndex);
-                        inputBuffer.clear();
-                        inputBuffer.put(yuvData);
-                        encoder.queueInputBuffer(inputBufferIndex, 0, yuvData.length, frameTimeUs, 0);
+                    if (compositor != null) {
+                        compositor.compose(yuvData, captureUs);
                     }
+                    encodeRenditions(encoders, scaledFrames, yuvData, encodeWidth, encodeHeight, frameTimeUs);
+                    Tracer.d(Tracer.FRAME_ENCODED, i, frameTimeUs);
+                } else {
+                    Tracer.trace(Tracer.WARN, Tracer.FRAME_DECODE_FAILED, i, 0);
                 }
+            }
 
-                // Signal end of stream for last frame
-                if (i == imagePaths.size() - 1) {
-                    int inputBufferIndex = encoder.dequeueInputBuffer(TIMEOUT_US);
-                    if (inputBufferIndex >= 0) {
-                        encoder.queueInputBuffer(inputBufferIndex, 0, 0, frameTimeUs, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
-                    }
+            for (SegmentEncoder encoder : encoders) {
+                if (encoder != null) {
+                    encoder.finish();
                 }
+            }
+            if (statsCount > 0) {
+                Log.d(TAG, "Frame stats: mean sharpness " + (sharpnessSum / statsCount) + ", min " + minSharpness);
+            }
+        } finally {
+            if (statsOut != null) {
+                try {
+                    statsOut.close();
+                } catch (IOException e) {
+                    Log.e(TAG, "Error closing frame stats", e);
+                }
+            }
+            for (SegmentEncoder encoder : encoders) {
+                if (encoder != null) {
+                    encoder.release();
+                }
+            }
+            if (stabilizedFrame != null) {
+                stabilizedFrame.target.recycle();
+            }
+        }
+    }
 
-                // Process output
-                boolean outputDone = false;
-                while (!outputDone) {
-                    int outputBufferIndex = encoder.dequeueOutputBuffer(bufferInfo, TIMEOUT_US);
+    // Decoders for imported sequences: one per core, up to 8 (JPEG decode doesn't scale further
+    // before storage and memory bandwidth run out)
+    static int getDecodeWorkerCount() {
+        return Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(), 8));
+    }
 
-                    if (outputBufferIndex == MediaCodec.INFO_TRY_AGAIN_LATER) {
-                        break;
-                    } else if (outputBufferIndex == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
-                        if (muxerStarted) {
-                            throw new RuntimeException("Format changed twice");
-                        }
-                        MediaFormat newFormat = encoder.getOutputFormat();
-                        trackIndex = muxer.addTrack(newFormat);
-                        muxer.start();
-                        muxerStarted = true;
-                    } else if (outputBufferIndex >= 0) {
-                        ByteBuffer encodedData = encoder.getOutputBuffer(outputBufferIndex);
-
-                        if ((bufferInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
-                            bufferInfo.size = 0;
-                        }
+    // EXIF orientations 5-8 swap width and height
+    static boolean isTransposed(int orientation) {
+        return orientation >= ExifInterface.ORIENTATION_TRANSPOSE && orientation <= ExifInterface.ORIENTATION_ROTATE_270;
+    }
 
-                        if (bufferInfo.size != 0 && muxerStarted) {
-                            encodedData.position(bufferInfo.offset);
-                            encodedData.limit(bufferInfo.offset + bufferInfo.size);
-                            muxer.writeSampleData(trackIndex, encodedData, bufferInfo);
-                        }
+    // Per-thread decode state for compileSequence, reused for every frame the thread decodes
+    private static final class SequenceDecoder {
+        final BitmapFactory.Options options = new BitmapFactory.Options();
+        final Matrix matrix = new Matrix();
+        final RectF bounds = new RectF();
+        final Paint paint = new Paint(Paint.FILTER_BITMAP_FLAG);
+        final FrameStats.Accumulator stats = new FrameStats.Accumulator();
+        final Bitmap target;
+        final Canvas canvas;
+        final int[] argb;
+        Bitmap reusable; // Decode target for the next frame of the same (or smaller) size
+
+        SequenceDecoder(int width, int height) {
+            target = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+            canvas = new Canvas(target);
+            argb = new int[width * height];
+        }
 
-                        encoder.releaseOutputBuffer(outputBufferIndex, false);
+        void release() {
+            target.recycle();
+            if (reusable != null) {
+                reusable.recycle();
+            }
+        }
+    }
 
-                        if ((bufferInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
-                            outputDone = true;
+    // Encodes an imported image sequence (already in order) to outputPath at the given size.
+    // Frames are decoded in parallel, each oriented from its own EXIF tag and center-cropped to
+    // fill the output, and encoded in order. Decodes run at most two per worker ahead of the
+    // encoder and write into a fixed pool of NV12 buffers, so memory stays flat however long
+    // the sequence is. Frames that fail to decode are skipped.
+    public void compileSequence(Context context, List<SequenceImporter.Frame> frames, int width, int height,
+                                String outputPath, SequenceImporter.ProgressListener listener) throws Exception {
+        EncoderCapabilities capabilities = EncoderCapabilities.get(context);
+        int[] encodeSize = capabilities.getEncodeSize(width, height, frameRate);
+        final int encodeWidth = encodeSize[0];
+        final int encodeHeight = encodeSize[1];
+        final ContentResolver resolver = context.getContentResolver();
+
+        // Each worker holds a subsampled decode (at most ~4x the output) plus the output bitmap
+        // and pixel array; fewer workers if that doesn't fit the heap
+        long perWorkerBytes = (long) encodeWidth * encodeHeight * 4 * 6;
+        int workers = (int) Math.max(1, Math.min(getDecodeWorkerCount(),
+                Runtime.getRuntime().maxMemory() / 2 / perWorkerBytes));
+        int lookahead = workers * 2;
+        Log.d(TAG, "Sequence of " + frames.size() + " frames at " + encodeWidth + "x" + encodeHeight + ", " + workers + " decoders");
+
+        final BlockingQueue<byte[]> buffers = new ArrayBlockingQueue<>(lookahead);
+        for (int i = 0; i < lookahead; i++) {
+            buffers.add(new byte[encodeWidth * encodeHeight * 3 / 2]);
+        }
+        final ThreadLocal<SequenceDecoder> decoders = new ThreadLocal<>();
+        final List<SequenceDecoder> allDecoders = Collections.synchronizedList(new ArrayList<SequenceDecoder>());
+        ExecutorService pool = Executors.newFixedThreadPool(workers);
+        Deque<Future<byte[]>> pending = new ArrayDeque<>();
+        SegmentEncoder encoder = null;
+
+        try {
+            encoder = new SegmentEncoder(outputPath, encodeWidth, encodeHeight, frameRate, iFrameInterval, 0, capabilities);
+            long frameDurationUs = 1000000L / frameRate;
+            int submitted = 0;
+            int done = 0;
+            int encoded = 0;
+
+            while (done < frames.size()) {
+                while (submitted < frames.size() && pending.size() < lookahead) {
+                    final SequenceImporter.Frame frame = frames.get(submitted++);
+                    pending.add(pool.submit(() -> {
+                        SequenceDecoder decoder = decoders.get();
+                        if (decoder == null) {
+                            decoder = new SequenceDecoder(encodeWidth, encodeHeight);
+                            decoders.set(decoder);
+                            allDecoders.add(decoder);
                         }
-                    }
+                        byte[] yuv = buffers.take();
+                        if (decodeSequenceFrame(resolver, frame, decoder, yuv, encodeWidth, encodeHeight)) {
+                            return yuv;
+                        }
+                        buffers.add(yuv);
+                        return null;
+                    }));
                 }
 
-                frameTimeUs += frameDurationUs;
-                Log.d(TAG, "Processed frame " + (i + 1) + "/" + imagePaths.size());
+                byte[] yuv = pending.poll().get();
+                if (yuv != null) {
+                    encoder.encodeFrame(yuv, encoded * frameDurationUs);
+                    buffers.add(yuv);
+                    Tracer.d(Tracer.FRAME_ENCODED, done, encoded * frameDurationUs);
+                    encoded++;
+                } else {
+                    Tracer.trace(Tracer.WARN, Tracer.FRAME_DECODE_FAILED, done, 0);
+                }
+                done++;
+                if (listener != null && (done % 25 == 0 || done == frames.size())) {
+                    listener.onImportProgress(done, frames.size());
+                }
             }
 
+            if (encoded == 0) {
+                throw new Exception("None of the images could be decoded");
+            }
+            encoder.finish();
+            Log.d(TAG, "Sequence encoded: " + encoded + " of " + frames.size() + " frames");
         } finally {
+            for (Future<byte[]> future : pending) {
+                future.cancel(true);
+            }
+            pool.shutdownNow();
+            pool.awaitTermination(10, TimeUnit.SECONDS);
+            for (SequenceDecoder decoder : allDecoders) {
+                decoder.release();
+            }
             if (encoder != null) {
-                encoder.stop();
                 encoder.release();
             }
-            if (muxer != null) {
-                muxer.stop();
-                muxer.release();
+        }
+    }
+
+    // Decodes one imported image into yuv (NV12, width x height), returning false if it can't be read
+    private boolean decodeSequenceFrame(ContentResolver resolver, SequenceImporter.Frame frame, SequenceDecoder decoder,
+                                        byte[] yuv, int width, int height) {
+        try {
+            BitmapFactory.Options options = decoder.options;
+            options.inJustDecodeBounds = true;
+            options.inSampleSize = 1;
+            options.inBitmap = null;
+            try (InputStream in = resolver.openInputStream(frame.uri)) {
+                BitmapFactory.decodeStream(in, null, options);
+            }
+            if (options.outWidth <= 0 || options.outHeight <= 0) {
+                Log.w(TAG, "Cannot read image " + frame.name);
+                return false;
+            }
+
+            // Sample against the target in stored orientation, so a portrait frame in a
+            // landscape sequence isn't decoded larger than it needs to be
+            boolean transposed = isTransposed(frame.orientation);
+            options.inSampleSize = calculateInSampleSize(options, transposed ? height : width, transposed ? width : height);
+            options.inJustDecodeBounds = false;
+            options.inMutable = true;
+            options.inBitmap = decoder.reusable;
+            Bitmap bitmap;
+            try {
+                bitmap = decodeStream(resolver, frame, options);
+            } catch (IllegalArgumentException e) {
+                // Larger than the reusable bitmap (mixed resolutions): decode into a new one
+                options.inBitmap = null;
+                bitmap = decodeStream(resolver, frame, options);
+            }
+            options.inBitmap = null;
+            if (bitmap == null) {
+                Log.w(TAG, "Cannot decode image " + frame.name);
+                return false;
+            }
+            if (decoder.reusable != null && decoder.reusable != bitmap) {
+                decoder.reusable.recycle();
+            }
+            decoder.reusable = bitmap;
+
+            // EXIF orientation, then scale to cover the output and center the crop
+            Matrix matrix = decoder.matrix;
+            setOrientationMatrix(matrix, frame.orientation);
+            decoder.bounds.set(0, 0, bitmap.getWidth(), bitmap.getHeight());
+            matrix.mapRect(decoder.bounds);
+            matrix.postTranslate(-decoder.bounds.left, -decoder.bounds.top);
+            float uprightWidth = decoder.bounds.width();
+            float uprightHeight = decoder.bounds.height();
+            float scale = Math.max(width / uprightWidth, height / uprightHeight);
+            matrix.postScale(scale, scale);
+            matrix.postTranslate((width - uprightWidth * scale) / 2f, (height - uprightHeight * scale) / 2f);
+            decoder.canvas.drawBitmap(bitmap, matrix, decoder.paint);
+
+            decoder.target.getPixels(decoder.argb, 0, width, 0, 0, width, height);
+            decoder.stats.reset();
+            encodeYUV420SP(yuv, decoder.argb, width, height, decoder.stats);
+            return true;
+        } catch (Exception e) {
+            Log.e(TAG, "Error decoding " + frame.name, e);
+            return false;
+        }
+    }
+
+    private static Bitmap decodeStream(ContentResolver resolver, SequenceImporter.Frame frame,
+                                       BitmapFactory.Options options) throws IOException {
+        try (InputStream in = resolver.openInputStream(frame.uri)) {
+            return BitmapFactory.decodeStream(in, null, options);
+        }
+    }
+
+    // Maps stored pixels to upright ones for any EXIF orientation, including the flips
+    static void setOrientationMatrix(Matrix matrix, int orientation) {
+        matrix.reset();
+        switch (orientation) {
+            case ExifInterface.ORIENTATION_FLIP_HORIZONTAL:
+                matrix.setScale(-1, 1);
+                break;
+            case ExifInterface.ORIENTATION_ROTATE_180:
+                matrix.setRotate(180);
+                break;
+            case ExifInterface.ORIENTATION_FLIP_VERTICAL:
+                matrix.setRotate(180);
+                matrix.postScale(-1, 1);
+                break;
+            case ExifInterface.ORIENTATION_TRANSPOSE:
+                matrix.setRotate(90);
+                matrix.postScale(-1, 1);
+                break;
+            case ExifInterface.ORIENTATION_ROTATE_90:
+                matrix.setRotate(90);
+                break;
+            case ExifInterface.ORIENTATION_TRANSVERSE:
+                matrix.setRotate(-90);
+                matrix.postScale(-1, 1);
+                break;
+            case ExifInterface.ORIENTATION_ROTATE_270:
+                matrix.setRotate(-90);
+                break;
+            default:
+                break;
+        }
+    }
+
+    // The master gets the frame as is, smaller renditions a box-scaled copy
+    private static void encodeRenditions(SegmentEncoder[] encoders, byte[][] scaledFrames, byte[] frame,
+                                         int width, int height, long frameTimeUs) {
+        for (int r = 0; r < encoders.length; r++) {
+            if (encoders[r] == null) {
+                continue;
+            } else if (scaledFrames[r] == null) {
+                encoders[r].encodeFrame(frame, frameTimeUs);
+            } else {
+                scaleYUV420SP(frame, width, height, scaledFrames[r], encoders[r].getWidth(), encoders[r].getHeight());
+                encoders[r].encodeFrame(scaledFrames[r], frameTimeUs);
             }
         }
     }
 
     // Public method to save an existing video file to gallery
     public String saveToGallery(Context context, String videoPath) throws Exception {
-        return saveVideoToGallery(context, videoPath);
+        return saveVideoToGallery(context, videoPath, "");
+    }
+
+    // Save with a suffix on the gallery file name (e.g. "_720p" for a share rendition)
+    public String saveToGallery(Context context, String videoPath, String nameSuffix) throws Exception {
+        return saveVideoToGallery(context, videoPath, nameSuffix);
     }
 
     // Merge multiple video segments into one final video
     public String mergeVideoSegments(Context context, List<String> segmentPaths, String outputDir) throws Exception {
+        return mergeVideoSegments(context, segmentPaths, null, outputDir, "");
+    }
+
+    // segmentStartsUs holds each segment's first output timestamp, so gaps between segments
+    // (late captures at a boundary) survive the merge; null appends segments back to back
+    public String mergeVideoSegments(Context context, List<String> segmentPaths, long[] segmentStartsUs, String outputDir,
+                                     String nameSuffix) throws Exception {
         if (segmentPaths.isEmpty()) {
             throw new IllegalArgumentException("No segments to merge");
         }
 
-        String mergedOutputPath = outputDir + "/timelapse_merged.mp4";
+        String mergedOutputPath = outputDir + "/timelapse_merged" + nameSuffix + ".mp4";
         MediaMuxer muxer = null;
 
         try {
@@ -241,21 +709,35 @@ public class VideoCompiler {
                 throw new Exception("No video track found in segments");
             }
 
+            // Carry the segments' orientation hint over to the merged file
+            int rotationDegrees = readRotationDegrees(segmentPaths.get(0));
+
             // Create muxer
             muxer = new MediaMuxer(mergedOutputPath, MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
+            if (rotationDegrees != 0) {
+                muxer.setOrientationHint(rotationDegrees);
+            }
             int muxerTrackIndex = muxer.addTrack(format);
             muxer.start();
 
             // Merge all segments
             ByteBuffer buffer = ByteBuffer.allocate(1024 * 1024); // 1MB buffer
             MediaCodec.BufferInfo bufferInfo = new MediaCodec.BufferInfo();
-            long presentationTimeUs = 0;
-
-            for (String segmentPath : segmentPaths) {
-                Log.d(TAG, "Merging segment: " + segmentPath);
+            long frameDurationUs = 1000000L / frameRate;
+            long segmentOffsetUs = 0;
+            long lastPresentationUs = -1;
+
+            for (int s = 0; s < segmentPaths.size(); s++) {
+                String segmentPath = segmentPaths.get(s);
+                if (segmentStartsUs != null) {
+                    segmentOffsetUs = segmentStartsUs[s] - segmentStartsUs[0];
+                } else if (lastPresentationUs >= 0) {
+                    segmentOffsetUs = lastPresentationUs + frameDurationUs;
+                }
                 extractor = new MediaExtractor();
                 extractor.setDataSource(segmentPath);
                 extractor.selectTrack(0); // Video track
+                int samples = 0;
 
                 while (true) {
                     buffer.clear();
@@ -267,15 +749,19 @@ public class VideoCompiler {
                     bufferInfo.offset = 0;
                     bufferInfo.size = sampleSize;
                     bufferInfo.flags = extractor.getSampleFlags();
+                    // Segment timestamps are kept; the muxer needs them strictly increasing
+                    long presentationTimeUs = Math.max(segmentOffsetUs + extractor.getSampleTime(), lastPresentationUs + 1);
                     bufferInfo.presentationTimeUs = presentationTimeUs;
+                    lastPresentationUs = presentationTimeUs;
 
                     muxer.writeSampleData(muxerTrackIndex, buffer, bufferInfo);
+                    samples++;
 
-                    presentationTimeUs += 1000000L / FRAME_RATE; // Increment by frame duration
                     extractor.advance();
                 }
 
                 extractor.release();
+                Tracer.d(Tracer.SEGMENT_MERGED, s, samples);
             }
 
         } finally {
@@ -288,7 +774,7 @@ public class VideoCompiler {
         Log.d(TAG, "Segments merged, saving to gallery...");
 
         // Save merged video to gallery
-        String finalPath = saveVideoToGallery(context, mergedOutputPath);
+        String finalPath = saveVideoToGallery(context, mergedOutputPath, nameSuffix);
 
         // Delete merged temp file
         File mergedFile = new File(mergedOutputPath);
@@ -300,14 +786,14 @@ public class VideoCompiler {
         return finalPath;
     }
 
-    private String saveVideoToGallery(Context context, String tempVideoPath) throws Exception {
+    private String saveVideoToGallery(Context context, String tempVideoPath, String nameSuffix) throws Exception {
         File tempFile = new File(tempVideoPath);
         if (!tempFile.exists()) {
             throw new Exception("Temporary video file not found");
         }
 
         String timeStamp = new SimpleDateFormat("yyyyMMdd_HHmmss", Locale.getDefault()).format(new Date());
-        String displayName = "Timelapse_" + timeStamp + ".mp4";
+        String displayName = "Timelapse_" + timeStamp + nameSuffix + ".mp4";
 
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
             // Android 10+ - Use MediaStore
@@ -326,13 +812,9 @@ public class VideoCompiler {
             }
 
             // Copy file to MediaStore
-            try (OutputStream out = resolver.openOutputStream(videoUri);
-                 java.io.FileInputStream in = new java.io.FileInputStream(tempFile)) {
-                byte[] buffer = new byte[8192];
-                int bytesRead;
-                while ((bytesRead = in.read(buffer)) != -1) {
-                    out.write(buffer, 0, bytesRead);
-                }
+            try (ParcelFileDescriptor descriptor = resolver.openFileDescriptor(videoUri, "w");
+                 FileOutputStream out = new FileOutputStream(descriptor.getFileDescriptor())) {
+                copyVideo(tempFile, out.getChannel());
             }
 
             // Mark as complete
@@ -350,16 +832,15 @@ public class VideoCompiler {
                 dcimDir.mkdirs();
             }
 
+            // Sessions finishing back to back can save in the same second
             File outputFile = new File(dcimDir, displayName);
+            for (int n = 2; outputFile.exists(); n++) {
+                outputFile = new File(dcimDir, "Timelapse_" + timeStamp + nameSuffix + "_" + n + ".mp4");
+            }
 
             // Copy file
-            try (FileOutputStream out = new FileOutputStream(outputFile);
-                 java.io.FileInputStream in = new java.io.FileInputStream(tempFile)) {
-                byte[] buffer = new byte[8192];
-                int bytesRead;
-                while ((bytesRead = in.read(buffer)) != -1) {
-                    out.write(buffer, 0, bytesRead);
-                }
+            try (FileOutputStream out = new FileOutputStream(outputFile)) {
+                copyVideo(tempFile, out.getChannel());
             }
 
             // Notify media scanner
@@ -373,19 +854,67 @@ public class VideoCompiler {
         }
     }
 
-    private Bitmap loadScaledBitmap(String imagePath, int targetWidth, int targetHeight, int orientation) {
+    // Kernel-side copy of the whole file, rewritten as faststart on the way if enabled
+    private void copyVideo(File source, FileChannel out) throws IOException {
+        try (FileInputStream in = new FileInputStream(source);
+             FileChannel channel = in.getChannel()) {
+            if (fastStart) {
+                FastStart.copy(channel, out);
+            } else {
+                FastStart.transfer(channel, 0, channel.size(), out);
+            }
+        }
+    }
+
+    // Target of the stabilizing draw, reused for every frame of a compile
+    private static final class StabilizedFrame {
+        final Stabilizer stabilizer;
+        final Matrix matrix = new Matrix();
+        final Paint paint = new Paint(Paint.FILTER_BITMAP_FLAG);
+        final Bitmap target;
+        final Canvas canvas;
+
+        StabilizedFrame(Stabilizer stabilizer, int width, int height) {
+            this.stabilizer = stabilizer;
+            target = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+            canvas = new Canvas(target);
+        }
+    }
+
+    // Decodes the whole image, or only the region given (in stored pixel coordinates). With
+    // stabilization the frame is drawn into stabilized.target, which is returned. A lead-in
+    // frame was stabilized as the previous segment's last frame and is corrected the same way.
+    private Bitmap loadScaledBitmap(String imagePath, Rect region, int targetWidth, int targetHeight, int orientation,
+                                    StabilizedFrame stabilized, boolean leadInFrame) {
         try {
             BitmapFactory.Options options = new BitmapFactory.Options();
-            options.inJustDecodeBounds = true;
-            BitmapFactory.decodeFile(imagePath, options);
+            Bitmap bitmap;
+            if (region != null) {
+                bitmap = decodeRegion(imagePath, region, targetWidth, targetHeight);
+            } else {
+                options.inJustDecodeBounds = true;
+                BitmapFactory.decodeFile(imagePath, options);
 
-            options.inSampleSize = calculateInSampleSize(options, targetWidth, targetHeight);
-            options.inJustDecodeBounds = false;
+                options.inSampleSize = calculateInSampleSize(options, targetWidth, targetHeight);
+                options.inJustDecodeBounds = false;
 
-            Bitmap bitmap = BitmapFactory.decodeFile(imagePath, options);
+                bitmap = BitmapFactory.decodeFile(imagePath, options);
+            }
             if (bitmap != null) {
                 // Apply EXIF rotation
                 bitmap = rotateImageIfRequired(bitmap, orientation);
+                if (stabilized != null) {
+                    // Fold the stabilizing shift/rotation/zoom into the scale to target size
+                    Matrix matrix = stabilized.matrix;
+                    matrix.setScale((float) targetWidth / bitmap.getWidth(), (float) targetHeight / bitmap.getHeight());
+                    matrix.postConcat(leadInFrame
+                            ? stabilized.stabilizer.repeat(bitmap, targetWidth, targetHeight)
+                            : stabilized.stabilizer.update(bitmap, targetWidth, targetHeight));
+                    stabilized.target.eraseColor(Color.TRANSPARENT); // Uncovered corners, as in a new bitmap
+                    stabilized.canvas.drawBitmap(bitmap, matrix, stabilized.paint);
+                    bitmap.recycle();
+                    return stabilized.target;
+                }
                 // Scale to target size
                 Bitmap scaled = Bitmap.createScaledBitmap(bitmap, targetWidth, targetHeight, true);
                 if (scaled != bitmap) {
@@ -399,6 +928,50 @@ public class VideoCompiler {
         return null;
     }
 
+    // Only the tiles covering the region are decoded, subsampled as far as the target size allows
+    private Bitmap decodeRegion(String imagePath, Rect region, int targetWidth, int targetHeight) throws IOException {
+        BitmapRegionDecoder decoder = BitmapRegionDecoder.newInstance(imagePath, false);
+        try {
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            options.outWidth = region.width();
+            options.outHeight = region.height();
+            options.inSampleSize = calculateInSampleSize(options, targetWidth, targetHeight);
+            return decoder.decodeRegion(region, options);
+        } finally {
+            decoder.recycle();
+        }
+    }
+
+    private int getRotationDegrees(int orientation) {
+        switch (orientation) {
+            case ExifInterface.ORIENTATION_ROTATE_90:
+                return 90;
+            case ExifInterface.ORIENTATION_ROTATE_180:
+                return 180;
+            case ExifInterface.ORIENTATION_ROTATE_270:
+                return 270;
+            default:
+                return 0;
+        }
+    }
+
+    private int readRotationDegrees(String videoPath) {
+        MediaMetadataRetriever retriever = new MediaMetadataRetriever();
+        try {
+            retriever.setDataSource(videoPath);
+            String rotation = retriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_VIDEO_ROTATION);
+            return rotation != null ? Integer.parseInt(rotation) : 0;
+        } catch (Exception e) {
+            Log.e(TAG, "Error reading rotation: " + videoPath, e);
+            return 0;
+        } finally {
+            try {
+                retriever.release();
+            } catch (Exception ignored) {
+            }
+        }
+    }
+
     private Bitmap rotateImageIfRequired(Bitmap bitmap, int orientation) {
         Matrix matrix = new Matrix();
 
@@ -451,18 +1024,24 @@ public class VideoCompiler {
         return inSampleSize;
     }
 
-    private byte[] convertBitmapToYUV420(Bitmap bitmap, int width, int height) {
+    private byte[] convertBitmapToYUV420(Bitmap bitmap, int width, int height, FrameStats.Accumulator stats) {
         int[] argb = new int[width * height];
         bitmap.getPixels(argb, 0, width, 0, 0, width, height);
 
         byte[] yuv = new byte[width * height * 3 / 2];
-        encodeYUV420SP(yuv, argb, width, height);
+        encodeYUV420SP(yuv, argb, width, height, stats);
 
         return yuv;
     }
 
-    private void encodeYUV420SP(byte[] yuv420sp, int[] argb, int width, int height) {
+    // Also fills stats (luma histogram, sum and gradient) from the Y values as they are written:
+    // the left neighbour is kept in a register and the upper one is the Y byte written one row
+    // earlier, which is still in cache, so the statistics cost no extra pass over the frame.
+    private void encodeYUV420SP(byte[] yuv420sp, int[] argb, int width, int height, FrameStats.Accumulator stats) {
         final int frameSize = width * height;
+        final int[] bins = stats.bins;
+        long lumaSum = 0;
+        long gradientSum = 0;
 
         int yIndex = 0;
         int uvIndex = frameSize;
@@ -470,6 +1049,7 @@ public class VideoCompiler {
         int a, R, G, B, Y, U, V;
         int index = 0;
         for (int j = 0; j < height; j++) {
+            int leftY = -1;
             for (int i = 0; i < width; i++) {
 
                 a = (argb[index] & 0xff000000) >> 24; // a is not used obviously
@@ -485,7 +1065,17 @@ public class VideoCompiler {
                 // NV12 has a plane of Y and interleaved planes of UV each sampled by a factor of 2
                 //    meaning for every 4 Y pixels there are 1 U and 1 V.  Note the sampling is every other
                 //    pixel AND every other scanline.
-                yuv420sp[yIndex++] = (byte) ((Y < 0) ? 0 : ((Y > 255) ? 255 : Y));
+                Y = (Y < 0) ? 0 : ((Y > 255) ? 255 : Y);
+                bins[Y]++;
+                lumaSum += Y;
+                if (leftY >= 0) {
+                    gradientSum += Math.abs(Y - leftY);
+                }
+                if (j > 0) {
+                    gradientSum += Math.abs(Y - (yuv420sp[yIndex - width] & 0xff));
+                }
+                leftY = Y;
+                yuv420sp[yIndex++] = (byte) Y;
                 if (j % 2 == 0 && index % 2 == 0) {
                     yuv420sp[uvIndex++] = (byte) ((U < 0) ? 0 : ((U > 255) ? 255 : U));
                     yuv420sp[uvIndex++] = (byte) ((V < 0) ? 0 : ((V > 255) ? 255 : V));
@@ -494,5 +1084,91 @@ public class VideoCompiler {
                 index++;
             }
         }
+
+        stats.lumaSum += lumaSum;
+        stats.gradientSum += gradientSum;
+        stats.pixelCount += frameSize;
+    }
+
+    // Rotate an NV12 frame clockwise by 90/180/270 degrees into dst (same size as src). Works on
+    // bytes and UV pairs, which is far cheaper than a full ARGB bitmap transform.
+    private static void rotateYUV420SP(byte[] src, byte[] dst, int width, int height, int degrees) {
+        int frameSize = width * height;
+        int outWidth = (degrees == 180) ? width : height;
+
+        for (int y = 0; y < height; y++) {
+            int row = y * width;
+            for (int x = 0; x < width; x++) {
+                int dx, dy;
+                if (degrees == 90) {
+                    dx = height - 1 - y;
+                    dy = x;
+                } else if (degrees == 180) {
+                    dx = width - 1 - x;
+                    dy = height - 1 - y;
+                } else {
+                    dx = y;
+                    dy = width - 1 - x;
+                }
+                dst[dy * outWidth + dx] = src[row + x];
+            }
+        }
+
+        int chromaWidth = width / 2;
+        int chromaHeight = height / 2;
+        int outChromaWidth = outWidth / 2;
+        for (int y = 0; y < chromaHeight; y++) {
+            int row = frameSize + y * width;
+            for (int x = 0; x < chromaWidth; x++) {
+                int dx, dy;
+                if (degrees == 90) {
+                    dx = chromaHeight - 1 - y;
+                    dy = x;
+                } else if (degrees == 180) {
+                    dx = chromaWidth - 1 - x;
+                    dy = chromaHeight - 1 - y;
+                } else {
+                    dx = y;
+                    dy = chromaWidth - 1 - x;
+                }
+                int out = frameSize + dy * outChromaWidth * 2 + dx * 2;
+                dst[out] = src[row + x * 2];
+                dst[out + 1] = src[row + x * 2 + 1];
+            }
+        }
+    }
+
+    // Box-filter downscale of an NV12 frame. Used to derive smaller renditions from the
+    // already converted full-size frame instead of scaling and converting the bitmap again.
+    static void scaleYUV420SP(byte[] src, int srcWidth, int srcHeight, byte[] dst, int dstWidth, int dstHeight) {
+        scalePlane(src, 0, srcWidth, srcHeight, 1, dst, 0, dstWidth, dstHeight);
+        scalePlane(src, srcWidth * srcHeight, srcWidth / 2, srcHeight / 2, 2,
+                dst, dstWidth * dstHeight, dstWidth / 2, dstHeight / 2);
+    }
+
+    private static void scalePlane(byte[] src, int srcOffset, int srcWidth, int srcHeight, int channels,
+                                   byte[] dst, int dstOffset, int dstWidth, int dstHeight) {
+        int srcStride = srcWidth * channels;
+        int out = dstOffset;
+        for (int dy = 0; dy < dstHeight; dy++) {
+            int y0 = dy * srcHeight / dstHeight;
+            int y1 = Math.max(y0 + 1, (dy + 1) * srcHeight / dstHeight);
+            for (int dx = 0; dx < dstWidth; dx++) {
+                int x0 = dx * srcWidth / dstWidth;
+                int x1 = Math.max(x0 + 1, (dx + 1) * srcWidth / dstWidth);
+                int area = (y1 - y0) * (x1 - x0);
+                for (int c = 0; c < channels; c++) {
+                    int sum = 0;
+                    for (int y = y0; y < y1; y++) {
+                        int index = srcOffset + y * srcStride + x0 * channels + c;
+                        for (int x = x0; x < x1; x++) {
+                            sum += src[index] & 0xff;
+                            index += channels;
+                        }
+                    }
+                    dst[out++] = (byte) (sum / area);
+                }
+            }
+        }
     }
 }
\ No newline at end of file
@@ -0,0 +1,299 @@
+package com.timelapse;
+
+import android.content.Context;
+import android.media.MediaCodec;
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+import android.media.MediaMetadataRetriever;
+import android.media.MediaMuxer;
+import android.net.Uri;
+import android.util.Log;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+// Re-exports a finished timelapse at a different speed, frame rate or length without
+// re-encoding: compressed samples are copied as-is, only their timestamps are rewritten,
+// and trimming drops whole GOPs. With all-intra segments every frame is its own GOP,
+// so cuts and frame-rate decimation become frame-accurate.
+public class VideoRetimer {
+
+    private static final String TAG = "VideoRetimer";
+
+    // Playback speed at a point of the source timeline; speed is interpolated linearly between points
+    public static class SpeedPoint {
+        public final long sourceTimeUs;
+        public final float speed;
+
+        public SpeedPoint(long sourceTimeUs, float speed) {
+            this.sourceTimeUs = sourceTimeUs;
+            this.speed = speed;
+        }
+    }
+
+    private final List<SpeedPoint> speedPoints = new ArrayList<>();
+    private final List<long[]> keepRanges = new ArrayList<>(); // Source time ranges [start, end), empty keeps everything
+    private int outputFrameRate = 0; // 0 keeps every frame
+
+    // Uniform speed change (2 = twice as fast)
+    public VideoRetimer setSpeed(float speed) {
+        speedPoints.clear();
+        speedPoints.add(new SpeedPoint(0, speed));
+        return this;
+    }
+
+    // Speed ramp keyframe; add several to ramp between them
+    public VideoRetimer addSpeedPoint(long sourceTimeUs, float speed) {
+        speedPoints.add(new SpeedPoint(sourceTimeUs, speed));
+        Collections.sort(speedPoints, (a, b) -> Long.compare(a.sourceTimeUs, b.sourceTimeUs));
+        return this;
+    }
+
+    // Keep only this part of the source; can be called several times
+    public VideoRetimer keepRange(long startUs, long endUs) {
+        keepRanges.add(new long[]{startUs, endUs});
+        return this;
+    }
+
+    // Snap output timestamps to this frame rate's grid; frames that land on an occupied
+    // slot are dropped when nothing references them (only true for sync frames)
+    public VideoRetimer setOutputFrameRate(int frameRate) {
+        outputFrameRate = frameRate;
+        return this;
+    }
+
+    // Retime sourcePath (a file path or content:// URI) into outputPath.
+    // Returns the number of frames written.
+    public int retime(Context context, String sourcePath, String outputPath) throws Exception {
+        MediaExtractor extractor = new MediaExtractor();
+        MediaMuxer muxer = null;
+        boolean muxerStarted = false;
+        int written = 0;
+
+        try {
+            setDataSource(context, extractor, sourcePath);
+            int trackIndex = -1;
+            MediaFormat format = null;
+            for (int i = 0; i < extractor.getTrackCount(); i++) {
+                MediaFormat fmt = extractor.getTrackFormat(i);
+                if (fmt.getString(MediaFormat.KEY_MIME).startsWith("video/")) {
+                    trackIndex = i;
+                    format = fmt;
+                    break;
+                }
+            }
+            if (format == null) {
+                throw new Exception("No video track found in " + sourcePath);
+            }
+            extractor.selectTrack(trackIndex);
+
+            // First pass reads only sample metadata to find the GOP boundaries and sizes
+            List<Long> syncTimes = new ArrayList<>();
+            List<Integer> gopSizes = new ArrayList<>();
+            long lastSampleTimeUs = 0;
+            long sourceFrameUs = Long.MAX_VALUE; // Shortest frame spacing in the source
+            long previousTimeUs = -1;
+            while (extractor.getSampleTime() >= 0) {
+                long timeUs = extractor.getSampleTime();
+                if ((extractor.getSampleFlags() & MediaExtractor.SAMPLE_FLAG_SYNC) != 0 || gopSizes.isEmpty()) {
+                    syncTimes.add(timeUs);
+                    gopSizes.add(0);
+                }
+                gopSizes.set(gopSizes.size() - 1, gopSizes.get(gopSizes.size() - 1) + 1);
+                if (previousTimeUs >= 0 && timeUs > previousTimeUs) {
+                    sourceFrameUs = Math.min(sourceFrameUs, timeUs - previousTimeUs);
+                }
+                previousTimeUs = timeUs;
+                lastSampleTimeUs = timeUs;
+                extractor.advance();
+            }
+            if (sourceFrameUs == Long.MAX_VALUE) {
+                sourceFrameUs = 1000000L / VideoCompiler.DEFAULT_FRAME_RATE;
+            }
+            extractor.seekTo(0, MediaExtractor.SEEK_TO_PREVIOUS_SYNC);
+
+            muxer = new MediaMuxer(outputPath, MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
+            int rotationDegrees = readRotationDegrees(context, sourcePath);
+            if (rotationDegrees != 0) {
+                muxer.setOrientationHint(rotationDegrees);
+            }
+            int muxerTrack = muxer.addTrack(format);
+            muxer.start();
+            muxerStarted = true;
+
+            int bufferSize = format.containsKey(MediaFormat.KEY_MAX_INPUT_SIZE)
+                    ? format.getInteger(MediaFormat.KEY_MAX_INPUT_SIZE) : 1024 * 1024;
+            ByteBuffer buffer = ByteBuffer.allocate(bufferSize);
+            MediaCodec.BufferInfo bufferInfo = new MediaCodec.BufferInfo();
+            long slotUs = outputFrameRate > 0 ? 1000000L / outputFrameRate : 0;
+
+            int gop = -1;
+            boolean keepGop = false;
+            long previousSourceUs = -1;
+            boolean skipped = false; // A GOP was trimmed since the last written frame
+            double outputTimeUs = 0;
+            long lastWrittenUs = -1;
+
+            while (extractor.getSampleTime() >= 0) {
+                long sourceUs = extractor.getSampleTime();
+                int flags = extractor.getSampleFlags();
+                boolean sync = (flags & MediaExtractor.SAMPLE_FLAG_SYNC) != 0;
+
+                if (sync || gop < 0) {
+                    gop++;
+                    long gopEndUs = gop + 1 < syncTimes.size() ? syncTimes.get(gop + 1) : lastSampleTimeUs + 1;
+                    keepGop = isKept(sourceUs, gopEndUs);
+                }
+                if (!keepGop) {
+                    skipped = true;
+                    extractor.advance();
+                    continue;
+                }
+
+                // Output time advances by the source delta scaled by the speed in effect; across a
+                // trimmed gap it advances by one frame so the cut doesn't leave a freeze
+                if (previousSourceUs >= 0) {
+                    long deltaUs = sourceUs - previousSourceUs;
+                    if (deltaUs <= 0 || skipped) {
+                        deltaUs = sourceFrameUs;
+                    }
+                    outputTimeUs += deltaUs / speedAt(previousSourceUs + deltaUs / 2);
+                }
+                previousSourceUs = sourceUs;
+                skipped = false;
+
+                long ptsUs = Math.round(outputTimeUs);
+                if (slotUs > 0) {
+                    long snappedUs = (ptsUs + slotUs / 2) / slotUs * slotUs;
+                    if (snappedUs <= lastWrittenUs) {
+                        if (gopSizes.get(gop) == 1) {
+                            // A single-frame GOP: nothing depends on it, so it can be decimated
+                            extractor.advance();
+                            continue;
+                        }
+                        // Referenced frame: keep its own time rather than pushing later frames back
+                        snappedUs = Math.max(ptsUs, lastWrittenUs + 1);
+                    }
+                    ptsUs = snappedUs;
+                } else if (ptsUs <= lastWrittenUs) {
+                    ptsUs = lastWrittenUs + 1;
+                }
+
+                buffer.clear();
+                int sampleSize = extractor.readSampleData(buffer, 0);
+                if (sampleSize < 0) {
+                    break;
+                }
+                bufferInfo.offset = 0;
+                bufferInfo.size = sampleSize;
+                bufferInfo.flags = sync ? MediaCodec.BUFFER_FLAG_KEY_FRAME : 0;
+                bufferInfo.presentationTimeUs = ptsUs;
+                muxer.writeSampleData(muxerTrack, buffer, bufferInfo);
+                lastWrittenUs = ptsUs;
+                written++;
+
+                extractor.advance();
+            }
+
+            Log.d(TAG, "Retimed " + sourcePath + ": " + written + " frames, " + (lastWrittenUs / 1000) + "ms");
+        } finally {
+            extractor.release();
+            if (muxer != null) {
+                if (muxerStarted) {
+                    try {
+                        muxer.stop();
+                    } catch (IllegalStateException e) {
+                        Log.e(TAG, "Muxer stop failed", e);
+                    }
+                }
+                muxer.release();
+            }
+        }
+
+        if (written == 0) {
+            new File(outputPath).delete();
+            throw new Exception("Nothing left after trimming");
+        }
+        return written;
+    }
+
+    private boolean isKept(long gopStartUs, long gopEndUs) {
+        if (keepRanges.isEmpty()) return true;
+        for (long[] range : keepRanges) {
+            if (gopStartUs < range[1] && gopEndUs > range[0]) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private double speedAt(long sourceTimeUs) {
+        if (speedPoints.isEmpty()) return 1.0;
+        SpeedPoint first = speedPoints.get(0);
+        if (sourceTimeUs <= first.sourceTimeUs) return Math.max(0.01, first.speed);
+
+        for (int i = 1; i < speedPoints.size(); i++) {
+            SpeedPoint a = speedPoints.get(i - 1);
+            SpeedPoint b = speedPoints.get(i);
+            if (sourceTimeUs <= b.sourceTimeUs) {
+                double t = (double) (sourceTimeUs - a.sourceTimeUs) / Math.max(1, b.sourceTimeUs - a.sourceTimeUs);
+                return Math.max(0.01, a.speed + (b.speed - a.speed) * t);
+            }
+        }
+        return Math.max(0.01, speedPoints.get(speedPoints.size() - 1).speed);
+    }
+
+    // Duration of a finished video (file path or content:// URI), or 0 if unknown
+    public static long readDurationUs(Context context, String path) {
+        MediaMetadataRetriever retriever = new MediaMetadataRetriever();
+        try {
+            if (path.startsWith("content://")) {
+                retriever.setDataSource(context, Uri.parse(path));
+            } else {
+                retriever.setDataSource(path);
+            }
+            String duration = retriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_DURATION);
+            return duration != null ? Long.parseLong(duration) * 1000 : 0;
+        } catch (Exception e) {
+            Log.w(TAG, "Could not read duration of " + path, e);
+            return 0;
+        } finally {
+            try {
+                retriever.release();
+            } catch (Exception ignored) {
+            }
+        }
+    }
+
+    static void setDataSource(Context context, MediaExtractor extractor, String path) throws Exception {
+        if (path.startsWith("content://")) {
+            extractor.setDataSource(context, Uri.parse(path), null);
+        } else {
+            extractor.setDataSource(path);
+        }
+    }
+
+    static int readRotationDegrees(Context context, String path) {
+        MediaMetadataRetriever retriever = new MediaMetadataRetriever();
+        try {
+            if (path.startsWith("content://")) {
+                retriever.setDataSource(context, Uri.parse(path));
+            } else {
+                retriever.setDataSource(path);
+            }
+            String rotation = retriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_VIDEO_ROTATION);
+            return rotation != null ? Integer.parseInt(rotation) : 0;
+        } catch (Exception e) {
+            Log.w(TAG, "Could not read rotation of " + path, e);
+            return 0;
+        } finally {
+            try {
+                retriever.release();
+            } catch (Exception ignored) {
+            }
+        }
+    }
+}
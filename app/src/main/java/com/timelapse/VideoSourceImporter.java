@@ -0,0 +1,334 @@
+package com.timelapse;
+
+import android.content.Context;
+import android.graphics.Rect;
+import android.media.Image;
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+import android.media.MediaMuxer;
+import android.net.Uri;
+import android.os.Build;
+import android.os.Environment;
+import android.util.Log;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+
+// Turns a long video (dashcam, screen recording) into a timelapse with one source frame per
+// output frame. Output frames are planned with extractor seeks alone, which only walk the
+// sample index. If there is a sync sample near every planned frame, those compressed samples
+// are copied into the output as they are, with no decode or encode. Otherwise each output
+// frame is decoded from the sync sample before it, or decoding continues forward when the
+// next frame is in the GOP already being decoded, and fed to a SegmentEncoder. Either way the
+// work scales with the output length (times the GOP size at worst), not the input length.
+public class VideoSourceImporter {
+
+    private static final String TAG = "VideoSourceImporter";
+    private static final String FILE_SUFFIX = "_fromvideo";
+    private static final int TIMEOUT_US = 10000;
+
+    private final Context context;
+
+    public VideoSourceImporter(Context context) {
+        this.context = context.getApplicationContext();
+    }
+
+    // Takes one frame per sampleIntervalUs of the video at uri, plays them at frameRate with at
+    // most maxShortSide pixels on the short side and saves the result to the gallery.
+    // Returns the gallery path.
+    public String importVideo(Uri uri, long sampleIntervalUs, int frameRate, int maxShortSide, boolean allIntra,
+                              SequenceImporter.ProgressListener listener) throws Exception {
+        String source = uri.toString();
+        MediaExtractor extractor = new MediaExtractor();
+        File workDir = new File(context.getExternalFilesDir(Environment.DIRECTORY_MOVIES), "timelapse_import");
+        try {
+            VideoRetimer.setDataSource(context, extractor, source);
+            MediaFormat format = selectVideoTrack(extractor);
+            long firstUs = Math.max(0, extractor.getSampleTime());
+            long durationUs = format.containsKey(MediaFormat.KEY_DURATION)
+                    ? format.getLong(MediaFormat.KEY_DURATION)
+                    : VideoRetimer.readDurationUs(context, source);
+            if (durationUs <= 0) {
+                throw new Exception("Unknown video duration");
+            }
+
+            // For each output frame, the nearest sync sample and the one at or before it
+            int count = (int) Math.max(1, (durationUs - firstUs) / sampleIntervalUs);
+            long[] targetsUs = new long[count];
+            long[] closestSyncUs = new long[count];
+            long[] previousSyncUs = new long[count];
+            for (int k = 0; k < count; k++) {
+                targetsUs[k] = firstUs + k * sampleIntervalUs;
+                extractor.seekTo(targetsUs[k], MediaExtractor.SEEK_TO_CLOSEST_SYNC);
+                closestSyncUs[k] = extractor.getSampleTime();
+                extractor.seekTo(targetsUs[k], MediaExtractor.SEEK_TO_PREVIOUS_SYNC);
+                previousSyncUs[k] = extractor.getSampleTime();
+            }
+
+            if (!workDir.exists() && !workDir.mkdirs()) {
+                throw new Exception("Failed to create import directory");
+            }
+            String workPath = new File(workDir, "video_import.mp4").getAbsolutePath();
+            int rotationDegrees = VideoRetimer.readRotationDegrees(context, source);
+            long frameDurationUs = 1000000L / frameRate;
+            int written;
+            if (canPassThrough(format, maxShortSide, targetsUs, closestSyncUs, sampleIntervalUs)) {
+                Log.d(TAG, "Copying " + count + " sync samples without decoding");
+                written = passThrough(extractor, format, closestSyncUs, frameDurationUs, rotationDegrees, workPath, listener);
+            } else {
+                written = transcode(extractor, format, targetsUs, closestSyncUs, previousSyncUs, sampleIntervalUs,
+                        frameRate, maxShortSide, allIntra, rotationDegrees, workPath, listener);
+            }
+            if (written == 0) {
+                throw new Exception("No frames could be read from the video");
+            }
+            return new VideoCompiler().saveToGallery(context, workPath, FILE_SUFFIX);
+        } finally {
+            extractor.release();
+            SessionRender.deleteRecursively(workDir);
+        }
+    }
+
+    private static MediaFormat selectVideoTrack(MediaExtractor extractor) throws Exception {
+        for (int i = 0; i < extractor.getTrackCount(); i++) {
+            MediaFormat format = extractor.getTrackFormat(i);
+            if (format.getString(MediaFormat.KEY_MIME).startsWith("video/")) {
+                extractor.selectTrack(i);
+                return format;
+            }
+        }
+        throw new Exception("No video track found");
+    }
+
+    // Sync samples can stand in for decoded frames when there is one within half an interval
+    // of every output frame, each used once, in a codec MediaMuxer takes and at no more than
+    // the output size (copied samples can't be scaled)
+    private static boolean canPassThrough(MediaFormat format, int maxShortSide, long[] targetsUs,
+                                          long[] closestSyncUs, long intervalUs) {
+        String mime = format.getString(MediaFormat.KEY_MIME);
+        boolean muxable = MediaFormat.MIMETYPE_VIDEO_AVC.equals(mime)
+                || (MediaFormat.MIMETYPE_VIDEO_HEVC.equals(mime) && Build.VERSION.SDK_INT >= Build.VERSION_CODES.N);
+        if (!muxable || Math.min(format.getInteger(MediaFormat.KEY_WIDTH), format.getInteger(MediaFormat.KEY_HEIGHT)) > maxShortSide) {
+            return false;
+        }
+        long previousUs = -1;
+        for (int k = 0; k < targetsUs.length; k++) {
+            if (closestSyncUs[k] < 0 || closestSyncUs[k] <= previousUs
+                    || Math.abs(closestSyncUs[k] - targetsUs[k]) > intervalUs / 2) {
+                return false;
+            }
+            previousUs = closestSyncUs[k];
+        }
+        return true;
+    }
+
+    // Every output frame is a sync sample, so the copy is all-intra and needs no re-encode
+    private int passThrough(MediaExtractor extractor, MediaFormat format, long[] syncUs, long frameDurationUs,
+                            int rotationDegrees, String outputPath, SequenceImporter.ProgressListener listener) throws Exception {
+        MediaMuxer muxer = new MediaMuxer(outputPath, MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
+        boolean muxerStarted = false;
+        int written = 0;
+        try {
+            if (rotationDegrees != 0) {
+                muxer.setOrientationHint(rotationDegrees);
+            }
+            int muxerTrack = muxer.addTrack(format);
+            muxer.start();
+            muxerStarted = true;
+
+            int bufferSize = format.containsKey(MediaFormat.KEY_MAX_INPUT_SIZE)
+                    ? format.getInteger(MediaFormat.KEY_MAX_INPUT_SIZE) : 4 * 1024 * 1024;
+            ByteBuffer buffer = ByteBuffer.allocate(bufferSize);
+            MediaCodec.BufferInfo bufferInfo = new MediaCodec.BufferInfo();
+            for (long timeUs : syncUs) {
+                extractor.seekTo(timeUs, MediaExtractor.SEEK_TO_CLOSEST_SYNC);
+                int size = extractor.readSampleData(buffer, 0);
+                if (size < 0) break;
+                bufferInfo.set(0, size, written * frameDurationUs, MediaCodec.BUFFER_FLAG_KEY_FRAME);
+                muxer.writeSampleData(muxerTrack, buffer, bufferInfo);
+                written++;
+                if (listener != null) {
+                    listener.onImportProgress(written, syncUs.length);
+                }
+            }
+        } finally {
+            if (muxerStarted && written > 0) {
+                try {
+                    muxer.stop();
+                } catch (IllegalStateException e) {
+                    Log.e(TAG, "Muxer stop failed", e);
+                }
+            }
+            muxer.release();
+        }
+        return written;
+    }
+
+    // Decodes only what each output frame needs: a sync sample close enough to the target is
+    // taken as is, otherwise decoding runs from the preceding sync sample up to the target.
+    // Decoded frames before the target are released without being copied.
+    private int transcode(MediaExtractor extractor, MediaFormat format, long[] targetsUs, long[] closestSyncUs,
+                          long[] previousSyncUs, long intervalUs, int frameRate, int maxShortSide, boolean allIntra,
+                          int rotationDegrees, String outputPath, SequenceImporter.ProgressListener listener) throws Exception {
+        MediaCodec decoder = MediaCodec.createDecoderByType(format.getString(MediaFormat.KEY_MIME));
+        SegmentEncoder encoder = null;
+        MediaCodec.BufferInfo bufferInfo = new MediaCodec.BufferInfo();
+        long frameDurationUs = 1000000L / frameRate;
+        int written = 0;
+        int decodedSamples = 0;
+        try {
+            format.setInteger(MediaFormat.KEY_COLOR_FORMAT, MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420Flexible);
+            decoder.configure(format, null, null, 0);
+            decoder.start();
+
+            long queuedUpToUs = -1; // Last sample queued since the last seek, -1 right after one
+            long lastOutputUs = -1;
+            boolean inputDone = false;
+            boolean anyQueued = false;
+            byte[] frame = null;
+            byte[] scaled = null;
+            boolean endOfStream = false;
+
+            for (int k = 0; k < targetsUs.length && !endOfStream; k++) {
+                boolean useSync = closestSyncUs[k] >= 0 && Math.abs(closestSyncUs[k] - targetsUs[k]) <= intervalUs / 2;
+                long wantUs = useSync ? closestSyncUs[k] : targetsUs[k];
+                long startSyncUs = useSync ? closestSyncUs[k] : Math.max(0, previousSyncUs[k]);
+
+                // No sync sample between the decode position and the target: keep going
+                // forward, which never decodes more than seeking back to the sync sample would
+                boolean forward = queuedUpToUs >= 0 && startSyncUs <= queuedUpToUs && lastOutputUs < wantUs && !inputDone;
+                if (!forward) {
+                    if (anyQueued) {
+                        decoder.flush();
+                    }
+                    extractor.seekTo(startSyncUs, MediaExtractor.SEEK_TO_PREVIOUS_SYNC);
+                    queuedUpToUs = -1;
+                    lastOutputUs = -1;
+                    inputDone = false;
+                }
+
+                boolean found = false;
+                while (!found && !endOfStream) {
+                    if (!inputDone) {
+                        int inputIndex = decoder.dequeueInputBuffer(TIMEOUT_US);
+                        if (inputIndex >= 0) {
+                            int size = extractor.readSampleData(decoder.getInputBuffer(inputIndex), 0);
+                            if (size < 0) {
+                                decoder.queueInputBuffer(inputIndex, 0, 0, 0, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+                                inputDone = true;
+                            } else {
+                                queuedUpToUs = extractor.getSampleTime();
+                                decoder.queueInputBuffer(inputIndex, 0, size, queuedUpToUs, 0);
+                                extractor.advance();
+                                decodedSamples++;
+                            }
+                            anyQueued = true;
+                        }
+                    }
+
+                    int outputIndex = decoder.dequeueOutputBuffer(bufferInfo, TIMEOUT_US);
+                    if (outputIndex < 0) continue;
+                    if (bufferInfo.size > 0) {
+                        lastOutputUs = bufferInfo.presentationTimeUs;
+                        if (bufferInfo.presentationTimeUs >= wantUs) {
+                            Image image = decoder.getOutputImage(outputIndex);
+                            if (image == null) {
+                                throw new Exception("Decoder output is not readable as YUV");
+                            }
+                            Rect crop = image.getCropRect();
+                            int width = crop.width() & ~1;
+                            int height = crop.height() & ~1;
+                            if (frame == null || frame.length != width * height * 3 / 2) {
+                                frame = new byte[width * height * 3 / 2];
+                            }
+                            copyToNV12(image, crop, width, height, frame);
+                            image.close();
+
+                            if (encoder == null) {
+                                float scale = Math.min(1f, (float) maxShortSide / Math.min(width, height));
+                                int[] size = EncoderCapabilities.get(context).getEncodeSize(
+                                        Math.round(width * scale), Math.round(height * scale), frameRate);
+                                encoder = new SegmentEncoder(outputPath, size[0], size[1], frameRate,
+                                        allIntra ? 0 : VideoCompiler.I_FRAME_INTERVAL, rotationDegrees,
+                                        EncoderCapabilities.get(context));
+                                Log.d(TAG, "Decoding " + width + "x" + height + " into " + size[0] + "x" + size[1]);
+                            }
+                            byte[] output = frame;
+                            if (width != encoder.getWidth() || height != encoder.getHeight()) {
+                                if (scaled == null) {
+                                    scaled = new byte[encoder.getWidth() * encoder.getHeight() * 3 / 2];
+                                }
+                                VideoCompiler.scaleYUV420SP(frame, width, height, scaled, encoder.getWidth(), encoder.getHeight());
+                                output = scaled;
+                            }
+                            encoder.encodeFrame(output, written * frameDurationUs);
+                            written++;
+                            found = true;
+                        }
+                    }
+                    if ((bufferInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0 && !found) {
+                        endOfStream = true;
+                    }
+                    decoder.releaseOutputBuffer(outputIndex, false);
+                }
+                if (found && listener != null) {
+                    listener.onImportProgress(written, targetsUs.length);
+                }
+            }
+
+            if (encoder != null) {
+                encoder.finish();
+                encoder = null;
+            }
+            Log.d(TAG, "Decoded " + decodedSamples + " samples for " + written + " output frames");
+        } finally {
+            if (encoder != null) {
+                encoder.release();
+            }
+            try {
+                decoder.stop();
+            } catch (IllegalStateException e) {
+                Log.w(TAG, "Decoder stop failed", e);
+            }
+            decoder.release();
+        }
+        return written;
+    }
+
+    // Copies the cropped area of a YUV_420_888 decoder output (any strides) into packed NV12
+    private static void copyToNV12(Image image, Rect crop, int width, int height, byte[] nv12) {
+        Image.Plane[] planes = image.getPlanes();
+        ByteBuffer yBuffer = planes[0].getBuffer();
+        int yRowStride = planes[0].getRowStride();
+        int yPixelStride = planes[0].getPixelStride();
+        for (int row = 0; row < height; row++) {
+            int rowStart = (crop.top + row) * yRowStride + crop.left * yPixelStride;
+            if (yPixelStride == 1) {
+                yBuffer.position(rowStart);
+                yBuffer.get(nv12, row * width, width);
+            } else {
+                for (int col = 0; col < width; col++) {
+                    nv12[row * width + col] = yBuffer.get(rowStart + col * yPixelStride);
+                }
+            }
+        }
+
+        ByteBuffer uBuffer = planes[1].getBuffer();
+        ByteBuffer vBuffer = planes[2].getBuffer();
+        int uRowStride = planes[1].getRowStride();
+        int vRowStride = planes[2].getRowStride();
+        int uPixelStride = planes[1].getPixelStride();
+        int vPixelStride = planes[2].getPixelStride();
+        int out = width * height;
+        for (int row = 0; row < height / 2; row++) {
+            int chromaRow = crop.top / 2 + row;
+            for (int col = 0; col < width / 2; col++) {
+                int chromaCol = crop.left / 2 + col;
+                nv12[out++] = uBuffer.get(chromaRow * uRowStride + chromaCol * uPixelStride);
+                nv12[out++] = vBuffer.get(chromaRow * vRowStride + chromaCol * vPixelStride);
+            }
+        }
+    }
+}